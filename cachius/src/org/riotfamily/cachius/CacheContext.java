@@ -78,6 +78,42 @@ public class CacheContext {
 		}
 	}
 
+	/**
+	 * Creates an item that collects the tags, files and expiration dates of 
+	 * work that is performed in another thread on behalf of the current item. 
+	 * Returns <code>null</code> if no item is bound to the current thread. 
+	 * The returned item must be passed to {@link #attach(CacheItem)} in the 
+	 * worker thread and to {@link #join(CacheItem)} in the calling thread.
+	 */
+	public static CacheItem fork() {
+		CacheItem item = currentItem.get();
+		return item != null ? new CacheItem(item.getKey()) : null;
+	}
+	
+	/**
+	 * Binds a forked item to the current (worker) thread.
+	 */
+	public static void attach(CacheItem item) {
+		currentItem.set(item);
+	}
+	
+	/**
+	 * Removes the item bound to the current (worker) thread.
+	 */
+	public static void detach() {
+		currentItem.set(null);
+	}
+	
+	/**
+	 * Merges a forked item into the item bound to the current thread.
+	 */
+	public static void join(CacheItem forkedItem) {
+		CacheItem item = currentItem.get();
+		if (item != null && forkedItem != null) {
+			item.addAll(forkedItem);
+		}
+	}
+	
 	public static boolean exists() {
 		return currentItem.get() != null;
 	}
@@ -26,6 +26,9 @@ import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
 import java.io.Writer;
 import java.net.SocketException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.List;
 
 import org.riotfamily.common.util.Generics;
@@ -123,6 +126,66 @@ public class IOUtils {
 		return -1;
 	}
 	
+	/**
+	 * Copies a region of the given File to an OutputStream. The data is 
+	 * transferred via {@link FileChannel#transferTo(long, long, WritableByteChannel)}
+	 * which allows the operating system to skip the user-space copy when 
+	 * the target supports it. Unlike the other copy methods, this one can 
+	 * handle files larger than 2 GB. 
+	 * 
+	 * @param file the file to copy from
+	 * @param start offset of the first byte to copy
+	 * @param length number of bytes to copy
+	 * @param out the stream to copy to
+	 * @return the number of bytes copied
+	 * @throws IOException in case of I/O errors
+	 */
+	public static long copy(File file, long start, long length, 
+			OutputStream out) throws IOException {
+		
+		FileInputStream in = new FileInputStream(file);
+		try {
+			FileChannel channel = in.getChannel();
+			WritableByteChannel target = Channels.newChannel(out);
+			long position = start;
+			long end = start + length;
+			while (position < end) {
+				long count = channel.transferTo(position, end - position, target);
+				if (count <= 0) {
+					break;
+				}
+				position += count;
+			}
+			out.flush();
+			return position - start;
+		}
+		finally {
+			closeStream(in);
+		}
+	}
+	
+	/**
+	 * Copies a region of the given File to an OutputStream,
+	 * swallowing exceptions caused by a ClientAbortException.
+	 *  
+	 * @see #copy(File, long, long, OutputStream)
+	 */
+	public static long serve(File file, long start, long length, 
+			OutputStream out) throws IOException {
+		
+		try {
+			return copy(file, start, length, out);
+		}
+		catch (SocketException e) {
+		}
+		catch (IOException e) {
+			if (!SocketException.class.isInstance(e.getCause())) {
+				throw e;
+			}
+		}
+		return -1;
+	}
+	
 	/**
 	 * Copies the content of the given Reader to a Writer.
 	 * Unlike {@link FileCopyUtils#copy(Reader, Writer)} this method does not 
@@ -0,0 +1,341 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.riotfamily.common.io;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.riotfamily.common.util.FormatUtils;
+import org.riotfamily.common.util.Generics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+/**
+ * Executes external programs with bounded resources. The number of 
+ * concurrently running processes is limited, callers exceeding the limit 
+ * have to wait for a free slot. Processes that don't terminate within the 
+ * configured timeout are killed and only the first 
+ * {@link #setMaxOutputSize(int) maxOutputSize} characters of their output 
+ * are retained.
+ * <p>
+ * Each tool (ImageMagick, FFmpeg, ...) should use its own instance, so that
+ * a burst of slow video conversions can't block image processing. Wait and 
+ * run times are recorded and can be displayed via the statistics module.
+ * </p>
+ */
+public class ProcessExecutor implements DisposableBean {
+
+	private Logger log = LoggerFactory.getLogger(ProcessExecutor.class);
+	
+	private String name;
+	
+	private int maxConcurrent = Runtime.getRuntime().availableProcessors();
+	
+	private long timeout = FormatUtils.parseMillis("5m");
+	
+	private int maxOutputSize = 1024 * 1024;
+	
+	private Semaphore slots;
+	
+	private ScheduledExecutorService watchdog;
+	
+	private AtomicInteger waiting = new AtomicInteger();
+	
+	private AtomicInteger running = new AtomicInteger();
+	
+	private AtomicLong invocations = new AtomicLong();
+	
+	private AtomicLong failures = new AtomicLong();
+	
+	private AtomicLong timeouts = new AtomicLong();
+	
+	private AtomicLong totalWaitTime = new AtomicLong();
+	
+	private AtomicLong totalRunTime = new AtomicLong();
+	
+	private AtomicLong maxWaitTime = new AtomicLong();
+	
+	private AtomicLong maxRunTime = new AtomicLong();
+	
+	public ProcessExecutor() {
+		this("Process");
+	}
+	
+	public ProcessExecutor(String name) {
+		this.name = name;
+	}
+	
+	/**
+	 * Sets the maximum number of processes that may run at the same time.
+	 * Defaults to the number of available processors.
+	 */
+	public void setMaxConcurrent(int maxConcurrent) {
+		this.maxConcurrent = maxConcurrent;
+		this.slots = null;
+	}
+	
+	/**
+	 * Sets the time after which a process is killed. Default is 
+	 * <code>5m</code> (five minutes).
+	 * @see FormatUtils#parseMillis(String)
+	 */
+	public void setTimeout(String timeout) {
+		this.timeout = FormatUtils.parseMillis(timeout);
+	}
+	
+	/**
+	 * Sets the maximum number of characters that are retained from the 
+	 * process output. Any additional output is discarded. 
+	 * Default is 1 MB.
+	 */
+	public void setMaxOutputSize(int maxOutputSize) {
+		this.maxOutputSize = maxOutputSize;
+	}
+	
+	private synchronized Semaphore getSlots() {
+		if (slots == null) {
+			slots = new Semaphore(maxConcurrent, true);
+		}
+		return slots;
+	}
+	
+	private synchronized ScheduledExecutorService getWatchdog() {
+		if (watchdog == null) {
+			CustomizableThreadFactory threadFactory = 
+					new CustomizableThreadFactory(name + "Watchdog-");
+			
+			threadFactory.setDaemon(true);
+			watchdog = new ScheduledThreadPoolExecutor(1, threadFactory);
+		}
+		return watchdog;
+	}
+	
+	public synchronized void destroy() throws Exception {
+		if (watchdog != null) {
+			watchdog.shutdownNow();
+			watchdog = null;
+		}
+	}
+	
+	public String exec(String command, String... args) throws IOException {
+		List<String> argList = Generics.newArrayList();
+		if (args != null) {
+			for (String arg : args) {
+				argList.add(arg);
+			}
+		}
+		return exec(command, argList);
+	}
+	
+	/**
+	 * Runs the given command and returns its output. Standard error is 
+	 * merged into the output.
+	 * 
+	 * @throws IOException if the process can't be started, or if it was 
+	 *         killed because it exceeded the timeout
+	 */
+	public String exec(String command, List<String> args) throws IOException {
+		List<String> commandLine = Generics.newArrayList();
+		commandLine.add(command);
+		if (args != null) {
+			commandLine.addAll(args);
+		}
+		
+		Semaphore slots = getSlots();
+		long queued = System.currentTimeMillis();
+		waiting.incrementAndGet();
+		try {
+			slots.acquire();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting to execute " + command);
+		}
+		finally {
+			waiting.decrementAndGet();
+		}
+		
+		long start = System.currentTimeMillis();
+		recordWaitTime(start - queued);
+		running.incrementAndGet();
+		invocations.incrementAndGet();
+		boolean success = false;
+		try {
+			final Process process = new ProcessBuilder(commandLine)
+					.redirectErrorStream(true).start();
+			
+			process.getOutputStream().close();
+			final AtomicBoolean killed = new AtomicBoolean();
+			ScheduledFuture<?> kill = getWatchdog().schedule(new Runnable() {
+				public void run() {
+					killed.set(true);
+					process.destroy();
+				}
+			}, timeout, TimeUnit.MILLISECONDS);
+			
+			String output;
+			try {
+				output = readOutput(process);
+				process.waitFor();
+			}
+			catch (InterruptedException e) {
+				process.destroy();
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while executing " + command);
+			}
+			finally {
+				kill.cancel(false);
+			}
+			if (killed.get()) {
+				timeouts.incrementAndGet();
+				throw new IOException("Killed " + command + " after " 
+						+ timeout + " ms");
+			}
+			success = true;
+			return output;
+		}
+		finally {
+			long runTime = System.currentTimeMillis() - start;
+			running.decrementAndGet();
+			slots.release();
+			recordRunTime(runTime);
+			if (!success) {
+				failures.incrementAndGet();
+			}
+			log.debug("{} took {} ms", command, runTime);
+		}
+	}
+	
+	/**
+	 * Reads the process output until the stream is closed. Characters 
+	 * beyond the configured limit are discarded, but the stream is still 
+	 * drained so that the process doesn't block on a full pipe.
+	 */
+	private String readOutput(Process process) throws IOException {
+		Reader reader = new InputStreamReader(process.getInputStream());
+		StringBuilder sb = new StringBuilder();
+		char[] buffer = new char[IOUtils.BUFFER_SIZE];
+		boolean truncated = false;
+		try {
+			int n;
+			while ((n = reader.read(buffer)) != -1) {
+				int keep = Math.min(n, maxOutputSize - sb.length());
+				if (keep > 0) {
+					sb.append(buffer, 0, keep);
+				}
+				if (keep < n) {
+					truncated = true;
+				}
+			}
+		}
+		finally {
+			reader.close();
+		}
+		if (truncated) {
+			log.warn("Output exceeded {} characters and was truncated", maxOutputSize);
+		}
+		return sb.toString();
+	}
+	
+	private void recordWaitTime(long time) {
+		totalWaitTime.addAndGet(time);
+		updateMax(maxWaitTime, time);
+	}
+	
+	private void recordRunTime(long time) {
+		totalRunTime.addAndGet(time);
+		updateMax(maxRunTime, time);
+	}
+	
+	private static void updateMax(AtomicLong max, long time) {
+		long current = max.get();
+		while (time > current && !max.compareAndSet(current, time)) {
+			current = max.get();
+		}
+	}
+	
+	public void reset() {
+		invocations.set(0);
+		failures.set(0);
+		timeouts.set(0);
+		totalWaitTime.set(0);
+		totalRunTime.set(0);
+		maxWaitTime.set(0);
+		maxRunTime.set(0);
+	}
+	
+	public String getName() {
+		return name;
+	}
+	
+	public int getMaxConcurrent() {
+		return maxConcurrent;
+	}
+	
+	/**
+	 * Returns the number of callers waiting for a free slot.
+	 */
+	public int getWaiting() {
+		return waiting.get();
+	}
+	
+	/**
+	 * Returns the number of processes that are currently running.
+	 */
+	public int getRunning() {
+		return running.get();
+	}
+	
+	public long getInvocations() {
+		return invocations.longValue();
+	}
+	
+	public long getFailures() {
+		return failures.longValue();
+	}
+	
+	public long getTimeouts() {
+		return timeouts.longValue();
+	}
+	
+	public long getAverageWaitTime() {
+		long count = invocations.longValue();
+		return count > 0 ? totalWaitTime.longValue() / count : 0;
+	}
+	
+	public long getMaxWaitTime() {
+		return maxWaitTime.longValue();
+	}
+	
+	public long getAverageRunTime() {
+		long count = invocations.longValue();
+		return count > 0 ? totalRunTime.longValue() / count : 0;
+	}
+	
+	public long getMaxRunTime() {
+		return maxRunTime.longValue();
+	}
+	
+}
@@ -13,6 +13,7 @@
 package org.riotfamily.common.io;
 
 import java.io.File;
+import java.io.FileFilter;
 import java.util.Iterator;
 
 import org.slf4j.Logger;
@@ -24,7 +25,8 @@ import org.slf4j.LoggerFactory;
  * {@link #next()} does not return nested directories, instead regular files
  * contained in these directories are returned. Note that calling 
  * {@link #remove()} will also delete all empty parent directories up to the
- * base directory specified in the constructor.
+ * base directory specified in the constructor. An optional FileFilter may
+ * be specified to exclude files or whole directories.
  * 
  * @author Felix Gnass [fgnass at neteye dot de]
  * @since 8.0
@@ -35,6 +37,8 @@ public class RecursiveFileIterator implements Iterator<File> {
 	
 	private File dir;
 	
+	private FileFilter filter;
+	
 	private File[] files;
 	
 	private RecursiveFileIterator nested;
@@ -46,9 +50,14 @@ public class RecursiveFileIterator implements Iterator<File> {
 	int i = 0;
 	
 	public RecursiveFileIterator(File file) {
+		this(file, null);
+	}
+	
+	public RecursiveFileIterator(File file, FileFilter filter) {
+		this.filter = filter;
 		if (file.isDirectory()) {
 			dir = file;
-			files = file.listFiles();
+			files = file.listFiles(filter);
 			next = getNextFile();
 		}
 		else {
@@ -66,7 +75,7 @@ public class RecursiveFileIterator implements Iterator<File> {
 				return nested.next();
 			}
 			while (i < files.length) {
-				nested = new RecursiveFileIterator(files[i++]);
+				nested = new RecursiveFileIterator(files[i++], filter);
 				if (nested.hasNext()) {
 					return nested.next();
 				}
@@ -133,7 +133,7 @@ public final class HashUtils {
 	 * @param buffer array of bytes to convert
 	 * @return generated hex string
 	 */
-	private static String toHex(byte[] buffer) {
+	public static String toHex(byte[] buffer) {
 		StringBuffer sb = new StringBuffer();
 		String s = null;
 		for (int i = 0; i < buffer.length; i++) {
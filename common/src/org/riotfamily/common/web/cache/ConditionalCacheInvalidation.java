@@ -0,0 +1,29 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.riotfamily.common.web.cache;
+
+/**
+ * Interface that can be implemented by entities annotated with 
+ * {@link TagCacheItems} in order to suppress the invalidation of tagged 
+ * items when a new instance is saved. This is useful for entities whose 
+ * creation does not necessarily change any rendered output.
+ */
+public interface ConditionalCacheInvalidation {
+
+	/**
+	 * Returns whether saving this new instance must invalidate the items 
+	 * tagged with the entity's class. 
+	 */
+	public boolean isCacheInvalidationRequiredOnSave();
+	
+}
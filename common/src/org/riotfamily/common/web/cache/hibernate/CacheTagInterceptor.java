@@ -32,6 +32,7 @@ import org.riotfamily.common.hibernate.SessionFactoryAwareInterceptor;
 import org.riotfamily.common.util.ExceptionUtils;
 import org.riotfamily.common.util.Generics;
 import org.riotfamily.common.web.cache.CascadeCacheInvalidation;
+import org.riotfamily.common.web.cache.ConditionalCacheInvalidation;
 import org.riotfamily.common.web.cache.TagCacheItems;
 import org.riotfamily.common.web.cache.tags.CacheTagUtils;
 import org.springframework.core.annotation.AnnotationUtils;
@@ -85,7 +86,9 @@ public class CacheTagInterceptor extends EmptyInterceptor
 	public boolean onSave(Object entity, Serializable id, Object[] state,
 			String[] propertyNames, Type[] types) {
 		
-		if (entity.getClass().isAnnotationPresent(TagCacheItems.class)) {
+		if (entity.getClass().isAnnotationPresent(TagCacheItems.class)
+				&& isCacheInvalidationRequiredOnSave(entity)) {
+			
 			invalidate(entity.getClass());
 		}
 		invalidateOwners(entity);
@@ -119,6 +122,14 @@ public class CacheTagInterceptor extends EmptyInterceptor
 	
 	// ------------------------------------------------------------------------
 	
+	private boolean isCacheInvalidationRequiredOnSave(Object entity) {
+		if (entity instanceof ConditionalCacheInvalidation) {
+			return ((ConditionalCacheInvalidation) entity)
+					.isCacheInvalidationRequiredOnSave();
+		}
+		return true;
+	}
+	
 	private void invalidateOwners(Object entity) {
 		List<Field> fields = getInverseMappingFields(entity.getClass());
 		if (fields != null) {
@@ -0,0 +1,194 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.riotfamily.components.cache;
+
+import java.io.Serializable;
+import java.io.StringWriter;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.riotfamily.cachius.CacheContext;
+import org.riotfamily.cachius.CacheHandler;
+import org.riotfamily.cachius.persistence.DiskStore;
+import org.riotfamily.common.hibernate.ActiveRecord;
+import org.riotfamily.common.hibernate.ActiveRecordUtils;
+import org.riotfamily.common.util.Generics;
+import org.riotfamily.common.util.HashUtils;
+import org.riotfamily.common.web.cache.tags.CacheTagUtils;
+import org.riotfamily.common.web.support.CapturingResponseWrapper;
+import org.riotfamily.components.model.Component;
+import org.riotfamily.components.render.component.ComponentRenderer;
+import org.riotfamily.components.render.component.ViewComponentRenderer;
+import org.springframework.web.servlet.View;
+import org.springframework.web.servlet.support.RequestContextUtils;
+import org.springframework.web.servlet.view.AbstractUrlBasedView;
+
+/**
+ * CacheHandler that caches the output of a single {@link Component}. 
+ * The rendered markup is kept in memory as String. When the handler is 
+ * invoked while a page is captured, Cachius nests the component's item 
+ * within the page's item, so that the page inherits all tags of the 
+ * component.
+ * <p>
+ * The cache key is composed of the component's type and id, the request 
+ * locale, the view that renders it and an MD5 hash of its data. Modifying 
+ * one component of a page therefore doesn't affect the cached output of the
+ * others. Entities referenced by the component are included by their id, 
+ * the item is tagged with them, so that it is invalidated when they are 
+ * modified.
+ * </p>
+ */
+public class ComponentCacheHandler implements CacheHandler {
+
+	private Component component;
+	
+	private ComponentRenderer renderer;
+	
+	private String cacheRegion;
+	
+	private HttpServletRequest request;
+	
+	private HttpServletResponse response;
+	
+	private List<ActiveRecord> references = Generics.newArrayList();
+	
+	public ComponentCacheHandler(Component component, 
+			ComponentRenderer renderer, String cacheRegion,
+			HttpServletRequest request, HttpServletResponse response) {
+		
+		this.component = component;
+		this.renderer = renderer;
+		this.cacheRegion = cacheRegion;
+		this.request = request;
+		this.response = response;
+	}
+
+	public String getCacheKey() {
+		if (component.getContent().getId() == null) {
+			return null;
+		}
+		Locale locale = RequestContextUtils.getLocale(request);
+		String view = getViewKey(locale);
+		if (view == null) {
+			return null;
+		}
+		StringBuilder data = new StringBuilder();
+		references.clear();
+		appendData(data, component);
+		
+		StringBuilder key = new StringBuilder("component:");
+		key.append(component.getType()).append(':')
+				.append(component.getCompositeId()).append(':')
+				.append(locale).append(':')
+				.append(view).append(':')
+				.append(HashUtils.md5(data.toString()));
+		
+		return key.toString();
+	}
+	
+	/**
+	 * Returns a String that identifies the template used to render the 
+	 * component, or <code>null</code> if the view can't be resolved.
+	 */
+	private String getViewKey(Locale locale) {
+		if (renderer instanceof ViewComponentRenderer) {
+			View view = ((ViewComponentRenderer) renderer).getView(
+					component.getType(), locale);
+			
+			if (view == null) {
+				return null;
+			}
+			if (view instanceof AbstractUrlBasedView) {
+				return ((AbstractUrlBasedView) view).getUrl();
+			}
+			return view.getClass().getName() + '@' 
+					+ System.identityHashCode(view);
+		}
+		return renderer.getClass().getName();
+	}
+	
+	/**
+	 * Appends a String representation of the given value. Nested maps are
+	 * appended in key order, entities are represented by their cache tag.
+	 */
+	private void appendData(StringBuilder sb, Object value) {
+		if (value instanceof Map<?, ?>) {
+			SortedMap<String, Object> sorted = new TreeMap<String, Object>();
+			for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+				sorted.put(String.valueOf(entry.getKey()), entry.getValue());
+			}
+			sb.append('{');
+			for (Map.Entry<String, Object> entry : sorted.entrySet()) {
+				sb.append(entry.getKey()).append('=');
+				appendData(sb, entry.getValue());
+				sb.append(',');
+			}
+			sb.append('}');
+		}
+		else if (value instanceof Collection<?>) {
+			sb.append('[');
+			for (Object item : (Collection<?>) value) {
+				appendData(sb, item);
+				sb.append(',');
+			}
+			sb.append(']');
+		}
+		else if (value instanceof ActiveRecord) {
+			ActiveRecord record = (ActiveRecord) value;
+			references.add(record);
+			sb.append(CacheTagUtils.getTag(record.getClass(), 
+					ActiveRecordUtils.getId(record)));
+		}
+		else {
+			sb.append(value);
+		}
+	}
+
+	public String getCacheRegion() {
+		return cacheRegion;
+	}
+
+	public long getLastModified() {
+		return System.currentTimeMillis();
+	}
+
+	public Serializable capture(DiskStore diskStore) throws Exception {
+		for (ActiveRecord record : references) {
+			CacheTagUtils.tagIfSupported(record);
+		}
+		StringWriter sw = new StringWriter();
+		CapturingResponseWrapper wrapper = new CapturingResponseWrapper(response, sw);
+		renderer.render(component, request, wrapper);
+		wrapper.flush();
+		if (wrapper.isError()) {
+			CacheContext.error();
+		}
+		return sw.toString();
+	}
+
+	public void serve(Serializable data) throws Exception {
+		response.getWriter().write((String) data);
+	}
+
+	public void handleUncached() throws Exception {
+		renderer.render(component, request, response);
+	}
+
+}
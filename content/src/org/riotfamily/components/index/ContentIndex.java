@@ -14,12 +14,16 @@ package org.riotfamily.components.index;
 
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.persistence.Id;
 import javax.persistence.MappedSuperclass;
 import javax.persistence.OneToOne;
 import javax.persistence.PrimaryKeyJoinColumn;
 
+import org.riotfamily.common.util.Generics;
 import org.riotfamily.components.model.Content;
 import org.springframework.util.ReflectionUtils;
 import org.springframework.util.StringUtils;
@@ -41,6 +45,9 @@ import org.springframework.util.StringUtils;
 // see http://opensource.atlassian.com/projects/hibernate/browse/HHH-4332
 public abstract class ContentIndex {
 
+	private static ConcurrentMap<Class<?>, Accessors> accessors = 
+			new ConcurrentHashMap<Class<?>, Accessors>();
+
 	@Id @SuppressWarnings("unused")
 	private Long id;
 	
@@ -70,8 +77,7 @@ public abstract class ContentIndex {
 	 * {@link #getContentValue(String, Content)} is invoked.
 	 */
 	protected void index(Content content) {
-		for (Field field : getClass().getDeclaredFields()) {
-			ReflectionUtils.makeAccessible(field);
+		for (Field field : getAccessors().fields) {
 			if (ReflectionUtils.getField(field, this) == null) {
 				Object value = getContentValue(field.getName(), content);
 				if (value != null && !field.getType().isInstance(value)) {
@@ -91,13 +97,57 @@ public abstract class ContentIndex {
 	 * called.
 	 */
 	protected Object getContentValue(String name, Content content) {
-		Method method = ReflectionUtils.findMethod(getClass(), "get" 
-				+ StringUtils.capitalize(name), Content.class);
-		
+		Method method = getAccessors().getGetter(name);
 		if (method != null) {
 			return ReflectionUtils.invokeMethod(method, this, content);
 		}
 		return content.get(name);
 	}
 	
+	private Accessors getAccessors() {
+		Accessors result = accessors.get(getClass());
+		if (result == null) {
+			result = new Accessors(getClass());
+			accessors.put(getClass(), result);
+		}
+		return result;
+	}
+	
+	/**
+	 * Fields and getter methods of a ContentIndex class. The lookup is 
+	 * performed only once per class, as reflection is too expensive to be 
+	 * done each time a Content is saved.
+	 */
+	private static class Accessors {
+		
+		private Class<?> indexClass;
+		
+		private Field[] fields;
+		
+		private Map<String, Method> getters = Generics.newHashMap();
+		
+		public Accessors(Class<?> indexClass) {
+			this.indexClass = indexClass;
+			fields = indexClass.getDeclaredFields();
+			for (Field field : fields) {
+				ReflectionUtils.makeAccessible(field);
+				Method method = ReflectionUtils.findMethod(indexClass, "get" 
+						+ StringUtils.capitalize(field.getName()), Content.class);
+				
+				if (method != null) {
+					ReflectionUtils.makeAccessible(method);
+				}
+				getters.put(field.getName(), method);
+			}
+		}
+		
+		public Method getGetter(String name) {
+			if (getters.containsKey(name)) {
+				return getters.get(name);
+			}
+			return ReflectionUtils.findMethod(indexClass, "get" 
+					+ StringUtils.capitalize(name), Content.class);
+		}
+	}
+	
 }
@@ -14,9 +14,18 @@ package org.riotfamily.components.index;
 
 import static org.hibernate.EntityMode.POJO;
 
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.hibernate.Hibernate;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
+import org.hibernate.StatelessSession;
 import org.hibernate.annotations.Filter;
 import org.hibernate.metadata.ClassMetadata;
 import org.riotfamily.common.util.Generics;
@@ -24,7 +33,16 @@ import org.riotfamily.components.model.Content;
 import org.riotfamily.components.model.ContentContainer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.orm.hibernate3.support.HibernateDaoSupport;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
 import org.springframework.util.Assert;
 import org.springframework.util.StringUtils;
 
@@ -35,56 +53,308 @@ import org.springframework.util.StringUtils;
  * the indexer will look for a mapped class called <code>FooContentIndex</code>,
  * that is a subclass of {@link ContentIndex}.
  * </p>
+ * <p>
+ * Index rows of deleted Contents are removed within the deleting 
+ * transaction. New and modified Contents are not indexed during the flush. 
+ * Instead, their ids are collected and processed after the transaction has
+ * been committed. By default this happens in a background thread, so the 
+ * index is eventually consistent. Updates are applied in chunks of
+ * <code>batchSize</code> entities, each in its own transaction: existing 
+ * rows are updated in place and new rows are inserted, which allows 
+ * Hibernate to use JDBC batching if <code>hibernate.jdbc.batch_size</code> 
+ * is set. If a chunk fails, its Contents are indexed one by one. Contents 
+ * that still can't be indexed are retried along with the next update. 
+ * </p>
  * @see ContentIndex
  */
-public class HibernateContentIndexer extends HibernateDaoSupport 
-		implements ContentIndexer {
+public class HibernateContentIndexer extends HibernateDaoSupport
+		implements ContentIndexer, DisposableBean {
 
 	private Logger log = LoggerFactory.getLogger(HibernateContentIndexer.class);
-	
+
 	private Map<String, ClassMetadata> metaDataMap = Generics.newHashMap();
+
+	private PlatformTransactionManager transactionManager;
+
+	private int batchSize = 50;
+
+	private boolean async = true;
+
+	private ExecutorService executor = Executors.newSingleThreadExecutor(
+			new CustomizableThreadFactory("ContentIndexer-"));
 	
+	private Set<Long> failedIds = Collections.synchronizedSet(
+			Generics.<Long>newLinkedHashSet());
+
+	public void setTransactionManager(PlatformTransactionManager transactionManager) {
+		this.transactionManager = transactionManager;
+	}
+
+	/**
+	 * Sets the number of index rows that are written before the session
+	 * is flushed and cleared. Default is <code>50</code>.
+	 */
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Sets whether the index should be updated in a background thread.
+	 * Otherwise the update is performed by the committing thread.
+	 * Default is <code>true</code>.
+	 */
+	public void setAsync(boolean async) {
+		this.async = async;
+	}
+
+	public void destroy() throws Exception {
+		executor.shutdown();
+	}
+
 	public void contentCreated(Content content) {
-		Object index = createIndex(content);
-		if (index != null) {
-			getSession().save(index);
-		}
+		contentModified(content);
 	}
 
+	/**
+	 * Deletes the index row in the current transaction, so that it never 
+	 * refers to a Content that no longer exists.
+	 */
 	public void contentDeleted(Content content) {
-		Object index = loadIndexByContent(content);
-		if (index != null) {
-			getSession().delete(index);
+		ClassMetadata meta = getIndexClassMetadata(content);
+		if (meta != null) {
+			IndexUpdates updates = (IndexUpdates) 
+					TransactionSynchronizationManager.getResource(this);
+			
+			if (updates != null) {
+				updates.remove(content.getId());
+			}
+			failedIds.remove(content.getId());
+			Object index = getSession().get(meta.getEntityName(), content.getId());
+			if (index != null) {
+				getSession().delete(index);
+			}
 		}
 	}
 
 	public void contentModified(Content content) {
-		contentDeleted(content);
-		contentCreated(content);
+		if (getIndexClassMetadata(content) != null) {
+			IndexUpdates updates = getTransactionalUpdates();
+			if (updates != null) {
+				updates.modify(content.getId());
+			}
+			else {
+				updates = new IndexUpdates();
+				updates.modify(content.getId());
+				scheduleUpdates(updates);
+			}
+		}
+	}
+
+	/**
+	 * Re-creates the index entries of all Contents. The Contents are read
+	 * and processed in chunks, so that the memory usage doesn't depend on
+	 * the total number of Contents.
+	 */
+	public void rebuildIndex() {
+		schedule(new Runnable() {
+			public void run() {
+				log.info("Rebuilding the content index ...");
+				failedIds.clear();
+				int count = 0;
+				StatelessSession session = getSessionFactory().openStatelessSession();
+				try {
+					ScrollableResults ids = session.createQuery(
+							"select id from " + Content.class.getName())
+							.scroll(ScrollMode.FORWARD_ONLY);
+
+					IndexUpdates updates = new IndexUpdates();
+					while (ids.next()) {
+						updates.modify(ids.getLong(0));
+						if (updates.size() == batchSize) {
+							applyUpdates(updates);
+							updates = new IndexUpdates();
+						}
+						count++;
+					}
+					applyUpdates(updates);
+				}
+				finally {
+					session.close();
+				}
+				log.info("Content index rebuilt, {} Contents processed", count);
+			}
+		});
+	}
+
+	/**
+	 * Returns the updates collected for the current transaction. Registers
+	 * a synchronization that schedules the updates after the transaction
+	 * has been committed. Returns <code>null</code> if no synchronization
+	 * is active.
+	 */
+	private IndexUpdates getTransactionalUpdates() {
+		if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+			return null;
+		}
+		IndexUpdates updates = (IndexUpdates) TransactionSynchronizationManager.getResource(this);
+		if (updates == null) {
+			final IndexUpdates newUpdates = new IndexUpdates();
+			TransactionSynchronizationManager.bindResource(this, newUpdates);
+			TransactionSynchronizationManager.registerSynchronization(
+					new TransactionSynchronizationAdapter() {
+
+				@Override
+				public void afterCompletion(int status) {
+					TransactionSynchronizationManager.unbindResourceIfPossible(
+							HibernateContentIndexer.this);
+
+					if (status == STATUS_COMMITTED) {
+						scheduleUpdates(newUpdates);
+					}
+				}
+			});
+			updates = newUpdates;
+		}
+		return updates;
+	}
+
+	private void scheduleUpdates(final IndexUpdates updates) {
+		schedule(new Runnable() {
+			public void run() {
+				applyUpdates(updates);
+			}
+		});
+	}
+
+	private void schedule(Runnable task) {
+		if (async) {
+			executor.execute(task);
+		}
+		else {
+			task.run();
+		}
+	}
+
+	/**
+	 * Returns the number of Contents that could not be indexed and are 
+	 * retried with the next update.
+	 */
+	public int getFailedCount() {
+		return failedIds.size();
 	}
 	
-	private Object createIndex(Content content) {
+	private void applyUpdates(IndexUpdates updates) {
+		Set<Long> ids = updates.getIds();
+		synchronized (failedIds) {
+			ids.addAll(failedIds);
+			failedIds.clear();
+		}
+		List<Long> list = Generics.newArrayList(ids);
+		for (int i = 0; i < list.size(); i += batchSize) {
+			List<Long> chunk = list.subList(i, Math.min(i + batchSize, list.size()));
+			try {
+				updateIndexesInTransaction(chunk);
+			}
+			catch (RuntimeException e) {
+				log.warn("Failed to update the content index, " 
+						+ "retrying Contents one by one", e);
+				
+				for (Long id : chunk) {
+					try {
+						updateIndexesInTransaction(Collections.singletonList(id));
+					}
+					catch (RuntimeException e2) {
+						log.error("Failed to index Content " + id, e2);
+						failedIds.add(id);
+					}
+				}
+			}
+		}
+	}
+	
+	private void updateIndexesInTransaction(final List<Long> ids) {
+		// A new transaction is required, as this method may be invoked by a 
+		// synchronization of the transaction that has just been completed
+		TransactionTemplate tx = new TransactionTemplate(transactionManager);
+		tx.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+		tx.execute(new TransactionCallbackWithoutResult() {
+			@Override
+			protected void doInTransactionWithoutResult(TransactionStatus status) {
+				updateIndexes(ids);
+			}
+		});
+	}
+
+	/**
+	 * Creates the index entities for the Contents with the given ids.
+	 * Rows that already exist are updated, all others are inserted.
+	 */
+	@SuppressWarnings("unchecked")
+	private void updateIndexes(List<Long> ids) {
+		Session session = getSession();
+		List<Content> contents = session.createQuery("from "
+				+ Content.class.getName() + " where id in (:ids)")
+				.setParameterList("ids", ids)
+				.list();
+
+		Map<String, List<ContentIndex>> indexesByEntity = Generics.newHashMap();
+		for (Content content : contents) {
+			ClassMetadata meta = getIndexClassMetadata(content);
+			if (meta != null) {
+				List<ContentIndex> indexes = indexesByEntity.get(meta.getEntityName());
+				if (indexes == null) {
+					indexes = Generics.newArrayList();
+					indexesByEntity.put(meta.getEntityName(), indexes);
+				}
+				indexes.add(createIndex(content, meta));
+			}
+		}
+		for (Map.Entry<String, List<ContentIndex>> entry : indexesByEntity.entrySet()) {
+			List<Long> existingIds = session.createQuery("select id from "
+					+ entry.getKey() + " where id in (:ids)")
+					.setParameterList("ids", ids)
+					.list();
+
+			Set<Long> existing = Generics.newHashSet(existingIds);
+			for (ContentIndex index : entry.getValue()) {
+				if (existing.contains(index.getContent().getId())) {
+					session.update(entry.getKey(), index);
+				}
+				else {
+					session.save(entry.getKey(), index);
+				}
+			}
+		}
+		session.flush();
+		session.clear();
+	}
+
+	private ContentIndex createIndex(Content content, ClassMetadata meta) {
+		Object owner = content.getContainer().getOwner();
+		String ownerClassName = Hibernate.getClass(owner).getName();
+		ContentIndex index = (ContentIndex) meta.instantiate(content.getId(), POJO);
+		String ownerProperty = StringUtils.uncapitalize(StringUtils.unqualify(ownerClassName));
+		meta.setPropertyValue(index, ownerProperty, owner, POJO);
+		index.setContent(content);
+		return index;
+	}
+
+	private ClassMetadata getIndexClassMetadata(Content content) {
 		ContentContainer container = content.getContainer();
 		if (container != null) {
 			Object owner = container.getOwner();
 			if (owner != null) {
-				String ownerClassName = Hibernate.getClass(owner).getName();
-				ClassMetadata meta = getIndexClassMetadata(ownerClassName);
-				if (meta != null) {
-					ContentIndex index = (ContentIndex) meta.instantiate(content.getId(), POJO);
-					String ownerProperty = StringUtils.uncapitalize(StringUtils.unqualify(ownerClassName));
-					meta.setPropertyValue(index, ownerProperty, owner, POJO);
-					index.setContent(content);					
-					return index;
-				}
+				return getIndexClassMetadata(Hibernate.getClass(owner).getName());
 			}
 		}
 		return null;
 	}
-		
+
 	private ClassMetadata getIndexClassMetadata(String ownerClassName) {
-		if (metaDataMap.containsKey(ownerClassName)) {
-			return metaDataMap.get(ownerClassName);
+		synchronized (metaDataMap) {
+			if (metaDataMap.containsKey(ownerClassName)) {
+				return metaDataMap.get(ownerClassName);
+			}
 		}
 		String indexClassName = ownerClassName  + "ContentIndex";
 		ClassMetadata meta = getSessionFactory().getClassMetadata(indexClassName);
@@ -102,23 +372,34 @@ public class HibernateContentIndexer extends HibernateDaoSupport
 						"indexes but does not extend ContentIndex.", indexClass);
 			}
 		}
-		metaDataMap.put(ownerClassName, meta);
+		synchronized (metaDataMap) {
+			metaDataMap.put(ownerClassName, meta);
+		}
 		return meta;
 	}
 
-	private Object loadIndexByContent(Content content) {
-		ContentContainer container = content.getContainer();
-		if (container != null) {
-			Object owner = container.getOwner();
-			if (owner != null) {
-				String ownerClassName = Hibernate.getClass(owner).getName();
-				ClassMetadata meta = getIndexClassMetadata(ownerClassName);
-				if (meta != null) {
-					return getSession().get(meta.getEntityName(), content.getId());
-				}
-			}
+	/**
+	 * Ids of new and modified Contents that have not been indexed yet.
+	 */
+	private static class IndexUpdates {
+
+		private Set<Long> modified = Generics.newLinkedHashSet();
+
+		public synchronized void modify(Long id) {
+			modified.add(id);
 		}
-		return null;
-	}	
-	
+
+		public synchronized void remove(Long id) {
+			modified.remove(id);
+		}
+		
+		public synchronized int size() {
+			return modified.size();
+		}
+
+		public synchronized Set<Long> getIds() {
+			return Generics.newLinkedHashSet(modified);
+		}
+	}
+
 }
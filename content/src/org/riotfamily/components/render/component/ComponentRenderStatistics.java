@@ -0,0 +1,90 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.riotfamily.components.render.component;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.riotfamily.components.model.Component;
+
+/**
+ * Collects the time spent rendering components.
+ */
+public class ComponentRenderStatistics {
+
+	private AtomicLong renderCount = new AtomicLong();
+	
+	private AtomicLong totalRenderTime = new AtomicLong();
+	
+	private AtomicReference<SlowestComponent> slowestComponent = 
+			new AtomicReference<SlowestComponent>();
+	
+	public void componentRendered(Component component, long time) {
+		renderCount.incrementAndGet();
+		totalRenderTime.addAndGet(time);
+		SlowestComponent slowest = slowestComponent.get();
+		while (slowest == null || time > slowest.time) {
+			String name = component.getType() + " [" 
+					+ component.getCompositeId() + "]";
+			
+			if (slowestComponent.compareAndSet(slowest, 
+					new SlowestComponent(name, time))) {
+				
+				break;
+			}
+			slowest = slowestComponent.get();
+		}
+	}
+	
+	public void reset() {
+		renderCount.set(0);
+		totalRenderTime.set(0);
+		slowestComponent.set(null);
+	}
+
+	public long getRenderCount() {
+		return renderCount.longValue();
+	}
+	
+	public long getTotalRenderTime() {
+		return totalRenderTime.longValue();
+	}
+	
+	public long getAverageRenderTime() {
+		long count = renderCount.longValue();
+		return count > 0 ? totalRenderTime.longValue() / count : 0;
+	}
+	
+	public long getMaxRenderTime() {
+		SlowestComponent slowest = slowestComponent.get();
+		return slowest != null ? slowest.time : 0;
+	}
+	
+	public String getSlowestComponent() {
+		SlowestComponent slowest = slowestComponent.get();
+		return slowest != null ? slowest.name : null;
+	}
+	
+	private static class SlowestComponent {
+		
+		private String name;
+		
+		private long time;
+
+		SlowestComponent(String name, long time) {
+			this.name = name;
+			this.time = time;
+		}
+	}
+	
+}
@@ -15,6 +15,8 @@ package org.riotfamily.components.render.component;
 import java.util.HashMap;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -23,11 +25,17 @@ import org.riotfamily.common.web.mvc.view.ViewResolutionException;
 import org.riotfamily.common.web.mvc.view.ViewResolverHelper;
 import org.riotfamily.components.model.Component;
 import org.springframework.web.servlet.View;
+import org.springframework.web.servlet.support.RequestContextUtils;
 
 /**
  * ComponentRenderer implementation that resolves a view-name just like 
  * Spring's DispatcherServlet and renders the view passing the 
  * Component's properties as model.
+ * <p>
+ * Resolved views are cached per component type and locale. The cache is 
+ * cleared whenever a new {@link ViewResolverHelper} is set, which happens 
+ * each time the servlet context is (re-)loaded.
+ * </p>
  */
 public class ViewComponentRenderer extends AbstractComponentRenderer {
 
@@ -37,6 +45,9 @@ public class ViewComponentRenderer extends AbstractComponentRenderer {
 	
 	private ViewResolverHelper viewResolverHelper;
 	
+	private ConcurrentMap<Locale, ConcurrentMap<String, View>> viewCache = 
+			new ConcurrentHashMap<Locale, ConcurrentMap<String, View>>();
+	
 	public void setViewNamePrefix(String viewNamePrefix) {
 		this.viewNamePrefix = viewNamePrefix;
 	}
@@ -47,18 +58,54 @@ public class ViewComponentRenderer extends AbstractComponentRenderer {
 
 	public void setViewResolverHelper(ViewResolverHelper viewResolverHelper) {
 		this.viewResolverHelper = viewResolverHelper;
+		clearViewCache();
+	}
+	
+	public void clearViewCache() {
+		viewCache.clear();
 	}
 	
 	public View getView(String type) {
+		return getView(type, Locale.getDefault());
+	}
+	
+	/**
+	 * Returns the view for the given component type and locale, or 
+	 * <code>null</code> if the view can't be resolved.
+	 */
+	public View getView(String type, Locale locale) {
 		try {
-			String viewName = viewNamePrefix + type + viewNameSuffix;
-			return viewResolverHelper.resolveView(Locale.getDefault(), viewName);
+			return resolveView(type, locale);
 		}
 		catch (ViewResolutionException e) {
 			return null;
 		}
 	}
 	
+	/**
+	 * Returns the view for the given component type. Views that could not
+	 * be resolved are not cached, so that templates can be added at runtime.
+	 */
+	protected View resolveView(String type, Locale locale) 
+			throws ViewResolutionException {
+		
+		ConcurrentMap<String, View> views = viewCache.get(locale);
+		if (views == null) {
+			views = new ConcurrentHashMap<String, View>();
+			ConcurrentMap<String, View> existing = viewCache.putIfAbsent(locale, views);
+			if (existing != null) {
+				views = existing;
+			}
+		}
+		View view = views.get(type);
+		if (view == null) {
+			String viewName = viewNamePrefix + type + viewNameSuffix;
+			view = viewResolverHelper.resolveView(locale, viewName);
+			views.put(type, view);
+		}
+		return view;
+	}
+	
 	@Override
 	protected void renderInternal(Component component, 
 			HttpServletRequest request, HttpServletResponse response) 
@@ -73,8 +120,9 @@ public class ViewComponentRenderer extends AbstractComponentRenderer {
 		model.put(LIST_SIZE, component.getList().size());
 		
 		try {
-			String viewName = viewNamePrefix + component.getType() + viewNameSuffix;
-			View view = viewResolverHelper.resolveView(request, viewName);
+			View view = resolveView(component.getType(), 
+					RequestContextUtils.getLocale(request));
+			
 			view.render(model, request, response);
 		}
 		catch (ViewResolutionException e) {
@@ -13,6 +13,7 @@
 package org.riotfamily.components.render.list;
 
 import java.io.StringWriter;
+import java.io.Writer;
 import java.util.Map;
 
 import javax.servlet.http.HttpServletRequest;
@@ -89,6 +90,22 @@ public class ComponentListRenderer {
 			HttpServletResponse response) 
 			throws Exception {
 
+		StringWriter sw = new StringWriter();
+		renderComponents(contentMap, key, config, request, response, sw);
+		return sw.toString();
+	}
+	
+	/**
+	 * Renders the list to the given Writer. In live mode the components are 
+	 * streamed directly to the Writer, whereas in edit mode the output is 
+	 * buffered, so that nothing is written if the list can't be rendered.
+	 */
+	public void renderComponents(ContentMap contentMap, 
+			String key, ComponentListConfig config,
+			HttpServletRequest request,
+			HttpServletResponse response, Writer out) 
+			throws Exception {
+
 		ComponentList list;
 		RenderStrategy strategy = liveModeRenderStrategy;
 		list = (ComponentList) contentMap.get(key);
@@ -103,11 +120,16 @@ public class ComponentListRenderer {
 			}
 		}
 		
-		StringWriter sw = new StringWriter();
 		if (list != null) {
-			strategy.render(list, config, request, new CapturingResponseWrapper(response, sw));
+			if (strategy == liveModeRenderStrategy) {
+				strategy.render(list, config, request, new CapturingResponseWrapper(response, out));
+			}
+			else {
+				StringWriter sw = new StringWriter();
+				strategy.render(list, config, request, new CapturingResponseWrapper(response, sw));
+				out.write(sw.toString());
+			}
 		}
-		return sw.toString();
 	}
 
 }
@@ -15,22 +15,72 @@ package org.riotfamily.components.render.list;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.riotfamily.cachius.CacheService;
+import org.riotfamily.common.web.cache.tags.CacheTagUtils;
+import org.riotfamily.components.cache.ComponentCacheHandler;
 import org.riotfamily.components.config.ComponentListConfig;
 import org.riotfamily.components.model.Component;
 import org.riotfamily.components.model.ComponentList;
+import org.riotfamily.components.render.component.ComponentRenderStatistics;
 import org.riotfamily.components.render.component.ComponentRenderer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * RenderStrategy that renders all components of a list one after another.
+ * If a {@link CacheService} is set and <code>cacheFragments</code> is 
+ * enabled, the output of each component is cached as separate item, so 
+ * that unmodified components don't need to be re-rendered when the 
+ * enclosing page is updated.
+ */
 public class DefaultRenderStrategy implements RenderStrategy {
 	
 	protected Logger log = LoggerFactory.getLogger(getClass());
 	
 	private ComponentRenderer renderer;
 	
+	private ComponentRenderStatistics statistics = new ComponentRenderStatistics();
+	
+	private CacheService cacheService;
+	
+	private String cacheRegion;
+	
+	private boolean cacheFragments;
+	
 	public DefaultRenderStrategy(ComponentRenderer renderer) {
 		this.renderer = renderer;
 	}
+	
+	public void setCacheService(CacheService cacheService) {
+		this.cacheService = cacheService;
+	}
+	
+	/**
+	 * Sets the Cachius region used to store the component fragments.
+	 * If not set, the default region is used.
+	 */
+	public void setCacheRegion(String cacheRegion) {
+		this.cacheRegion = cacheRegion;
+	}
+
+	/**
+	 * Sets whether the output of each component should be cached. 
+	 * Only enable this if the components don't render request-specific 
+	 * content. As the cache key does not include the position of a 
+	 * component, templates must not depend on the <code>position</code> or
+	 * <code>listSize</code> either. Default is <code>false</code>.
+	 */
+	public void setCacheFragments(boolean cacheFragments) {
+		this.cacheFragments = cacheFragments;
+	}
+	
+	public ComponentRenderStatistics getStatistics() {
+		return statistics;
+	}
+	
+	public void setStatistics(ComponentRenderStatistics statistics) {
+		this.statistics = statistics;
+	}
 		
 	public void render(ComponentList list,
 			ComponentListConfig config,
@@ -42,7 +92,11 @@ public class DefaultRenderStrategy implements RenderStrategy {
 			return;
 		}
 		for (Component component : list) {
+			long start = System.currentTimeMillis();
 			renderComponent(component, config, request, response);
+			long time = System.currentTimeMillis() - start;
+			statistics.componentRendered(component, time);
+			log.debug("Rendered component {} in {} ms", component.getType(), time);
 		}
 	}
 	
@@ -56,7 +110,14 @@ public class DefaultRenderStrategy implements RenderStrategy {
 			ComponentListConfig config, HttpServletRequest request, 
 			HttpServletResponse response) throws Exception {
 		
-		renderer.render(component, request, response);
+		if (cacheFragments && cacheService != null) {
+			CacheTagUtils.tag(component.getContent());
+			cacheService.handle(new ComponentCacheHandler(component, renderer, 
+					cacheRegion, request, response));
+		}
+		else {
+			renderer.render(component, request, response);
+		}
 	}
 
 }
@@ -0,0 +1,345 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.riotfamily.components.render.list;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.hibernate.FlushMode;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.riotfamily.cachius.CacheContext;
+import org.riotfamily.cachius.CacheItem;
+import org.riotfamily.common.util.Generics;
+import org.riotfamily.common.web.support.CapturingResponseWrapper;
+import org.riotfamily.common.web.support.RequestHolder;
+import org.riotfamily.components.config.ComponentListConfig;
+import org.riotfamily.components.model.Component;
+import org.riotfamily.components.model.ComponentList;
+import org.riotfamily.components.render.component.ComponentRenderer;
+import org.riotfamily.components.support.ForkedRequestWrapper;
+import org.riotfamily.core.security.auth.RiotUser;
+import org.riotfamily.core.security.session.SecurityContext;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.context.i18n.LocaleContext;
+import org.springframework.context.i18n.LocaleContextHolder;
+import org.springframework.orm.hibernate3.SessionFactoryUtils;
+import org.springframework.orm.hibernate3.SessionHolder;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
+
+/**
+ * RenderStrategy that renders the components of a list concurrently. Each
+ * component is rendered into a separate buffer by a bounded pool of worker
+ * threads. The buffers are written to the response in the list's order.
+ * <p>
+ * Each worker gets its own copy of the request attributes, its own
+ * read-only Hibernate session and the current RiotUser, Locale and Cachius
+ * item. The component is re-loaded by the worker's session, so that no
+ * entity is shared between two sessions. Cache tags collected by the 
+ * workers are merged into the page's cache item. If the pool is saturated,
+ * or if a worker fails, the component is rendered by the calling thread.
+ * </p>
+ * <p>
+ * The configured timeout applies to the whole request, including nested
+ * lists. Components that haven't been rendered when it has elapsed are 
+ * skipped and the page is flagged as erroneous, so that the incomplete 
+ * output is not cached. The request and response are detached from the 
+ * skipped workers, so that they can't access them once the request has 
+ * been completed.
+ * </p>
+ * <p>
+ * Lists that are rendered by a worker thread (i.e. lists nested inside a
+ * component) are rendered sequentially by that worker, so that workers 
+ * never wait for tasks queued behind them in the same pool.
+ * </p>
+ */
+public class ParallelRenderStrategy extends DefaultRenderStrategy
+		implements InitializingBean, DisposableBean {
+
+	private SessionFactory sessionFactory;
+
+	private int poolSize = 4;
+
+	private int queueCapacity = 100;
+
+	private static final String DEADLINE_ATTRIBUTE = 
+			ParallelRenderStrategy.class.getName() + ".deadline";
+	
+	private static final long DETACH_TIMEOUT = 1000;
+	
+	private static final ThreadLocal<Boolean> worker = new ThreadLocal<Boolean>();
+	
+	private long timeout = 10000;
+
+	private ThreadPoolExecutor executor;
+
+	public ParallelRenderStrategy(ComponentRenderer renderer,
+			SessionFactory sessionFactory) {
+
+		super(renderer);
+		this.sessionFactory = sessionFactory;
+	}
+
+	/**
+	 * Sets the number of worker threads. Default is <code>4</code>.
+	 */
+	public void setPoolSize(int poolSize) {
+		this.poolSize = poolSize;
+	}
+
+	/**
+	 * Sets the number of components that may wait for a free worker.
+	 * Default is <code>100</code>.
+	 */
+	public void setQueueCapacity(int queueCapacity) {
+		this.queueCapacity = queueCapacity;
+	}
+
+	/**
+	 * Sets the maximum time in milliseconds to wait for all components
+	 * of a request to be rendered. Default is <code>10000</code>.
+	 */
+	public void setTimeout(long timeout) {
+		this.timeout = timeout;
+	}
+
+	public void afterPropertiesSet() throws Exception {
+		executor = new ThreadPoolExecutor(poolSize, poolSize,
+				60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(queueCapacity),
+				new CustomizableThreadFactory("ComponentRenderer-"));
+	}
+
+	public void destroy() throws Exception {
+		executor.shutdownNow();
+	}
+
+	@Override
+	public void render(ComponentList list, ComponentListConfig config,
+			HttpServletRequest request, HttpServletResponse response)
+			throws Exception {
+
+		if (list == null || list.size() < 2 || list.getContent().getId() == null
+				|| worker.get() != null) {
+			
+			super.render(list, config, request, response);
+			return;
+		}
+
+		// Set the deadline before the requests are forked, so that the 
+		// workers' copies of the request attributes contain it
+		long deadline = getDeadline(request);
+		long detachDeadline = 0;
+		List<RenderTask> tasks = Generics.newArrayList(list.size());
+		List<Future<String>> futures = Generics.newArrayList(list.size());
+		for (Component component : list) {
+			RenderTask task = new RenderTask(component, config, request, response);
+			Future<String> future = null;
+			try {
+				future = executor.submit(task);
+			}
+			catch (RejectedExecutionException e) {
+				log.debug("Pool saturated, rendering {} in calling thread",
+						component.getCompositeId());
+			}
+			tasks.add(task);
+			futures.add(future);
+		}
+
+		PrintWriter out = response.getWriter();
+		for (int i = 0; i < tasks.size(); i++) {
+			RenderTask task = tasks.get(i);
+			Future<String> future = futures.get(i);
+			if (future == null) {
+				renderInCallingThread(task.component, config, request, response);
+				continue;
+			}
+			try {
+				long remaining = Math.max(deadline - System.currentTimeMillis(), 0);
+				String html = future.get(remaining, TimeUnit.MILLISECONDS);
+				CacheContext.join(task.cacheItem);
+				out.write(html);
+			}
+			catch (TimeoutException e) {
+				future.cancel(true);
+				if (detachDeadline == 0) {
+					detachDeadline = System.currentTimeMillis() + DETACH_TIMEOUT;
+				}
+				task.detach(detachDeadline);
+				log.warn("Timeout - Skipping component {}",
+						task.component.getCompositeId());
+
+				CacheContext.error();
+			}
+			catch (ExecutionException e) {
+				log.warn("Error rendering component " 
+						+ task.component.getCompositeId() 
+						+ ", retrying in calling thread", e.getCause());
+				
+				renderInCallingThread(task.component, config, request, response);
+			}
+		}
+	}
+	
+	/**
+	 * Returns the time at which all components of the current request must
+	 * have been rendered. The deadline is stored as request attribute, so 
+	 * that it is shared by all lists of the request.
+	 */
+	private long getDeadline(HttpServletRequest request) {
+		Long deadline = (Long) request.getAttribute(DEADLINE_ATTRIBUTE);
+		if (deadline == null) {
+			deadline = System.currentTimeMillis() + timeout;
+			request.setAttribute(DEADLINE_ATTRIBUTE, deadline);
+		}
+		return deadline;
+	}
+
+	private void renderInCallingThread(Component component,
+			ComponentListConfig config, HttpServletRequest request,
+			HttpServletResponse response) throws Exception {
+
+		long start = System.currentTimeMillis();
+		renderComponent(component, config, request, response);
+		getStatistics().componentRendered(component,
+				System.currentTimeMillis() - start);
+	}
+
+	private class RenderTask implements Callable<String> {
+
+		private Component component;
+
+		private ComponentListConfig config;
+
+		private ForkedRequestWrapper request;
+
+		private CapturingResponseWrapper response;
+		
+		private StringWriter buffer = new StringWriter();
+		
+		private CountDownLatch done = new CountDownLatch(1);
+		
+		private volatile boolean started;
+
+		private CacheItem cacheItem;
+
+		private RiotUser user;
+
+		private LocaleContext localeContext;
+
+		public RenderTask(Component component, ComponentListConfig config,
+				HttpServletRequest request, HttpServletResponse response) {
+
+			this.component = component;
+			this.config = config;
+			this.request = new ForkedRequestWrapper(request);
+			this.response = new CapturingResponseWrapper(response, buffer);
+			this.cacheItem = CacheContext.fork();
+			this.user = SecurityContext.getCurrentUser();
+			this.localeContext = LocaleContextHolder.getLocaleContext();
+		}
+
+		public String call() throws Exception {
+			started = true;
+			worker.set(Boolean.TRUE);
+			RequestHolder.set(request, response);
+			RequestContextHolder.setRequestAttributes(
+					new ServletRequestAttributes(request));
+
+			LocaleContextHolder.setLocaleContext(localeContext);
+			SecurityContext.bindUserToCurrentThread(user);
+			CacheContext.attach(cacheItem);
+
+			Session session = SessionFactoryUtils.getNewSession(sessionFactory);
+			session.setFlushMode(FlushMode.MANUAL);
+			TransactionSynchronizationManager.bindResource(sessionFactory,
+					new SessionHolder(session));
+			try {
+				long start = System.currentTimeMillis();
+				Component local = Component.load(component.getCompositeId());
+				renderComponent(local, config, request, response);
+				response.flush();
+				getStatistics().componentRendered(local,
+						System.currentTimeMillis() - start);
+
+				return buffer.toString();
+			}
+			finally {
+				TransactionSynchronizationManager.unbindResource(sessionFactory);
+				SessionFactoryUtils.closeSession(session);
+				CacheContext.detach();
+				SecurityContext.resetUser();
+				LocaleContextHolder.resetLocaleContext();
+				RequestContextHolder.resetRequestAttributes();
+				RequestHolder.unset();
+				worker.remove();
+				done.countDown();
+			}
+		}
+		
+		/**
+		 * Replaces the request and response of a cancelled task with 
+		 * stubs that throw an IllegalStateException. If the task has already
+		 * been started, waits until the given time for the worker to finish.
+		 * Tasks that were cancelled while still queued are never run.
+		 */
+		public void detach(long waitUntil) {
+			request.setRequest(detachedProxy(HttpServletRequest.class));
+			response.setResponse(detachedProxy(HttpServletResponse.class));
+			if (!started) {
+				return;
+			}
+			try {
+				long remaining = Math.max(waitUntil - System.currentTimeMillis(), 0);
+				if (!done.await(remaining, TimeUnit.MILLISECONDS)) {
+					log.warn("Cancelled worker for component {} is still running",
+							component.getCompositeId());
+				}
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+	
+	private static <T> T detachedProxy(Class<T> iface) {
+		return iface.cast(Proxy.newProxyInstance(iface.getClassLoader(), 
+				new Class<?>[] { iface }, new InvocationHandler() {
+			
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				throw new IllegalStateException("The request has timed out");
+			}
+		}));
+	}
+
+}
@@ -0,0 +1,46 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.riotfamily.components.riot.command;
+
+import org.riotfamily.components.index.HibernateContentIndexer;
+import org.riotfamily.core.screen.list.command.CommandContext;
+import org.riotfamily.core.screen.list.command.CommandResult;
+import org.riotfamily.core.screen.list.command.Selection;
+import org.riotfamily.core.screen.list.command.impl.support.AbstractCommand;
+import org.riotfamily.core.screen.list.command.result.NotificationResult;
+
+/**
+ * Command that re-creates all ContentIndex entries.
+ */
+public class RebuildContentIndexCommand extends AbstractCommand {
+
+	private HibernateContentIndexer indexer;
+	
+	public RebuildContentIndexCommand(HibernateContentIndexer indexer) {
+		this.indexer = indexer;
+	}
+
+	@Override
+	protected String getIcon() {
+		return "arrow_refresh";
+	}
+	
+	public CommandResult execute(CommandContext context, Selection selection)
+			throws Exception {
+		
+		indexer.rebuildIndex();
+		return new NotificationResult(context, this)
+				.setDefaultMessage("The content index is being rebuilt.");
+	}
+
+}
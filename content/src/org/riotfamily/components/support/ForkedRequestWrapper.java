@@ -0,0 +1,69 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.riotfamily.components.support;
+
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+
+import org.riotfamily.common.util.Generics;
+
+/**
+ * Request wrapper that can be handed over to another thread. The wrapper 
+ * takes a snapshot of the request attributes when it is created and keeps 
+ * all subsequent modifications to itself, so that concurrent threads don't 
+ * see each other's attributes.
+ */
+public class ForkedRequestWrapper extends HttpServletRequestWrapper {
+
+	private Map<String, Object> attributes = Generics.newHashMap();
+	
+	@SuppressWarnings("unchecked")
+	public ForkedRequestWrapper(HttpServletRequest request) {
+		super(request);
+		Enumeration<String> names = request.getAttributeNames();
+		while (names.hasMoreElements()) {
+			String name = names.nextElement();
+			attributes.put(name, request.getAttribute(name));
+		}
+	}
+
+	@Override
+	public Object getAttribute(String name) {
+		return attributes.get(name);
+	}
+	
+	@Override
+	public Enumeration<?> getAttributeNames() {
+		return Collections.enumeration(attributes.keySet());
+	}
+	
+	@Override
+	public void setAttribute(String name, Object value) {
+		if (value == null) {
+			attributes.remove(name);
+		}
+		else {
+			attributes.put(name, value);
+		}
+	}
+	
+	@Override
+	public void removeAttribute(String name) {
+		attributes.remove(name);
+	}
+	
+}
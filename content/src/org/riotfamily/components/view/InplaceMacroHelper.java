@@ -13,6 +13,7 @@
 package org.riotfamily.components.view;
 
 import java.io.StringWriter;
+import java.io.Writer;
 import java.util.List;
 
 import javax.servlet.http.HttpServletRequest;
@@ -26,6 +27,8 @@ import org.riotfamily.components.render.component.ComponentRenderer;
 import org.riotfamily.components.render.list.ComponentListRenderer;
 import org.riotfamily.components.support.EditModeUtils;
 
+import freemarker.core.Environment;
+
 /**
  * @author Felix Gnass [fgnass at neteye dot de]
  * @since 6.5
@@ -100,8 +103,18 @@ public class InplaceMacroHelper {
 		ComponentListConfig config = new ComponentListConfig(minComponents, 
 				maxComponents, initalComponentTypes, validComponentTypes, x, y);
 		
-		return componentListRenderer.renderComponents(contentMap, key, config, 
-				request, response);
+		Environment env = Environment.getCurrentEnvironment();
+		if (env == null) {
+			return componentListRenderer.renderComponents(contentMap, key, config, 
+					request, response);
+		}
+		
+		// Stream the list directly into the output of the calling template
+		Writer out = env.getOut();
+		componentListRenderer.renderComponents(contentMap, key, config, 
+				request, response, out);
+		
+		return null;
 	}
 	
 	public String renderComponent(Component component) throws Exception {
@@ -0,0 +1,98 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.riotfamily.pages.event;
+
+import java.util.Date;
+
+import javax.servlet.ServletContext;
+
+import org.hibernate.Session;
+import org.riotfamily.common.hibernate.TypedEntityListener;
+import org.riotfamily.components.event.ContentChangedEvent;
+import org.riotfamily.components.model.ContentContainer;
+import org.riotfamily.pages.model.Page;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.ApplicationEventPublisherAware;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.web.context.ServletContextAware;
+
+/**
+ * EntityListener that publishes a {@link ContentChangedEvent} when the 
+ * content of a {@link Page} is published or unpublished. The event is 
+ * published after the transaction has been committed, so that listeners
+ * see the new state when they request the page.
+ */
+public class PagePublishListener extends TypedEntityListener<ContentContainer>
+		implements ApplicationEventPublisherAware, ServletContextAware {
+
+	private ApplicationEventPublisher eventPublisher;
+	
+	private String contextPath = "";
+	
+	public void setApplicationEventPublisher(ApplicationEventPublisher eventPublisher) {
+		this.eventPublisher = eventPublisher;
+	}
+	
+	public void setServletContext(ServletContext servletContext) {
+		contextPath = servletContext.getContextPath();
+	}
+	
+	@Override
+	protected void entitySaved(ContentContainer container, Session session) {
+		if (container.isPublished()) {
+			contentChanged(container);
+		}
+	}
+	
+	@Override
+	protected void entityUpdated(ContentContainer container, 
+			ContentContainer oldState, Session session) {
+		
+		if (oldState == null 
+				|| container.isPublished() != oldState.isPublished()
+				|| !sameDate(container.getLastPublished(), oldState.getLastPublished())) {
+			
+			contentChanged(container);
+		}
+	}
+	
+	private static boolean sameDate(Date d1, Date d2) {
+		if (d1 == null || d2 == null) {
+			return d1 == d2;
+		}
+		return d1.getTime() == d2.getTime();
+	}
+	
+	private void contentChanged(ContentContainer container) {
+		if (container.getOwner() instanceof Page) {
+			Page page = (Page) container.getOwner();
+			String url = page.getSite().makeAbsolute(false, null, contextPath, page.getUrl());
+			final ContentChangedEvent event = new ContentChangedEvent(page, url);
+			if (TransactionSynchronizationManager.isSynchronizationActive()) {
+				TransactionSynchronizationManager.registerSynchronization(
+						new TransactionSynchronizationAdapter() {
+					
+					@Override
+					public void afterCommit() {
+						eventPublisher.publishEvent(event);
+					}
+				});
+			}
+			else {
+				eventPublisher.publishEvent(event);
+			}
+		}
+	}
+
+}
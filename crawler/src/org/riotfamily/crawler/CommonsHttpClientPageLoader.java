@@ -17,7 +17,9 @@ import org.apache.commons.httpclient.Header;
 import org.apache.commons.httpclient.HttpClient;
 import org.apache.commons.httpclient.HttpMethodRetryHandler;
 import org.apache.commons.httpclient.HttpStatus;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
 import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
 import org.apache.commons.httpclient.params.HttpMethodParams;
 import org.riotfamily.common.web.support.ServletUtils;
 import org.slf4j.Logger;
@@ -26,22 +28,42 @@ import org.springframework.util.StringUtils;
 
 /**
  * PageLoader implementation that uses the Jakarta Commons HttpClient.
+ * Connections are pooled, so that the loader can be used by multiple
+ * threads concurrently.
  * 
  * @author Felix Gnass [fgnass at neteye dot de]
  */
-public class CommonsHttpClientPageLoader implements PageLoader {
+public class CommonsHttpClientPageLoader implements ConditionalPageLoader {
 
 	private Logger log = LoggerFactory.getLogger(CommonsHttpClientPageLoader.class);
 
-    private HttpClient client = new HttpClient();
+    private MultiThreadedHttpConnectionManager connectionManager = 
+    		new MultiThreadedHttpConnectionManager();
+    
+    private HttpClient client = new HttpClient(connectionManager);
 
     private boolean textHtmlOnly = true;
 
+	/**
+	 * Sets the maximum number of concurrent connections to a single host.
+	 */
+	public void setMaxConnectionsPerHost(int maxConnections) {
+		HttpConnectionManagerParams params = connectionManager.getParams();
+		params.setDefaultMaxConnectionsPerHost(maxConnections);
+		if (params.getMaxTotalConnections() < maxConnections) {
+			params.setMaxTotalConnections(maxConnections);
+		}
+	}
+
 	public void setTextHtmlOnly(boolean textHtmlOnly) {
 		this.textHtmlOnly = textHtmlOnly;
 	}
 
 	public PageData loadPage(Href href) {
+		return loadPage(href, null);
+	}
+	
+	public PageData loadPage(Href href, PageState previousState) {
 		String url = href.getResolvedUri();
 		PageData pageData = new PageData(href);
 		log.info("Loading page: " + url);
@@ -56,6 +78,14 @@ public class CommonsHttpClientPageLoader implements PageLoader {
 			if (StringUtils.hasText(href.getReferrerUrl())) {
 				method.addRequestHeader(ServletUtils.REFERER_HEADER, href.getReferrerUrl());
 			}
+			if (previousState != null) {
+				if (previousState.getEtag() != null) {
+					method.addRequestHeader("If-None-Match", previousState.getEtag());
+				}
+				if (previousState.getLastModified() != null) {
+					method.addRequestHeader("If-Modified-Since", previousState.getLastModified());
+				}
+			}
 			prepareMethod(method);
 			int statusCode = client.executeMethod(method);
 			pageData.setStatusCode(statusCode);
@@ -70,6 +100,9 @@ public class CommonsHttpClientPageLoader implements PageLoader {
 					}
 				}
 			}
+			else if (statusCode == HttpStatus.SC_NOT_MODIFIED) {
+				log.debug("Not modified: " + url);
+			}
 			else {
 				log.info("Status: " + statusCode);
 				Header location = method.getResponseHeader("Location");
@@ -0,0 +1,28 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.riotfamily.crawler;
+
+/**
+ * PageLoader that is able to issue conditional requests. 
+ */
+public interface ConditionalPageLoader extends PageLoader {
+
+	/**
+	 * Loads the page referenced by the given Href. If the server reports that
+	 * the page has not changed since the given state has been recorded, the
+	 * returned PageData's {@link PageData#isNotModified() isNotModified()}
+	 * method returns <code>true</code>.
+	 */
+	public PageData loadPage(Href href, PageState previousState);
+
+}
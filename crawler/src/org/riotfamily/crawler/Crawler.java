@@ -13,20 +13,68 @@
 package org.riotfamily.crawler;
 
 
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
-import org.htmlparser.util.ParserException;
+import org.riotfamily.common.util.Generics;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.context.ApplicationEvent;
 import org.springframework.context.ApplicationListener;
 import org.springframework.context.event.ApplicationEventMulticaster;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 
 /**
  * Class that crawls web pages.
+ * <p>
+ * Pages are processed in three stages: a pool of fetch threads loads the 
+ * pages, a parser thread extracts the links (and optionally builds the 
+ * document tree) and a single handler thread 
+ * passes the pages on to the {@link PageHandler}s. Hence slow handlers 
+ * don't block the fetching of further pages, while the handlers themselves
+ * are still invoked by one thread at a time. The number of pages that may 
+ * be in progress at once is limited by the 
+ * {@link #setMaxPendingPages(int) maxPendingPages} property.
+ * </p>
+ * <p>
+ * If a {@link PageStateStore} is set, the crawler remembers the ETag, 
+ * Last-Modified header, content hash and links of each page. If
+ * {@link #setIncremental(boolean) incremental} is enabled, subsequent 
+ * runs are performed incrementally: pages are requested conditionally and
+ * only new or modified pages are parsed and passed to 
+ * {@link PageHandler#handlePageIncremental(PageData)}. Pages that are no 
+ * longer reachable are reported via 
+ * {@link PageHandler#handlePageRemoved(String)}. Pages that fail to load 
+ * or respond with an error keep the links found during the previous run, 
+ * so that a transient error doesn't remove the pages below them.
+ * </p>
+ * <p>
+ * Single pages can be queued for re-processing via 
+ * {@link #pageChanged(String)}. Subsequent changes are collected until no 
+ * further change has been reported for the configured 
+ * {@link #setDebounceDelay(long) debounceDelay}. The pages are then fetched
+ * and passed to {@link PageHandler#handlePageIncremental(PageData)}. While
+ * a crawl is running, the changed pages are processed after it has 
+ * finished. 
+ * </p>
  */
-public class Crawler implements InitializingBean, ApplicationListener<ApplicationEvent>, Runnable {
+public class Crawler implements InitializingBean, DisposableBean, 
+		ApplicationListener<ApplicationEvent>, Runnable {
+
+	private static final long POLL_INTERVAL = 100;
 
 	protected Logger log = LoggerFactory.getLogger(getClass());
 
@@ -42,13 +90,57 @@ public class Crawler implements InitializingBean, ApplicationListener<Applicatio
 
 	protected long delay;
 	
+	protected int fetchThreads = 4;
+	
+	protected int maxPendingPages = 100;
+	
+	protected PageStateStore pageStateStore;
+	
+	protected boolean incremental = false;
+	
+	protected long debounceDelay = 2000;
+	
+	protected boolean parseDocuments = false;
+	
 	protected volatile boolean running;
 	
-	protected volatile int pageCount;
+	protected AtomicInteger pageCount = new AtomicInteger();
+	
+	protected AtomicInteger unchangedPageCount = new AtomicInteger();
 	
-	protected int lastPageCount;
+	protected AtomicInteger pendingPages = new AtomicInteger();
+	
+	protected volatile long startTime;
 
-	protected HrefStack hrefs = new HrefStack();
+	protected HrefQueue hrefs = new HrefQueue();
+	
+	private Map<String, PageState> previousStates = Collections.emptyMap();
+	
+	private ConcurrentMap<String, PageState> states = Generics.newConcurrentHashMap();
+	
+	private volatile boolean incrementalRun;
+	
+	private boolean completed;
+	
+	private Lock crawlLock = new ReentrantLock();
+	
+	private Set<String> changedPages = Generics.newLinkedHashSet();
+	
+	private long lastChange;
+	
+	private boolean changesScheduled;
+	
+	private ScheduledExecutorService changeExecutor;
+	
+	private HostRateLimiter rateLimiter;
+	
+	private Semaphore permits;
+	
+	private ExecutorService fetchExecutor;
+	
+	private ExecutorService parseExecutor;
+	
+	private ExecutorService handlerExecutor;
 	
 	/**
 	 * Sets the URL where the crawler should start crawling. The specified
@@ -59,17 +151,81 @@ public class Crawler implements InitializingBean, ApplicationListener<Applicatio
 	}
 
 	/**
-	 * Sets the delay between requests in milliseconds. The default value is 
-	 * <code>0</code>, which means that the crawler won't pause at all. 
-	 * You may want to increase this value in order to reduce the server load. 
+	 * Sets the minimum delay between two requests to the same host in 
+	 * milliseconds. The default value is <code>0</code>, which means that 
+	 * the crawler won't pause at all. You may want to increase this value 
+	 * in order to reduce the server load. 
 	 */
 	public void setDelay(long delay) {
 		this.delay = delay;
 	}
 
+	/**
+	 * Sets the number of threads that fetch pages concurrently. 
+	 * Default is <code>4</code>.
+	 */
+	public void setFetchThreads(int fetchThreads) {
+		this.fetchThreads = fetchThreads;
+	}
+
+	/**
+	 * Sets the maximum number of pages that may be fetched, parsed or 
+	 * waiting for the PageHandlers at the same time. Default is 
+	 * <code>100</code>.
+	 */
+	public void setMaxPendingPages(int maxPendingPages) {
+		this.maxPendingPages = maxPendingPages;
+	}
+
+	/**
+	 * Sets whether the parser thread should build the document tree of each
+	 * new or modified page. Links are extracted without building a tree, 
+	 * but PageHandlers like the search Indexer need it. Building the tree 
+	 * in advance keeps this work off the handler thread. If set to 
+	 * <code>false</code>, the tree is built on demand, so that handlers 
+	 * which only need the links (like the LinkChecker) never cause a 
+	 * second pass over the HTML. Default is <code>false</code>, the search
+	 * module enables it.
+	 */
+	public void setParseDocuments(boolean parseDocuments) {
+		this.parseDocuments = parseDocuments;
+	}
+
+	/**
+	 * Sets the number of milliseconds to wait for further changes before 
+	 * pages passed to {@link #pageChanged(String)} are processed. 
+	 * Default is <code>2000</code>.
+	 */
+	public void setDebounceDelay(long debounceDelay) {
+		this.debounceDelay = debounceDelay;
+	}
+
+	/**
+	 * Sets the PageStateStore that is used to persist the state of the 
+	 * crawled pages between two runs. If no store is set, each run is a 
+	 * full crawl.
+	 */
+	public void setPageStateStore(PageStateStore pageStateStore) {
+		this.pageStateStore = pageStateStore;
+	}
+
+	/**
+	 * Sets whether the crawler should only process pages that have changed
+	 * since the last run. Only takes effect if a 
+	 * {@link #setPageStateStore(PageStateStore) PageStateStore} is set. 
+	 * Default is <code>false</code>, as incremental runs don't invoke 
+	 * {@link PageHandler#crawlerStarted()} and 
+	 * {@link PageHandler#crawlerFinished()}, so handlers that rely on a full
+	 * pass (like the LinkChecker) only see the changed pages.
+	 */
+	public void setIncremental(boolean incremental) {
+		this.incremental = incremental;
+	}
+
 	/**
 	 * Sets the PageLoader that is used to retrieve the data. By default a
-	 * {@link CommonsHttpClientPageLoader} is used.
+	 * {@link CommonsHttpClientPageLoader} is used. As pages are loaded 
+	 * concurrently, the PageLoader must be thread-safe.
 	 */
 	public void setPageLoader(PageLoader pageLoader) {
 		this.pageLoader = pageLoader;
@@ -107,7 +263,9 @@ public class Crawler implements InitializingBean, ApplicationListener<Applicatio
 			log.warn("A startPage must be set in order to index the site.");
 		}
 		if (pageLoader == null) {
-			pageLoader = new CommonsHttpClientPageLoader();
+			CommonsHttpClientPageLoader loader = new CommonsHttpClientPageLoader();
+			loader.setMaxConnectionsPerHost(fetchThreads);
+			pageLoader = loader;
 		}
 		if (linkExtractor == null) {
 			linkExtractor = new DefaultLinkExtractor();
@@ -115,6 +273,12 @@ public class Crawler implements InitializingBean, ApplicationListener<Applicatio
 		if (linkFilter == null) {
 			linkFilter = new LocalLinkFilter();
 		}
+		changeExecutor = Executors.newSingleThreadScheduledExecutor(
+				new CustomizableThreadFactory("CrawlerChanges-"));
+	}
+	
+	public void destroy() throws Exception {
+		changeExecutor.shutdownNow();
 	}
 
 	/**
@@ -132,26 +296,124 @@ public class Crawler implements InitializingBean, ApplicationListener<Applicatio
 		if (pageHandlers == null || pageHandlers.isEmpty()) {
 			return;
 		}
-		if (running) {
+		if (!crawlLock.tryLock()) {
 			log.info("Crawler is already running.");
 			return;
 		}
 		try {
 			running = true;
-			log.info("Starting to crawl...");
-	        for (PageHandler handler : pageHandlers) {
-	        	handler.crawlerStarted();
-	        }
-			crawl();
-			for (PageHandler handler : pageHandlers) {
-	        	handler.crawlerFinished();
-	        }
+			previousStates = Collections.emptyMap();
+			if (pageStateStore != null) {
+				previousStates = pageStateStore.loadStates();
+			}
+			states.clear();
+			incrementalRun = incremental && !previousStates.isEmpty();
+			if (incrementalRun) {
+				log.info("Starting incremental crawl...");
+				crawl();
+				if (completed) {
+					handleRemovedPages();
+				}
+			}
+			else {
+				log.info("Starting to crawl...");
+		        for (PageHandler handler : pageHandlers) {
+		        	handler.crawlerStarted();
+		        }
+				crawl();
+				for (PageHandler handler : pageHandlers) {
+		        	handler.crawlerFinished();
+		        }
+			}
+			if (pageStateStore != null && completed) {
+				pageStateStore.saveStates(states);
+			}
 		}
 		finally {
+			previousStates = Collections.emptyMap();
+			states.clear();
 			running = false;
+			crawlLock.unlock();
 			log.info("Crawler is finished.");
 		}
 	}
+	
+	/**
+	 * Queues the page with the given URL for re-processing. Relative URLs
+	 * are resolved against the {@link #setStartPage(String) startPage}.
+	 */
+	public void pageChanged(String url) {
+		if (pageHandlers == null || pageHandlers.isEmpty()) {
+			return;
+		}
+		String resolvedUrl = new Href(startPage, url, null).getResolvedUri();
+		synchronized (changedPages) {
+			changedPages.add(resolvedUrl);
+			lastChange = System.currentTimeMillis();
+			if (!changesScheduled) {
+				changesScheduled = true;
+				scheduleChanges(debounceDelay);
+			}
+		}
+	}
+	
+	private void scheduleChanges(long delay) {
+		changeExecutor.schedule(new Runnable() {
+			public void run() {
+				processChangedPages();
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+	
+	private void processChangedPages() {
+		Set<String> urls;
+		synchronized (changedPages) {
+			long quietTime = System.currentTimeMillis() - lastChange;
+			if (quietTime < debounceDelay) {
+				scheduleChanges(debounceDelay - quietTime);
+				return;
+			}
+			if (!crawlLock.tryLock()) {
+				scheduleChanges(debounceDelay);
+				return;
+			}
+			urls = Generics.newLinkedHashSet(changedPages);
+			changedPages.clear();
+			changesScheduled = false;
+		}
+		try {
+			log.info("Processing " + urls.size() + " changed page(s)");
+			for (String url : urls) {
+				processChangedPage(url);
+			}
+		}
+		finally {
+			crawlLock.unlock();
+		}
+	}
+	
+	private void processChangedPage(String url) {
+		try {
+			PageData pageData = pageLoader.loadPage(new Href(null, url, null));
+			for (PageHandler handler : pageHandlers) {
+				handler.handlePageIncremental(pageData);
+			}
+		}
+		catch (RuntimeException e) {
+			log.error("Error processing changed page " + url, e);
+		}
+	}
+	
+	private void handleRemovedPages() {
+		for (String url : previousStates.keySet()) {
+			if (!states.containsKey(url)) {
+				log.debug("Page removed: " + url);
+				for (PageHandler handler : pageHandlers) {
+					handler.handlePageRemoved(url);
+				}
+			}
+		}
+	}
 
 	public void onApplicationEvent(ApplicationEvent event) {
 	}
@@ -160,59 +422,299 @@ public class Crawler implements InitializingBean, ApplicationListener<Applicatio
 		return running;
 	}
 	
+	/**
+	 * Returns the number of pages that have been crawled during the current 
+	 * (or last) run.
+	 */
+	public int getPageCount() {
+		return pageCount.get();
+	}
+	
+	/**
+	 * Returns the number of crawled pages that have not changed since the 
+	 * last run.
+	 */
+	public int getUnchangedPageCount() {
+		return unchangedPageCount.get();
+	}
+	
+	/**
+	 * Returns the number of discovered pages that have not been crawled yet.
+	 */
+	public int getRemainingPageCount() {
+		return hrefs.size() + pendingPages.get();
+	}
+	
+	/**
+	 * Returns the number of pages crawled per second during the current 
+	 * (or last) run.
+	 */
+	public float getPagesPerSecond() {
+		long elapsed = System.currentTimeMillis() - startTime;
+		if (startTime == 0 || elapsed <= 0) {
+			return 0;
+		}
+		return pageCount.get() * 1000f / elapsed;
+	}
+	
+	/**
+	 * Returns the percentage of the discovered pages that have already 
+	 * been crawled. As new links are found while crawling, the value 
+	 * may decrease.
+	 */
 	public int getProgress() {
-		if (lastPageCount > 0 && pageCount > 0) {
-			return Math.round((float) pageCount / lastPageCount * 100);
+		int crawled = pageCount.get();
+		int total = crawled + getRemainingPageCount();
+		if (total > 0) {
+			return Math.round((float) crawled / total * 100);
 		}
 		return 0;
 	}
 
 	protected void crawl() {
-		long startTime = System.currentTimeMillis();
+		startTime = System.currentTimeMillis();
 		hrefs.clear();
 		hrefs.addAbsolute(startPage, null);
-		pageCount = 0;
-	    while (hrefs.hasNext()) {
-	    	Href href = hrefs.next();
-	        PageData pageData = pageLoader.loadPage(href);
-	        if (pageData.isOk()) {
-	        	try {
-		        	pageData.parse();
-	        		for (String link : linkExtractor.extractLinks(pageData)) { 
-	        			if (linkFilter.accept(pageData.getUrl(), link)) {
-	        				hrefs.add(pageData.getUrl(), link, href.getResolvedUri());
-	        			}
-		            }
-	        	}
-	        	catch (ParserException e) {
-	        		log.error("Error parsing page", e);
-	        	}
-	        }
-	        else if (pageData.isRedirect()) {
-	        	log.debug("Redirect: " + pageData.getRedirectUrl());
-	        	if (linkFilter.accept(pageData.getUrl(), pageData.getRedirectUrl())) {
-	        		hrefs.add(pageData.getUrl(), pageData.getRedirectUrl(), href.getResolvedUri());
-	        	}
-	        }
-
-	        for (PageHandler handler : pageHandlers) {
-	        	handler.handlePage(pageData);
-	        }
-	        pageCount++;
-	        if (delay > 0) {
-	        	log.info("Waiting " + delay + "ms");
-        		try {
-					Thread.sleep(delay);
+		pageCount.set(0);
+		unchangedPageCount.set(0);
+		pendingPages.set(0);
+		completed = false;
+		rateLimiter = new HostRateLimiter(delay);
+		permits = new Semaphore(maxPendingPages);
+		fetchExecutor = Executors.newFixedThreadPool(fetchThreads,
+				new CustomizableThreadFactory("CrawlerFetch-"));
+		
+		parseExecutor = Executors.newSingleThreadExecutor(
+				new CustomizableThreadFactory("CrawlerParse-"));
+		
+		handlerExecutor = Executors.newSingleThreadExecutor(
+				new CustomizableThreadFactory("CrawlerHandler-"));
+		
+		boolean interrupted = false;
+		try {
+			while (true) {
+				permits.acquire();
+				Href href = hrefs.poll(POLL_INTERVAL);
+				if (href == null) {
+					permits.release();
+					// Pages add their links before they are completed, so 
+					// the queue can't receive new hrefs once nothing is pending
+					if (pendingPages.get() == 0 && !hrefs.hasNext()) {
+						break;
+					}
+					continue;
 				}
-				catch (InterruptedException ex) {
-					// simply proceed
+				pendingPages.incrementAndGet();
+				fetchExecutor.execute(new FetchTask(href));
+			}
+		}
+		catch (InterruptedException e) {
+			log.warn("Crawler has been interrupted");
+			interrupted = true;
+		}
+		finally {
+			shutdown(fetchExecutor, interrupted);
+			shutdown(parseExecutor, interrupted);
+			shutdown(handlerExecutor, interrupted);
+			hrefs.clear();
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		else {
+			completed = true;
+		}
+	    log.info(pageCount + " pages crawled (" + unchangedPageCount 
+	    		+ " unchanged) in " + (System.currentTimeMillis() - startTime) 
+	    		+ " ms");
+	}
+
+	private void shutdown(ExecutorService executor, boolean now) {
+		if (now) {
+			executor.shutdownNow();
+		}
+		else {
+			executor.shutdown();
+			try {
+				executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+			}
+			catch (InterruptedException e) {
+				executor.shutdownNow();
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+	
+	private void pageCompleted() {
+		pendingPages.decrementAndGet();
+		permits.release();
+	}
+	
+	/**
+	 * Extracts the links of the page, adds all accepted links to the queue 
+	 * and returns their resolved URIs.
+	 */
+	protected List<String> extractLinks(PageData pageData) {
+		List<String> links = Generics.newArrayList();
+		if (pageData.isOk()) {
+    		for (String link : linkExtractor.extractLinks(pageData)) { 
+    			if (linkFilter.accept(pageData.getUrl(), link)) {
+    				addLink(pageData, link, links);
+    			}
+            }
+        }
+        else if (pageData.isRedirect()) {
+        	log.debug("Redirect: " + pageData.getRedirectUrl());
+        	if (linkFilter.accept(pageData.getUrl(), pageData.getRedirectUrl())) {
+        		addLink(pageData, pageData.getRedirectUrl(), links);
+        	}
+        }
+		return links;
+	}
+	
+	private void addLink(PageData pageData, String link, List<String> links) {
+		Href href = new Href(pageData.getUrl(), link, pageData.getUrl());
+		hrefs.add(href);
+		links.add(href.getResolvedUri());
+	}
+	
+	/**
+	 * Checks whether the page has changed since the last run. If so, 
+	 * <code>false</code> is returned. Otherwise the links that were found 
+	 * during the last run are added to the queue.  
+	 */
+	private boolean skipUnchanged(PageData pageData) {
+		PageState previousState = previousStates.get(pageData.getUrl());
+		if (previousState == null || !previousState.matches(pageData)) {
+			return false;
+		}
+		if (pageData.isNotModified()) {
+			states.put(pageData.getUrl(), previousState);
+		}
+		else {
+			states.put(pageData.getUrl(), new PageState(pageData, previousState.getLinks()));
+		}
+		for (String link : previousState.getLinks()) {
+			hrefs.add(pageData.getUrl(), link, pageData.getUrl());
+		}
+		return true;
+	}
+	
+	/**
+	 * Keeps the state of a page that could not be loaded or returned an 
+	 * error, and adds the links found during the last run to the queue. 
+	 * Otherwise a transient error would cause all pages that are only 
+	 * reachable via this page to be reported as removed. Returns 
+	 * <code>false</code> if there is no previous state.
+	 */
+	private boolean carryOverPreviousState(String url) {
+		PageState previousState = previousStates.get(url);
+		if (!incrementalRun || previousState == null) {
+			return false;
+		}
+		states.put(url, previousState);
+		for (String link : previousState.getLinks()) {
+			hrefs.add(url, link, url);
+		}
+		return true;
+	}
+	
+	private class FetchTask implements Runnable {
+		
+		private Href href;
+		
+		public FetchTask(Href href) {
+			this.href = href;
+		}
+		
+		public void run() {
+			try {
+				rateLimiter.acquire(href.getResolvedUri());
+				PageData pageData;
+				PageState previousState = previousStates.get(href.getResolvedUri());
+				if (incrementalRun && previousState != null 
+						&& pageLoader instanceof ConditionalPageLoader) {
+					
+					pageData = ((ConditionalPageLoader) pageLoader).loadPage(
+							href, previousState);
+				}
+				else {
+					pageData = pageLoader.loadPage(href);
+				}
+				parseExecutor.execute(new ParseTask(pageData));
+			}
+			catch (InterruptedException e) {
+				pageCompleted();
+			}
+			catch (RuntimeException e) {
+				log.error("Error loading " + href, e);
+				carryOverPreviousState(href.getResolvedUri());
+				pageCompleted();
+			}
+		}
+	}
+	
+	private class ParseTask implements Runnable {
+		
+		private PageData pageData;
+		
+		public ParseTask(PageData pageData) {
+			this.pageData = pageData;
+		}
+		
+		public void run() {
+			try {
+				if (incrementalRun && skipUnchanged(pageData)) {
+					pageCount.incrementAndGet();
+					unchangedPageCount.incrementAndGet();
+					pageCompleted();
+					return;
+				}
+				if (pageData.isOk() || pageData.isRedirect() 
+						|| !carryOverPreviousState(pageData.getUrl())) {
+					
+					List<String> links = extractLinks(pageData);
+					states.put(pageData.getUrl(), new PageState(pageData, links));
 				}
-	        }
-	    }
-	    hrefs.clear();
-	    lastPageCount = pageCount;
-	    log.info(pageCount + " pages crawled in " +
-	    		(System.currentTimeMillis() - startTime) + " ms");
+				if (parseDocuments) {
+					pageData.getNodes();
+				}
+				handlerExecutor.execute(new HandlerTask(pageData));
+			}
+			catch (RuntimeException e) {
+				log.error("Error processing " + pageData.getUrl(), e);
+				pageCompleted();
+			}
+		}
+	}
+	
+	private class HandlerTask implements Runnable {
+		
+		private PageData pageData;
+		
+		public HandlerTask(PageData pageData) {
+			this.pageData = pageData;
+		}
+		
+		public void run() {
+			try {
+				for (PageHandler handler : pageHandlers) {
+					if (incrementalRun) {
+						handler.handlePageIncremental(pageData);
+					}
+					else {
+						handler.handlePage(pageData);
+					}
+		        }
+				pageCount.incrementAndGet();
+			}
+			catch (RuntimeException e) {
+				log.error("Error handling " + pageData.getUrl(), e);
+			}
+			finally {
+				pageCompleted();
+			}
+		}
 	}
 
 }
@@ -35,7 +35,10 @@ public class CrawlerController implements Controller {
 		
 		PrintWriter out = response.getWriter();
 		if (crawler.isRunning()) {
-			out.print(crawler.getProgress()  + "% completed.");
+			out.print(crawler.getProgress()  + "% completed. ");
+			out.printf("%d pages crawled, %d remaining, %.1f pages/s",
+					crawler.getPageCount(), crawler.getRemainingPageCount(),
+					crawler.getPagesPerSecond());
 		}
 		else {
 			if ("start".equals(request.getParameter("action"))) {
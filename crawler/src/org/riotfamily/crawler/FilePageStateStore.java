@@ -0,0 +1,102 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.riotfamily.crawler;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.ServletContext;
+
+import org.riotfamily.common.io.IOUtils;
+import org.riotfamily.common.util.Generics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.context.ServletContextAware;
+import org.springframework.web.util.WebUtils;
+
+/**
+ * PageStateStore that serializes the states into a file. Unless a file is
+ * explicitly set, a file named <code>crawler-state.ser</code> is created in
+ * the servlet container's temp directory.
+ */
+public class FilePageStateStore implements PageStateStore, ServletContextAware {
+
+	private Logger log = LoggerFactory.getLogger(FilePageStateStore.class);
+
+	private File file;
+
+	public void setFile(File file) {
+		this.file = file;
+	}
+
+	public void setServletContext(ServletContext servletContext) {
+		if (file == null) {
+			file = new File(WebUtils.getTempDir(servletContext), "crawler-state.ser");
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	public Map<String, PageState> loadStates() {
+		if (file != null && file.exists()) {
+			ObjectInputStream in = null;
+			try {
+				in = new ObjectInputStream(new BufferedInputStream(
+						new FileInputStream(file)));
+				
+				return (Map<String, PageState>) in.readObject();
+			}
+			catch (Exception e) {
+				log.warn("Failed to read crawler state from " + file, e);
+			}
+			finally {
+				IOUtils.closeStream(in);
+			}
+		}
+		return Generics.newHashMap();
+	}
+
+	public void saveStates(Map<String, PageState> states) {
+		if (file == null) {
+			return;
+		}
+		File tempFile = new File(file.getPath() + ".tmp");
+		ObjectOutputStream out = null;
+		try {
+			out = new ObjectOutputStream(new BufferedOutputStream(
+					new FileOutputStream(tempFile)));
+			
+			out.writeObject(new HashMap<String, PageState>(states));
+			out.close();
+			out = null;
+			if (!tempFile.renameTo(file)) {
+				file.delete();
+				tempFile.renameTo(file);
+			}
+		}
+		catch (IOException e) {
+			log.error("Failed to write crawler state to " + file, e);
+		}
+		finally {
+			IOUtils.closeStream(out);
+		}
+	}
+
+}
@@ -0,0 +1,78 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.riotfamily.crawler;
+
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.riotfamily.common.util.Generics;
+import org.riotfamily.common.web.support.ServletUtils;
+
+/**
+ * Politeness scheduler that enforces a minimum interval between two 
+ * requests to the same host. Requests to different hosts don't delay 
+ * each other.
+ */
+public class HostRateLimiter {
+
+	private long interval;
+
+	private ConcurrentMap<String, AtomicLong> nextSlots = Generics.newConcurrentHashMap();
+
+	/**
+	 * @param interval Minimum number of milliseconds between two requests
+	 * 		  to the same host
+	 */
+	public HostRateLimiter(long interval) {
+		this.interval = interval;
+	}
+
+	/**
+	 * Blocks until a request to the host of the given URL may be sent.
+	 * Each invocation reserves the next free slot, so that concurrent 
+	 * callers are served in the order they arrived.
+	 */
+	public void acquire(String url) throws InterruptedException {
+		if (interval <= 0) {
+			return;
+		}
+		AtomicLong nextSlot = getNextSlot(ServletUtils.getHost(url));
+		while (true) {
+			long now = System.currentTimeMillis();
+			long next = nextSlot.get();
+			long slot = Math.max(next, now);
+			if (nextSlot.compareAndSet(next, slot + interval)) {
+				if (slot > now) {
+					Thread.sleep(slot - now);
+				}
+				return;
+			}
+		}
+	}
+
+	private AtomicLong getNextSlot(String host) {
+		if (host == null) {
+			host = "";
+		}
+		AtomicLong nextSlot = nextSlots.get(host);
+		if (nextSlot == null) {
+			nextSlot = new AtomicLong();
+			AtomicLong existing = nextSlots.putIfAbsent(host, nextSlot);
+			if (existing != null) {
+				nextSlot = existing;
+			}
+		}
+		return nextSlot;
+	}
+
+}
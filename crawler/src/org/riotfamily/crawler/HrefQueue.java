@@ -0,0 +1,84 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.riotfamily.crawler;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.riotfamily.common.util.Generics;
+
+/**
+ * Thread-safe crawl frontier that memorizes visited URLs to guarantee that
+ * each link is only processed once. Hrefs are handed out in the order they
+ * were discovered, so that pages are crawled breadth-first.
+ */
+public class HrefQueue {
+
+	private ConcurrentMap<Href, Boolean> knownHrefs = Generics.newConcurrentHashMap();
+
+	private BlockingQueue<Href> queue = new LinkedBlockingQueue<Href>();
+
+	public boolean hasNext() {
+		return !queue.isEmpty();
+	}
+
+	/**
+	 * Returns the next Href, or <code>null</code> if the queue is empty.
+	 */
+	public Href next() {
+		return queue.poll();
+	}
+
+	/**
+	 * Returns the next Href, waiting up to the specified number of
+	 * milliseconds if the queue is empty.
+	 */
+	public Href poll(long timeout) throws InterruptedException {
+		return queue.poll(timeout, TimeUnit.MILLISECONDS);
+	}
+
+	public int size() {
+		return queue.size();
+	}
+
+	public void add(String baseUri, String uri, String referrerUrl) {
+		add(new Href(baseUri, uri, referrerUrl));
+	}
+	
+	public void add(Href href) {
+		if (knownHrefs.putIfAbsent(href, Boolean.TRUE) == null) {
+			queue.offer(href);
+		}
+	}
+
+	/**
+	 * Adds an absolute URL. Unlike {@link #add(String, String, String)} the 
+	 * URL is queued even if it has already been visited, unless it is 
+	 * currently waiting in the queue.
+	 */
+	public void addAbsolute(String uri, String referrerUrl) {
+		Href href = new Href(null, uri, referrerUrl);
+		if (!queue.contains(href)) {
+			knownHrefs.put(href, Boolean.TRUE);
+			queue.offer(href);
+		}
+	}
+
+	public void clear() {
+		knownHrefs.clear();
+		queue.clear();
+	}
+
+}
@@ -22,7 +22,9 @@ import java.util.Stack;
  * guarantee that each link is only processed once.
  * 
  * @author Felix Gnass [fgnass at neteye dot de] 
+ * @deprecated The Crawler uses a thread-safe {@link HrefQueue}
  */
+@Deprecated
 public class HrefStack {
 	
 	private HashSet<Href> knownHrefs = new HashSet<Href>();
@@ -0,0 +1,165 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.riotfamily.crawler;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.htmlparser.Node;
+import org.htmlparser.Tag;
+import org.htmlparser.Text;
+import org.htmlparser.lexer.Lexer;
+import org.htmlparser.util.ParserException;
+import org.htmlparser.util.Translate;
+import org.riotfamily.common.util.Generics;
+
+/**
+ * Information that is extracted from an HTML document in a single pass over 
+ * the token stream, without building a document tree. The summary contains
+ * the document's links, its title, the first <code>lang</code> attribute 
+ * and the contents of its <code>META</code> tags.
+ * <p>
+ * Links are the href attributes of all A, LINK and AREA tags, unless a 
+ * rel="nofollow" or rel="stylesheet" attribute is present.
+ * </p>
+ */
+public class HtmlSummary {
+
+	public static final HtmlSummary EMPTY = new HtmlSummary();
+	
+	private List<String> links = Generics.newArrayList();
+	
+	private Map<String, String> metaTags = Generics.newHashMap();
+	
+	private Map<String, String> httpEquivs = Generics.newHashMap();
+	
+	private String title;
+	
+	private String language;
+	
+	private HtmlSummary() {
+	}
+	
+	/**
+	 * Scans the given HTML document.
+	 */
+	public static HtmlSummary scan(String html) throws ParserException {
+		HtmlSummary summary = new HtmlSummary();
+		StringBuilder title = null;
+		Lexer lexer = new Lexer(html);
+		Node node;
+		while ((node = lexer.nextNode()) != null) {
+			if (node instanceof Tag) {
+				Tag tag = (Tag) node;
+				String name = tag.getTagName();
+				if (tag.isEndTag()) {
+					if (title != null && name.equals("TITLE")) {
+						summary.title = collapseWhitespace(title);
+						title = null;
+					}
+					continue;
+				}
+				summary.tag(tag, name);
+				if (name.equals("TITLE") && summary.title == null) {
+					title = new StringBuilder();
+				}
+				else if ((name.equals("SCRIPT") || name.equals("STYLE")) 
+						&& !tag.isEmptyXmlTag()) {
+					
+					lexer.parseCDATA();
+				}
+			}
+			else if (title != null && node instanceof Text) {
+				title.append(Translate.decode(node.getText()));
+			}
+		}
+		return summary;
+	}
+	
+	private void tag(Tag tag, String name) {
+		if (language == null) {
+			language = tag.getAttribute("lang");
+		}
+		if (name.equals("A") || name.equals("LINK") || name.equals("AREA")) {
+			String href = tag.getAttribute("href");
+			if (href != null && follow(tag.getAttribute("rel"))) {
+				links.add(href.trim().replaceAll("&amp;", "&"));
+			}
+		}
+		else if (name.equals("META")) {
+			String content = tag.getAttribute("content");
+			if (content != null) {
+				putFirst(metaTags, tag.getAttribute("name"), content);
+				putFirst(httpEquivs, tag.getAttribute("http-equiv"), content);
+			}
+		}
+	}
+	
+	private static boolean follow(String rel) {
+		if (rel == null) {
+			return true;
+		}
+		rel = rel.toLowerCase();
+		return rel.indexOf("nofollow") == -1 && !rel.equals("stylesheet");
+	}
+	
+	private static void putFirst(Map<String, String> map, String key, String value) {
+		if (key != null) {
+			key = key.toLowerCase();
+			if (!map.containsKey(key)) {
+				map.put(key, value);
+			}
+		}
+	}
+	
+	private static String collapseWhitespace(CharSequence s) {
+		return s.toString().replace('\u00a0', ' ').replaceAll("\\s+", " ").trim();
+	}
+	
+	public List<String> getLinks() {
+		return Collections.unmodifiableList(links);
+	}
+
+	/**
+	 * Returns the content of the document's <code>TITLE</code> tag. 
+	 */
+	public String getTitle() {
+		return title;
+	}
+
+	/**
+	 * Returns the value of the first <code>lang</code> attribute, no matter
+	 * on which tag.
+	 */
+	public String getLanguage() {
+		return language;
+	}
+	
+	/**
+	 * Returns the <code>content</code> attribute of the first <code>META</code>
+	 * tag with the specified name.
+	 */
+	public String getMeta(String name) {
+		return metaTags.get(name.toLowerCase());
+	}
+	
+	/**
+	 * Returns the content of the first <code>META</code> tag with the 
+	 * specified <code>http-eqiv</code> attribute.
+	 */
+	public String getHttpEquiv(String name) {
+		return httpEquivs.get(name.toLowerCase());
+	}
+	
+}
@@ -21,6 +21,8 @@ import org.htmlparser.Parser;
 import org.htmlparser.util.NodeList;
 import org.htmlparser.util.ParserException;
 import org.riotfamily.common.io.IOUtils;
+import org.riotfamily.common.util.HashUtils;
+import org.slf4j.LoggerFactory;
 
 /**
  * Class that holds all information about a crawled page.
@@ -41,8 +43,12 @@ public class PageData {
     
     private HashMap<String, String> headers = new HashMap<String, String>();
     
+    private HtmlSummary summary;
+    
     private NodeList nodes;
     
+    private boolean parsed;
+    
     public PageData(Href href) {
 		this.href = href;
 	}
@@ -88,6 +94,28 @@ public class PageData {
 	public boolean isRedirect() {
     	return redirectUrl != null;
     }
+	
+	/**
+	 * Returns whether the server responded to a conditional request with 
+	 * a <code>304 Not Modified</code> status. 
+	 */
+	public boolean isNotModified() {
+		return statusCode == 304;
+	}
+	
+	/**
+	 * Returns a hash of the page's HTML or redirect target, or 
+	 * <code>null</code> if neither is available.
+	 */
+	public String getFingerprint() {
+		if (html != null) {
+			return HashUtils.md5(html);
+		}
+		if (redirectUrl != null) {
+			return "redirect:" + redirectUrl;
+		}
+		return null;
+	}
 
 	public String getRedirectUrl() {
 		return this.redirectUrl;
@@ -113,14 +141,55 @@ public class PageData {
 		this.statusCode = statusCode;
 	}
 	
+	/**
+	 * Builds the document tree. Invoking this method is optional, as the 
+	 * tree is built on demand by {@link #getNodes()}.
+	 */
 	public void parse() throws ParserException {
-		Parser parser = new Parser();
-		parser.setInputHTML(html);
-		nodes = parser.parse(null);
+		if (!parsed && html != null) {
+			parsed = true;
+			Parser parser = new Parser();
+			parser.setInputHTML(html);
+			nodes = parser.parse(null);
+		}
 	}
 	
+	/**
+	 * Returns the document tree, or <code>null</code> if the page contains
+	 * no HTML or can't be parsed. The tree is built upon the first invocation.
+	 * Use {@link #getSummary()} if you only need links or meta data.
+	 */
 	public NodeList getNodes() {
+		if (!parsed) {
+			try {
+				parse();
+			}
+			catch (ParserException e) {
+				LoggerFactory.getLogger(PageData.class).error(
+						"Error parsing " + getUrl(), e);
+			}
+		}
 		return nodes;
 	}
 	
+	/**
+	 * Returns the {@link HtmlSummary} of the page. The summary is created 
+	 * by a single scan of the HTML, without building a document tree.
+	 */
+	public HtmlSummary getSummary() {
+		if (summary == null) {
+			summary = HtmlSummary.EMPTY;
+			if (html != null) {
+				try {
+					summary = HtmlSummary.scan(html);
+				}
+				catch (ParserException e) {
+					LoggerFactory.getLogger(PageData.class).error(
+							"Error scanning " + getUrl(), e);
+				}
+			}
+		}
+		return summary;
+	}
+	
 }
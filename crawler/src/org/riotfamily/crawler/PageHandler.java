@@ -37,8 +37,16 @@ public interface PageHandler {
 	
 	/**
 	 * Invoked when the crawler fetches a single page, due to an 
-	 * ApplicationEvent indicating that the page was modified.
+	 * ApplicationEvent indicating that the page was modified. The method is
+	 * also invoked during incremental crawls for each page that is new or
+	 * has changed since the last run.
 	 */
 	public void handlePageIncremental(PageData pageData);
+	
+	/**
+	 * Invoked at the end of an incremental crawl for each page that was 
+	 * crawled during the last run but is no longer reachable.
+	 */
+	public void handlePageRemoved(String url);
 
 }
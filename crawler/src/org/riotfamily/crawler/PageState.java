@@ -0,0 +1,79 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.riotfamily.crawler;
+
+import java.io.Serializable;
+import java.util.List;
+
+import org.springframework.util.ObjectUtils;
+
+/**
+ * Information about a crawled page that is retained between two crawler 
+ * runs in order to detect whether the page has changed.
+ */
+public class PageState implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private int statusCode;
+
+	private String etag;
+
+	private String lastModified;
+
+	private String fingerprint;
+
+	private List<String> links;
+
+	public PageState(PageData pageData, List<String> links) {
+		this.statusCode = pageData.getStatusCode();
+		this.etag = pageData.getHeader("ETag");
+		this.lastModified = pageData.getHeader("Last-Modified");
+		this.fingerprint = pageData.getFingerprint();
+		this.links = links;
+	}
+
+	public int getStatusCode() {
+		return statusCode;
+	}
+
+	public String getEtag() {
+		return etag;
+	}
+
+	public String getLastModified() {
+		return lastModified;
+	}
+
+	public String getFingerprint() {
+		return fingerprint;
+	}
+
+	/**
+	 * Returns the (already filtered) links that were found on the page. 
+	 */
+	public List<String> getLinks() {
+		return links;
+	}
+
+	/**
+	 * Returns whether the given PageData has the same status and content
+	 * as the page this state was created for. 
+	 */
+	public boolean matches(PageData pageData) {
+		return pageData.isNotModified() || (
+				statusCode == pageData.getStatusCode() 
+				&& ObjectUtils.nullSafeEquals(fingerprint, pageData.getFingerprint()));
+	}
+
+}
@@ -0,0 +1,34 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.riotfamily.crawler;
+
+import java.util.Map;
+
+/**
+ * Interface for classes that persist the {@link PageState}s of a crawler 
+ * run, keyed by URL.
+ */
+public interface PageStateStore {
+
+	/**
+	 * Returns the states that have been stored by the last crawler run.
+	 * Returns an empty map if no states are available.
+	 */
+	public Map<String, PageState> loadStates();
+
+	/**
+	 * Replaces the stored states.
+	 */
+	public void saveStates(Map<String, PageState> states);
+
+}
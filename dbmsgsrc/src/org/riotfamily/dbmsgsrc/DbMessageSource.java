@@ -13,17 +13,23 @@
 package org.riotfamily.dbmsgsrc;
 
 import java.text.MessageFormat;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
 
+import org.riotfamily.common.util.Generics;
 import org.riotfamily.common.web.cache.tags.CacheTagUtils;
 import org.riotfamily.dbmsgsrc.model.Message;
-import org.riotfamily.dbmsgsrc.model.MessageBundleEntry;
-import org.springframework.context.MessageSourceResolvable;
-import org.springframework.context.NoSuchMessageException;
-import org.springframework.transaction.annotation.Transactional;
+import org.springframework.util.Assert;
 import org.springframework.util.StringUtils;
 
+/**
+ * MessageSource that reads messages from the database. Messages are looked
+ * up in a {@link MessageCatalog} provided by the {@link MessageCatalogManager},
+ * so that resolving a code requires no database access. Unknown codes are
+ * added to the database asynchronously, along with their default message. 
+ */
 public class DbMessageSource extends AbstractMessageSource {
 
 	public static final String DEFAULT_BUNDLE = "default";
@@ -34,6 +40,10 @@ public class DbMessageSource extends AbstractMessageSource {
 	
 	private boolean escapeSingleQuotes = true;
 
+	private MessageCatalogManager catalogManager;
+	
+	private volatile LocalizedCatalog localizedCatalog;
+	
 	public void setBundle(String bundle) {
 		this.bundle = bundle;
 	}
@@ -56,74 +66,72 @@ public class DbMessageSource extends AbstractMessageSource {
 		this.escapeSingleQuotes = escapeSingleQuotes;
 	}
 
-	@Override
-	@Transactional
-	public String getMessage(MessageSourceResolvable resolvable, Locale locale)
-				throws NoSuchMessageException {
-
-		return super.getMessage(resolvable, locale);
+	/**
+	 * Sets the MessageCatalogManager that provides the messages. 
+	 */
+	public void setCatalogManager(MessageCatalogManager catalogManager) {
+		this.catalogManager = catalogManager;
 	}
-
-	@Override
-	@Transactional
-	public String getMessage(String code, Object[] args, Locale locale)
-				throws NoSuchMessageException {
-
-		return super.getMessage(code, args, locale);
+	
+	/**
+	 * Returns the id of the MessageBundleEntry with the given code. If no 
+	 * such entry exists, a new one is created.
+	 */
+	Long getEntryId(String code, String defaultMessage) {
+		MessageCatalog.Entry entry = getCatalog().getEntry(code);
+		if (entry != null) {
+			return entry.getId();
+		}
+		return catalogManager.createEntry(bundle, code, defaultMessage);
 	}
-
-	@Override
-	@Transactional
-	public String getMessage(String code, Object[] args, String defaultMessage,
-				Locale locale) {
-
-		return super.getMessage(code, args, defaultMessage, locale);
+	
+	private MessageCatalog getCatalog() {
+		Assert.notNull(catalogManager, "A MessageCatalogManager must be set");
+		return catalogManager.getCatalog(bundle);
 	}
-
-	MessageBundleEntry getEntry(final String code, final String defaultMessage) {
-		MessageBundleEntry result = MessageBundleEntry.loadByBundleAndCode(bundle, code);
-		if (result == null) {
-			result = new MessageBundleEntry(bundle, code, defaultMessage);
-			result.save();
+	
+	/**
+	 * Returns the text for the given code and locale, taking fallback 
+	 * locales into account. Unknown codes are registered with the 
+	 * MessageCatalogManager, which adds them to the database in the 
+	 * background. Until then, <code>null</code> is returned so that the 
+	 * default message is used.
+	 */
+	protected MessageCatalog.Text getText(String code, Locale locale, 
+			String defaultMessage) {
+		
+		CacheTagUtils.tag(Message.class);
+		MessageCatalog catalog = getCatalog();
+		if (catalog.getEntry(code) == null) {
+			catalogManager.registerUnknownCode(bundle, code, defaultMessage);
+			return null;
 		}
-		return result;
+		LocalizedCatalog localized = localizedCatalog;
+		if (localized == null || localized.catalog != catalog) {
+			localized = new LocalizedCatalog(catalog);
+			localizedCatalog = localized;
+		}
+		return localized.getTexts(locale).get(code);
 	}
 	
 	@Override
 	protected MessageFormat resolveCode(String code, Locale locale, String defaultMessage) {
-		CacheTagUtils.tag(Message.class);
-		MessageBundleEntry entry = getEntry(code, defaultMessage);
-		Message message = getMessage(entry, locale);
-		if (message != null) {
-			return message.getMessageFormat(escapeSingleQuotes);
+		MessageCatalog.Text text = getText(code, locale, defaultMessage);
+		if (text != null) {
+			return text.getMessageFormat(escapeSingleQuotes);
 		}
 		return null;
 	}
 	
 	@Override
 	protected String resolveCodeWithoutArguments(String code, Locale locale, String defaultMessage) {
-		CacheTagUtils.tag(Message.class);
-		MessageBundleEntry entry = getEntry(code, defaultMessage);
-		Message message = getMessage(entry, locale);
-		if (message != null) {
-			return message.getText();
+		MessageCatalog.Text text = getText(code, locale, defaultMessage);
+		if (text != null) {
+			return text.getText();
 		}
 		return null;
 	}
 	
-	protected Message getMessage(MessageBundleEntry entry, Locale locale) {
-		Map<Locale, Message> messages = entry.getMessages();
-		if (messages == null) {
-			return null;
-		}
-		Message message = null;
-		while (message == null && locale != null) {
-			message = messages.get(locale);
-			locale = getFallbackLocale(locale);
-		}
-		return message;
-	}
-	
 	/**
 	 * Returns the fallback for the given Locale.
 	 */
@@ -146,13 +154,54 @@ public class DbMessageSource extends AbstractMessageSource {
 	protected String getMessageFromParent(String code, Object[] args, Locale locale) {
 		String result = super.getMessageFromParent(code, args, locale);
 		if (result == null) {
-			MessageBundleEntry entry = MessageBundleEntry.loadByBundleAndCode(bundle, code);
-			Message message = entry.getDefaultMessage();
-			if (message != null) {
-				result = message.format(args, escapeSingleQuotes);
+			MessageCatalog.Entry entry = getCatalog().getEntry(code);
+			if (entry != null && entry.getDefaultText() != null) {
+				result = entry.getDefaultText().format(args, escapeSingleQuotes);
 			}
 		}
 		return result;
 	}
 	
+	/**
+	 * Texts of a catalog, resolved for each fallback chain. Only locales 
+	 * for which the catalog contains texts are part of the chain, so the 
+	 * number of cached maps is bounded by the catalog's content and not by
+	 * the number of distinct locales that are requested.
+	 */
+	private class LocalizedCatalog {
+		
+		private MessageCatalog catalog;
+		
+		private ConcurrentMap<List<Locale>, Map<String, MessageCatalog.Text>> texts = 
+				Generics.newConcurrentHashMap();
+		
+		LocalizedCatalog(MessageCatalog catalog) {
+			this.catalog = catalog;
+		}
+		
+		Map<String, MessageCatalog.Text> getTexts(Locale locale) {
+			List<Locale> chain = Generics.newArrayList();
+			for (Locale l = locale; l != null; l = getFallbackLocale(l)) {
+				if (catalog.getLocales().contains(l)) {
+					chain.add(l);
+				}
+			}
+			Map<String, MessageCatalog.Text> result = texts.get(chain);
+			if (result == null) {
+				result = Generics.newHashMap();
+				for (MessageCatalog.Entry entry : catalog.getEntries()) {
+					for (Locale l : chain) {
+						MessageCatalog.Text text = entry.getText(l);
+						if (text != null) {
+							result.put(entry.getCode(), text);
+							break;
+						}
+					}
+				}
+				texts.put(chain, result);
+			}
+			return result;
+		}
+	}
+	
 }
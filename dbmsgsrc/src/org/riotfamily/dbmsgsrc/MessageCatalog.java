@@ -0,0 +1,222 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.riotfamily.dbmsgsrc;
+
+import java.text.MessageFormat;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import org.riotfamily.common.util.FormatUtils;
+import org.riotfamily.common.util.Generics;
+import org.riotfamily.dbmsgsrc.model.MessageBundleEntry;
+import org.springframework.util.ObjectUtils;
+
+/**
+ * Immutable snapshot of all {@link MessageBundleEntry entries} of a bundle.
+ * Catalogs are created by the {@link MessageCatalogManager} and replaced as
+ * a whole when a message is modified, so that lookups don't need any 
+ * locking or database access. 
+ */
+public class MessageCatalog {
+
+	private String bundle;
+	
+	private Map<String, Entry> entries;
+	
+	private Set<Locale> locales;
+	
+	private long created = System.currentTimeMillis();
+	
+	MessageCatalog(String bundle, Map<String, Entry> entries) {
+		this.bundle = bundle;
+		this.entries = Collections.unmodifiableMap(entries);
+		Set<Locale> locales = Generics.newHashSet();
+		for (Entry entry : entries.values()) {
+			locales.addAll(entry.texts.keySet());
+		}
+		this.locales = Collections.unmodifiableSet(locales);
+	}
+	
+	public String getBundle() {
+		return bundle;
+	}
+	
+	/**
+	 * Returns the entry for the given code, or <code>null</code> if the 
+	 * code did not exist when the catalog was loaded.
+	 */
+	public Entry getEntry(String code) {
+		return entries.get(code);
+	}
+	
+	public Collection<Entry> getEntries() {
+		return entries.values();
+	}
+	
+	/**
+	 * Returns all locales for which the catalog contains at least one text.
+	 */
+	public Set<Locale> getLocales() {
+		return locales;
+	}
+	
+	public int size() {
+		return entries.size();
+	}
+	
+	/**
+	 * Returns the time when the catalog was loaded.
+	 */
+	public long getCreated() {
+		return created;
+	}
+	
+	/**
+	 * Returns whether the other catalog contains the same codes and texts.
+	 * Entries that only exist in one of the catalogs are ignored if they 
+	 * don't contain any text besides the default message, as the default 
+	 * is the same text that was passed in by the template. 
+	 */
+	boolean hasSameTexts(MessageCatalog other) {
+		for (Entry entry : entries.values()) {
+			Entry otherEntry = other.getEntry(entry.getCode());
+			if (otherEntry == null) {
+				if (!entry.hasDefaultTextOnly()) {
+					return false;
+				}
+			}
+			else if (!entry.hasSameTexts(otherEntry)) {
+				return false;
+			}
+		}
+		for (Entry otherEntry : other.entries.values()) {
+			if (!entries.containsKey(otherEntry.getCode()) 
+					&& !otherEntry.hasDefaultTextOnly()) {
+				
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	public static class Entry {
+		
+		private Long id;
+		
+		private String code;
+		
+		private Map<Locale, Text> texts;
+
+		Entry(Long id, String code, Map<Locale, Text> texts) {
+			this.id = id;
+			this.code = code;
+			this.texts = texts;
+		}
+		
+		public Long getId() {
+			return id;
+		}
+		
+		public String getCode() {
+			return code;
+		}
+		
+		/**
+		 * Returns the text for exactly the given locale, without any 
+		 * fallbacks.
+		 */
+		public Text getText(Locale locale) {
+			return texts.get(locale);
+		}
+		
+		public Text getDefaultText() {
+			return texts.get(MessageBundleEntry.C_LOCALE);
+		}
+		
+		boolean hasDefaultTextOnly() {
+			return texts.isEmpty() || (texts.size() == 1 
+					&& texts.containsKey(MessageBundleEntry.C_LOCALE));
+		}
+		
+		boolean hasSameTexts(Entry other) {
+			if (!texts.keySet().equals(other.texts.keySet())) {
+				return false;
+			}
+			for (Map.Entry<Locale, Text> text : texts.entrySet()) {
+				if (!ObjectUtils.nullSafeEquals(text.getValue().getText(),
+						other.texts.get(text.getKey()).getText())) {
+					
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+	
+	/**
+	 * Text of a message in a specific locale. The MessageFormat is created
+	 * on first use.
+	 */
+	public static class Text {
+		
+		private String text;
+		
+		private Locale locale;
+		
+		private volatile MessageFormat messageFormat;
+		
+		private volatile MessageFormat escapedMessageFormat;
+		
+		Text(String text, Locale locale) {
+			this.text = text;
+			this.locale = locale;
+		}
+		
+		public String getText() {
+			return text;
+		}
+		
+		public MessageFormat getMessageFormat(boolean escapeSingleQuotes) {
+			if (text == null) {
+				return null;
+			}
+			if (escapeSingleQuotes) {
+				if (escapedMessageFormat == null) {
+					escapedMessageFormat = new MessageFormat(
+							FormatUtils.escapeChars(text, "'", '\''), locale);
+				}
+				return escapedMessageFormat;
+			}
+			if (messageFormat == null) {
+				messageFormat = new MessageFormat(text, locale);
+			}
+			return messageFormat;
+		}
+		
+		public String format(Object[] args, boolean escapeSingleQuotes) {
+			if (args != null) {
+				MessageFormat messageFormat = getMessageFormat(escapeSingleQuotes);
+				if (messageFormat != null) {
+					synchronized (messageFormat) {
+						return messageFormat.format(args);
+					}
+				}
+			}
+			return text;
+		}
+	}
+	
+}
@@ -0,0 +1,404 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.riotfamily.dbmsgsrc;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.riotfamily.cachius.CacheService;
+import org.riotfamily.common.hibernate.EntityListener;
+import org.riotfamily.common.util.FormatUtils;
+import org.riotfamily.common.util.Generics;
+import org.riotfamily.common.web.cache.tags.CacheTagUtils;
+import org.riotfamily.dbmsgsrc.model.Message;
+import org.riotfamily.dbmsgsrc.model.MessageBundleEntry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.util.StringUtils;
+
+/**
+ * Holds a {@link MessageCatalog} for each bundle. The catalogs are loaded 
+ * on first access and rebuilt in a background thread whenever a 
+ * {@link Message} or {@link MessageBundleEntry} is modified. Until the 
+ * rebuild is complete, the previous catalog is used.
+ * <p>
+ * Cached items that are tagged with the {@link Message} class are 
+ * invalidated again once a changed catalog has been swapped in, as the 
+ * invalidation triggered by the modification itself happens before the 
+ * new catalog is available.
+ * </p>
+ * <p>
+ * Modifications made by other cluster nodes are not noticed. Catalogs are
+ * therefore also rebuilt when they are older than 
+ * {@link #setMaxAge(String) maxAge}.
+ * </p>
+ * <p>
+ * Codes that are not present in the database are collected via 
+ * {@link #registerUnknownCode(String, String, String)} and inserted in 
+ * batches by the background thread, so that rendering threads never have 
+ * to wait for a database write.
+ * </p>
+ */
+public class MessageCatalogManager implements EntityListener, DisposableBean {
+
+	private static final int MAX_BATCH_SIZE = 500;
+	
+	private Logger log = LoggerFactory.getLogger(MessageCatalogManager.class);
+	
+	private SessionFactory sessionFactory;
+	
+	private TransactionTemplate transactionTemplate;
+	
+	private long maxAge = FormatUtils.parseMillis("5m");
+	
+	private ConcurrentMap<String, MessageCatalog> catalogs = 
+			Generics.newConcurrentHashMap();
+	
+	private ConcurrentMap<String, Boolean> pendingRebuilds = 
+			Generics.newConcurrentHashMap();
+	
+	private long flushDelay = FormatUtils.parseMillis("2s");
+	
+	private ConcurrentMap<String, ConcurrentMap<String, String>> unknownCodes =
+			Generics.newConcurrentHashMap();
+	
+	private AtomicBoolean flushScheduled = new AtomicBoolean();
+	
+	private ScheduledExecutorService executor;
+	
+	private CacheService cacheService;
+	
+	public MessageCatalogManager(SessionFactory sessionFactory, 
+			PlatformTransactionManager tx) {
+		
+		this.sessionFactory = sessionFactory;
+		this.transactionTemplate = new TransactionTemplate(tx);
+		this.transactionTemplate.setPropagationBehavior(
+				TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+		
+		CustomizableThreadFactory threadFactory = 
+				new CustomizableThreadFactory("MessageCatalogManager-");
+		
+		threadFactory.setDaemon(true);
+		this.executor = Executors.newSingleThreadScheduledExecutor(threadFactory);
+	}
+	
+	/**
+	 * Sets the time after which a catalog is reloaded, even if no 
+	 * modification has been detected. Default is <code>5m</code>.
+	 * @see FormatUtils#parseMillis(String)
+	 */
+	public void setMaxAge(String maxAge) {
+		this.maxAge = FormatUtils.parseMillis(maxAge);
+	}
+	
+	/**
+	 * Sets how long unknown codes are collected before they are written to 
+	 * the database. Default is <code>2s</code>.
+	 * @see FormatUtils#parseMillis(String)
+	 */
+	public void setFlushDelay(String flushDelay) {
+		this.flushDelay = FormatUtils.parseMillis(flushDelay);
+	}
+	
+	/**
+	 * Sets the CacheService that is used to invalidate cached items 
+	 * when a catalog has changed.
+	 */
+	public void setCacheService(CacheService cacheService) {
+		this.cacheService = cacheService;
+	}
+	
+	public void destroy() throws Exception {
+		executor.shutdownNow();
+		try {
+			flushUnknownCodes();
+		}
+		catch (RuntimeException e) {
+			log.warn("Failed to save unknown message codes on shutdown", e);
+		}
+	}
+	
+	/**
+	 * Returns the catalog for the given bundle. The first invocation for a
+	 * bundle loads the catalog in the calling thread, subsequent calls 
+	 * return the current snapshot without blocking. 
+	 */
+	public MessageCatalog getCatalog(String bundle) {
+		MessageCatalog catalog = catalogs.get(bundle);
+		if (catalog == null) {
+			synchronized (this) {
+				catalog = catalogs.get(bundle);
+				if (catalog == null) {
+					catalog = load(bundle);
+					catalogs.put(bundle, catalog);
+				}
+			}
+		}
+		else if (System.currentTimeMillis() - catalog.getCreated() > maxAge) {
+			scheduleRebuild(bundle);
+		}
+		return catalog;
+	}
+	
+	/**
+	 * Creates a new {@link MessageBundleEntry} unless it already exists,
+	 * and returns its id. The entry is saved in a separate transaction, the 
+	 * catalog is rebuilt after the transaction has been committed. 
+	 */
+	public Long createEntry(final String bundle, final String code, 
+			final String defaultMessage) {
+		
+		return transactionTemplate.execute(new TransactionCallback<Long>() {
+			public Long doInTransaction(TransactionStatus status) {
+				MessageBundleEntry entry = MessageBundleEntry.loadByBundleAndCode(bundle, code);
+				if (entry == null) {
+					entry = new MessageBundleEntry(bundle, code, defaultMessage);
+					entry.save();
+				}
+				return entry.getId();
+			}
+		});
+	}
+	
+	/**
+	 * Queues a new {@link MessageBundleEntry} for the given code. The entry 
+	 * is inserted asynchronously, along with all other codes that are 
+	 * registered within the {@link #setFlushDelay(String) flushDelay}. 
+	 * Duplicates are ignored.
+	 */
+	public void registerUnknownCode(String bundle, String code, 
+			String defaultMessage) {
+		
+		ConcurrentMap<String, String> codes = unknownCodes.get(bundle);
+		if (codes == null) {
+			codes = Generics.newConcurrentHashMap();
+			ConcurrentMap<String, String> existing = unknownCodes.putIfAbsent(bundle, codes);
+			if (existing != null) {
+				codes = existing;
+			}
+		}
+		if (codes.putIfAbsent(code, defaultMessage != null ? defaultMessage : "") == null
+				&& flushScheduled.compareAndSet(false, true)) {
+			
+			executor.schedule(new Runnable() {
+				public void run() {
+					try {
+						flushUnknownCodes();
+					}
+					catch (RuntimeException e) {
+						log.error("Failed to save unknown message codes", e);
+					}
+				}
+			}, flushDelay, TimeUnit.MILLISECONDS);
+		}
+	}
+	
+	private void flushUnknownCodes() {
+		flushScheduled.set(false);
+		for (Map.Entry<String, ConcurrentMap<String, String>> entry : unknownCodes.entrySet()) {
+			String bundle = entry.getKey();
+			Map<String, String> batch = Generics.newHashMap();
+			Iterator<Map.Entry<String, String>> it = entry.getValue().entrySet().iterator();
+			while (it.hasNext()) {
+				Map.Entry<String, String> code = it.next();
+				batch.put(code.getKey(), StringUtils.hasLength(code.getValue()) 
+						? code.getValue() : null);
+				
+				it.remove();
+				if (batch.size() == MAX_BATCH_SIZE || !it.hasNext()) {
+					saveEntries(bundle, batch);
+					batch.clear();
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Inserts entries for all codes that don't exist yet in a single 
+	 * transaction. If this fails, for example because another cluster node
+	 * inserted one of the codes in the meantime, the entries are created
+	 * one by one.
+	 * <p>
+	 * Note that each entry (and its default message) is still written with
+	 * its own INSERT statement. The entities use generated identifiers, 
+	 * which prevents Hibernate from batching the inserts. What is saved is 
+	 * the per-code transaction, the lookup of existing codes and the 
+	 * catalog rebuild, which now happen once per batch.
+	 * </p>
+	 */
+	private void saveEntries(final String bundle, final Map<String, String> codes) {
+		try {
+			int count = transactionTemplate.execute(new TransactionCallback<Integer>() {
+				@SuppressWarnings("unchecked")
+				public Integer doInTransaction(TransactionStatus status) {
+					List<String> existing = sessionFactory.getCurrentSession()
+							.createQuery("select code from " 
+							+ MessageBundleEntry.class.getName() 
+							+ " where bundle = :bundle and code in (:codes)")
+							.setParameter("bundle", bundle)
+							.setParameterList("codes", codes.keySet())
+							.list();
+					
+					int count = 0;
+					for (Map.Entry<String, String> code : codes.entrySet()) {
+						if (!existing.contains(code.getKey())) {
+							new MessageBundleEntry(bundle, code.getKey(), 
+									code.getValue()).save();
+							
+							count++;
+						}
+					}
+					return count;
+				}
+			});
+			log.debug("Saved [{}] new message codes", count);
+		}
+		catch (RuntimeException e) {
+			log.debug("Batch insert failed, creating entries one by one", e);
+			for (Map.Entry<String, String> code : codes.entrySet()) {
+				try {
+					createEntry(bundle, code.getKey(), code.getValue());
+				}
+				catch (RuntimeException e2) {
+					log.warn("Failed to create entry for code " + code.getKey(), e2);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Rebuilds all catalogs in the background.
+	 */
+	public void invalidate() {
+		for (String bundle : catalogs.keySet()) {
+			scheduleRebuild(bundle);
+		}
+	}
+	
+	private void scheduleRebuild(final String bundle) {
+		if (pendingRebuilds.putIfAbsent(bundle, Boolean.TRUE) == null) {
+			executor.execute(new Runnable() {
+				public void run() {
+					pendingRebuilds.remove(bundle);
+					try {
+						MessageCatalog catalog = load(bundle);
+						MessageCatalog previous = catalogs.put(bundle, catalog);
+						if (previous == null || !catalog.hasSameTexts(previous)) {
+							CacheTagUtils.invalidate(cacheService, Message.class);
+						}
+					}
+					catch (RuntimeException e) {
+						log.error("Failed to rebuild message catalog " + bundle, e);
+					}
+				}
+			});
+		}
+	}
+	
+	private MessageCatalog load(final String bundle) {
+		long start = System.currentTimeMillis();
+		MessageCatalog catalog = transactionTemplate.execute(
+				new TransactionCallback<MessageCatalog>() {
+			
+			@SuppressWarnings("unchecked")
+			public MessageCatalog doInTransaction(TransactionStatus status) {
+				Session session = sessionFactory.getCurrentSession();
+				List<Object[]> rows = session.createQuery("select e.id, e.code, " 
+						+ "m.locale, m.text from " + MessageBundleEntry.class.getName() 
+						+ " e left join e.messages m where e.bundle = :bundle")
+						.setParameter("bundle", bundle)
+						.list();
+				
+				Map<String, MessageCatalog.Entry> entries = Generics.newHashMap();
+				Map<String, Map<Locale, MessageCatalog.Text>> texts = Generics.newHashMap();
+				for (Object[] row : rows) {
+					String code = (String) row[1];
+					Map<Locale, MessageCatalog.Text> entryTexts = texts.get(code);
+					if (entryTexts == null) {
+						entryTexts = Generics.newHashMap();
+						texts.put(code, entryTexts);
+						entries.put(code, new MessageCatalog.Entry(
+								(Long) row[0], code, entryTexts));
+					}
+					Locale locale = (Locale) row[2];
+					if (locale != null) {
+						entryTexts.put(locale, new MessageCatalog.Text(
+								(String) row[3], locale));
+					}
+				}
+				return new MessageCatalog(bundle, entries);
+			}
+		});
+		log.debug("Loaded [{}] messages of bundle '{}' in {} ms", new Object[] {
+				catalog.size(), bundle, System.currentTimeMillis() - start});
+		
+		return catalog;
+	}
+	
+	// ------------------------------------------------------------------------
+	// EntityListener implementation
+	// ------------------------------------------------------------------------
+	
+	public boolean supports(Class<?> entityClass) {
+		return Message.class.isAssignableFrom(entityClass)
+				|| MessageBundleEntry.class.isAssignableFrom(entityClass);
+	}
+	
+	public void onSave(Object entity, Session session) {
+		invalidateAfterCommit();
+	}
+	
+	public void onUpdate(Object entity, Object oldState, Session session) {
+		invalidateAfterCommit();
+	}
+	
+	public void onDelete(Object entity, Session session) {
+		invalidateAfterCommit();
+	}
+	
+	private void invalidateAfterCommit() {
+		if (TransactionSynchronizationManager.isSynchronizationActive()) {
+			TransactionSynchronizationManager.registerSynchronization(
+					new TransactionSynchronizationAdapter() {
+				
+				@Override
+				public void afterCommit() {
+					invalidate();
+				}
+			});
+		}
+		else {
+			invalidate();
+		}
+	}
+	
+}
@@ -12,7 +12,6 @@
  */
 package org.riotfamily.dbmsgsrc;
 
-import java.util.Locale;
 import java.util.Set;
 
 import org.riotfamily.common.i18n.DefaultCodeRevealingMessageSource;
@@ -20,10 +19,7 @@ import org.riotfamily.common.util.Generics;
 import org.riotfamily.common.web.mvc.mapping.HandlerUrlResolver;
 import org.riotfamily.core.security.AccessController;
 import org.riotfamily.core.security.auth.RiotUser;
-import org.riotfamily.dbmsgsrc.model.MessageBundleEntry;
 import org.springframework.context.MessageSource;
-import org.springframework.context.MessageSourceResolvable;
-import org.springframework.transaction.annotation.Transactional;
 
 public class RiotDbMessageSource extends DefaultCodeRevealingMessageSource {
 
@@ -46,24 +42,11 @@ public class RiotDbMessageSource extends DefaultCodeRevealingMessageSource {
 	}
 	
 	
-	@Override
-	@Transactional
-	public String getMessage(MessageSourceResolvable resolvable, Locale locale) {
-		return super.getMessage(resolvable, locale);
-	}
-	
-	@Override
-	@Transactional
-	public String getMessage(String code, Object[] args, Locale locale) {
-		return super.getMessage(code, args, locale);
-	}
-	
-	@Override
-	@Transactional
-	public String getMessage(String code, Object[] args, String defaultMessage,
-			Locale locale) {
-
-		return super.getMessage(code, args, defaultMessage, locale);
+	/**
+	 * Sets the MessageCatalogManager that provides the messages. 
+	 */
+	public void setCatalogManager(MessageCatalogManager catalogManager) {
+		dbMessageSource.setCatalogManager(catalogManager);
 	}
 	
 	@Override
@@ -106,10 +89,10 @@ public class RiotDbMessageSource extends DefaultCodeRevealingMessageSource {
 	}
 
 	private String getEditorUrl(String code) {
-		MessageBundleEntry entry = dbMessageSource.getEntry(code, null);
-		if (entry != null) {
+		Long entryId = dbMessageSource.getEntryId(code, null);
+		if (entryId != null) {
 			return getContextPath() + handlerUrlResolver.getUrlForHandler(
-					"editMessageFormController", entry.getId());
+					"editMessageFormController", entryId);
 
 		}
 		return null;
@@ -30,6 +30,7 @@ import org.hibernate.annotations.Cache;
 import org.hibernate.annotations.CacheConcurrencyStrategy;
 import org.hibernate.annotations.Type;
 import org.riotfamily.common.util.FormatUtils;
+import org.riotfamily.common.web.cache.ConditionalCacheInvalidation;
 import org.riotfamily.common.web.cache.TagCacheItems;
 import org.springframework.util.ObjectUtils;
 
@@ -37,7 +38,7 @@ import org.springframework.util.ObjectUtils;
 @Table(name="riot_dbmsgsrc_messages")
 @Cache(usage=CacheConcurrencyStrategy.NONSTRICT_READ_WRITE, region="messages")
 @TagCacheItems
-public class Message {
+public class Message implements ConditionalCacheInvalidation {
 
 	private Long id;
 	
@@ -120,6 +121,15 @@ public class Message {
 		return getText();
 	}
 	
+	/**
+	 * Returns <code>false</code> for new default messages, as they only 
+	 * contain the text that has already been rendered by the template.
+	 */
+	@Transient
+	public boolean isCacheInvalidationRequiredOnSave() {
+		return !MessageBundleEntry.C_LOCALE.equals(locale);
+	}
+	
 	@Override
 	public boolean equals(Object obj) {
 		if (obj == this) {
@@ -15,15 +15,18 @@ package org.riotfamily.linkcheck;
 import java.io.Serializable;
 import java.util.Collection;
 import java.util.Iterator;
+import java.util.Map;
 
 import javax.persistence.Entity;
 import javax.persistence.Id;
 import javax.persistence.Table;
 
 import org.hibernate.Query;
+import org.hibernate.Session;
 import org.hibernate.annotations.AccessType;
 import org.riotfamily.common.hibernate.ActiveRecord;
 import org.riotfamily.common.util.FormatUtils;
+import org.riotfamily.common.util.Generics;
 import org.riotfamily.crawler.Href;
 import org.riotfamily.crawler.PageData;
 import org.slf4j.LoggerFactory;
@@ -167,6 +170,77 @@ public class BrokenLink extends ActiveRecord implements Serializable {
 		}
 	}	
 	
+	/**
+	 * Replaces all stored broken links with the given ones.
+	 * @see #synchronize(Collection, Collection)
+	 */
+	public static void synchronizeAll(Collection<BrokenLink> links) {
+		synchronize(findAllBrokenLinks(), links);
+	}
+	
+	/**
+	 * Replaces the stored broken links of the given source page.
+	 * @see #synchronize(Collection, Collection)
+	 */
+	public static void synchronizeBrokenLinksFrom(String sourceUrl, 
+			Collection<BrokenLink> links) {
+		
+		synchronize(findBrokenLinksFrom(sourceUrl), links);
+	}
+	
+	/**
+	 * Applies the difference between the stored and the given links. 
+	 * Links that have been fixed are deleted, new links are inserted and
+	 * the status of existing links is updated. Unchanged rows are left 
+	 * untouched, so that concurrent readers always see a consistent state.
+	 * All changes are written in a single flush, which allows Hibernate to 
+	 * use JDBC batching if <code>hibernate.jdbc.batch_size</code> is set.
+	 */
+	private static void synchronize(Collection<BrokenLink> stored, 
+			Collection<BrokenLink> links) {
+		
+		Map<BrokenLinkPK, BrokenLink> existing = Generics.newHashMap();
+		for (BrokenLink link : stored) {
+			existing.put(link.getPrimaryKey(), link);
+		}
+		Session session = getSession();
+		int added = 0;
+		for (BrokenLink link : links) {
+			if (link.getSource() == null) {
+				LoggerFactory.getLogger(BrokenLink.class).error(
+						"Trying to save broken link without a source. Possibly " +
+						"this link refers to a broken crawler start page.");
+				continue;
+			}
+			BrokenLink current = existing.remove(link.getPrimaryKey());
+			if (current == null) {
+				session.save(link);
+				added++;
+			}
+			else if (current.getStatusCode() != link.getStatusCode() 
+					|| !ObjectUtils.nullSafeEquals(
+					current.getStatusText(), link.getStatusText())) {
+				
+				current.setStatusCode(link.getStatusCode());
+				current.setStatusText(link.getStatusText());
+			}
+		}
+		for (BrokenLink link : existing.values()) {
+			session.delete(link);
+		}
+		session.flush();
+		LoggerFactory.getLogger(BrokenLink.class).info(
+				"{} broken links added, {} resolved", added, existing.size());
+	}
+	
+	@SuppressWarnings("unchecked")
+	public static Collection<BrokenLink> findBrokenLinksFrom(String sourceUrl) {
+		String hql = "from BrokenLink where id.source = :url";
+		Query query = getSession().createQuery(hql);
+		query.setParameter("url", sourceUrl);
+		return query.list();
+	}
+	
 	@SuppressWarnings("unchecked")
 	public static Collection<BrokenLink> findAllBrokenLinks() {
 		String hql = "from BrokenLink order by id.source";
@@ -196,6 +270,30 @@ public class BrokenLink extends ActiveRecord implements Serializable {
 		query.executeUpdate();
 	}
 	
+	/**
+	 * Stores the given link, unless a link with the same source and 
+	 * destination already exists.
+	 */
+	public static void addBrokenLink(BrokenLink link) {
+		if (link.getSource() == null) {
+			LoggerFactory.getLogger(BrokenLink.class).error(
+					"Trying to save broken link without a source. Possibly " +
+					"this link refers to a broken crawler start page.");
+			return;
+		}
+		Session session = getSession();
+		BrokenLink current = (BrokenLink) session.get(BrokenLink.class, 
+				link.getPrimaryKey());
+		
+		if (current == null) {
+			session.save(link);
+		}
+		else {
+			current.setStatusCode(link.getStatusCode());
+			current.setStatusText(link.getStatusText());
+		}
+	}
+	
 	public static void deleteBrokenLinksTo(String destUrl) {
 		String hql = "delete from BrokenLink where id.destination = :url";
 		Query query = getSession().createQuery(hql);
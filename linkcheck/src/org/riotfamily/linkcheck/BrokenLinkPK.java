@@ -16,6 +16,7 @@ import java.io.Serializable;
 
 import javax.persistence.Embeddable;
 
+import org.hibernate.annotations.Index;
 import org.springframework.util.ObjectUtils;
 
 @Embeddable
@@ -23,6 +24,7 @@ public class BrokenLinkPK implements Serializable {
 	
 	private String destination;
 	
+	@Index(name="riot_broken_links_source")
 	private String source;
 
 	public BrokenLinkPK() {
@@ -64,7 +66,7 @@ public class BrokenLinkPK implements Serializable {
 		if (obj instanceof BrokenLinkPK) {
 			BrokenLinkPK other = (BrokenLinkPK) obj;
 			return ObjectUtils.nullSafeEquals(getSource(), other.getSource())
-					&& ObjectUtils.nullSafeEquals(getSource(), other.getDestination());
+					&& ObjectUtils.nullSafeEquals(getDestination(), other.getDestination());
 		}
 		return false;
 	}
@@ -23,7 +23,7 @@ public class BrokenLinksScreenlet extends ModelAndViewScreenlet {
 	protected void populateModel(Map<String, Object> model,
 			ScreenContext context) {
 
-		model.put("totalBrokenLinks", BrokenLink.findAllBrokenLinks().size());
+		model.put("totalBrokenLinks", BrokenLink.countBrokenLinks());
 	}
 
 }
@@ -13,85 +13,342 @@
 package org.riotfamily.linkcheck;
 
 import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.httpclient.DefaultHttpMethodRetryHandler;
 import org.apache.commons.httpclient.HttpClient;
 import org.apache.commons.httpclient.HttpMethod;
-import org.apache.commons.httpclient.HttpMethodRetryHandler;
 import org.apache.commons.httpclient.HttpStatus;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.methods.GetMethod;
 import org.apache.commons.httpclient.methods.HeadMethod;
 import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
 import org.apache.commons.httpclient.params.HttpMethodParams;
 import org.riotfamily.common.util.FormatUtils;
+import org.riotfamily.common.util.Generics;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 
-public class HttpStatusChecker {	
+/**
+ * Checks the HTTP status of URLs. A HEAD request is sent first, if the 
+ * server doesn't answer with <code>200</code> the check is repeated with a 
+ * GET request, as some servers don't support HEAD requests properly.
+ * <p>
+ * Multiple URLs can be checked concurrently via {@link #checkAll(Collection)}.
+ * The checks are performed by a pool of worker threads that is shared by 
+ * all invocations. Connections are pooled and the number of concurrent 
+ * connections to a single host is limited by 
+ * {@link #setMaxConnectionsPerHost(int)}. The limit is enforced by queueing
+ * the URLs per host, so that a slow host never blocks a worker that could 
+ * check a URL of another host.
+ * </p>
+ * <p>
+ * Successful results are cached for {@link #setCacheTtl(String) cacheTtl}
+ * so that stable links aren't re-checked on every run. The least recently 
+ * used entries are evicted when the cache contains more than 
+ * {@link #setCacheSize(int) cacheSize} URLs. Failures are never cached.
+ * </p>
+ */
+public class HttpStatusChecker implements DisposableBean {	
 	
 	private Logger log = LoggerFactory.getLogger(HttpStatusChecker.class);
 	
-	private HttpClient client = new HttpClient();
+	private MultiThreadedHttpConnectionManager connectionManager = 
+			new MultiThreadedHttpConnectionManager();
+	
+	private HttpClient client = new HttpClient(connectionManager);
+	
+	private int threads = 8;
+	
+	private int maxConnectionsPerHost = 2;
+	
+	private ThreadPoolExecutor executor;
+	
+	private long cacheTtl = FormatUtils.parseMillis("3D");
+	
+	private int cacheSize = 10000;
+	
+	private Map<String, LinkStatus> cache = Collections.synchronizedMap(
+			new LinkedHashMap<String, LinkStatus>(16, 0.75f, true) {
+				
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String, LinkStatus> eldest) {
+					return size() > cacheSize;
+				}
+			});
 	
 	public HttpStatusChecker() {
-		HttpConnectionManagerParams connectionParams = client.getHttpConnectionManager().getParams();
+		HttpConnectionManagerParams connectionParams = connectionManager.getParams();
 		connectionParams.setConnectionTimeout((int) FormatUtils.parseMillis("2s"));
 		connectionParams.setSoTimeout((int) FormatUtils.parseMillis("5s"));
 		connectionParams.setStaleCheckingEnabled(true);
+		connectionParams.setDefaultMaxConnectionsPerHost(maxConnectionsPerHost);
+		connectionParams.setMaxTotalConnections(threads);
 	}
 	
-	private HttpMethod createMethod(String url) {
-		try {
-			return new GetWithoutBodyMethod(url);
+	/**
+	 * Sets the number of threads used by {@link #checkAll(Collection)}.
+	 * Default is <code>8</code>.
+	 */
+	public void setThreads(int threads) {
+		this.threads = threads;
+		connectionManager.getParams().setMaxTotalConnections(threads);
+	}
+
+	/**
+	 * Sets the maximum number of concurrent connections per host.
+	 * Default is <code>2</code>.
+	 */
+	public void setMaxConnectionsPerHost(int maxConnectionsPerHost) {
+		this.maxConnectionsPerHost = maxConnectionsPerHost;
+		connectionManager.getParams().setDefaultMaxConnectionsPerHost(
+				maxConnectionsPerHost);
+	}
+	
+	/**
+	 * Sets how long successful results are cached. Default is 
+	 * <code>3D</code> (three days). 
+	 * @see FormatUtils#parseMillis(String)
+	 */
+	public void setCacheTtl(String cacheTtl) {
+		this.cacheTtl = FormatUtils.parseMillis(cacheTtl);
+	}
+	
+	/**
+	 * Sets the maximum number of cached results. Default is 
+	 * <code>10000</code>.
+	 */
+	public void setCacheSize(int cacheSize) {
+		this.cacheSize = cacheSize;
+	}
+	
+	public void destroy() throws Exception {
+		synchronized (this) {
+			if (executor != null) {
+				executor.shutdownNow();
+			}
 		}
-		catch (IllegalArgumentException e) {
-			return new GetWithoutBodyMethod(FormatUtils.uriEscape(url));
+		connectionManager.shutdown();
+	}
+	
+	/**
+	 * Returns the pool of worker threads, which is created on first use.
+	 * The threads are daemons, so that instances which are not managed by
+	 * a BeanFactory don't prevent the VM from exiting.
+	 */
+	private synchronized ThreadPoolExecutor getExecutor() {
+		if (executor == null) {
+			CustomizableThreadFactory threadFactory = 
+					new CustomizableThreadFactory("HttpStatusChecker-");
+			
+			threadFactory.setDaemon(true);
+			executor = new ThreadPoolExecutor(threads, threads, 
+					60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+					threadFactory);
 		}
+		return executor;
 	}
 	
 	public boolean isOkay(BrokenLink link) {
+		LinkStatus status = check(link.getDestination());
+		status.applyTo(link);
+		return status.isOkay();
+	}
+	
+	/**
+	 * Checks the given URLs concurrently. Duplicate URLs are only checked
+	 * once. 
+	 * @return Map of URLs to their status
+	 */
+	public Map<String, LinkStatus> checkAll(Collection<String> urls) {
+		Set<String> uniqueUrls = Generics.newLinkedHashSet(urls);
+		ConcurrentMap<String, LinkStatus> results = Generics.newConcurrentHashMap();
+		CountDownLatch latch = new CountDownLatch(uniqueUrls.size());
+		
+		Map<String, HostQueue> queues = Generics.newHashMap();
+		for (String url : uniqueUrls) {
+			String host = getHost(url);
+			HostQueue queue = queues.get(host);
+			if (queue == null) {
+				queue = new HostQueue(results, latch);
+				queues.put(host, queue);
+			}
+			queue.urls.add(url);
+		}
+		for (HostQueue queue : queues.values()) {
+			for (int i = 0; i < maxConnectionsPerHost; i++) {
+				queue.next();
+			}
+		}
 		try {
-			HttpMethod method = createMethod(link.getDestination());
-			HttpMethodRetryHandler retryHandler = new DefaultHttpMethodRetryHandler();
-			HttpMethodParams params = new HttpMethodParams();
-			params.setParameter(HttpMethodParams.RETRY_HANDLER, retryHandler);
-			method.setParams(params);
-			method.setFollowRedirects(true);
+			latch.await();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while checking links", e);
+		}
+		Map<String, LinkStatus> result = Generics.newLinkedHashMap(); 
+		for (String url : uniqueUrls) {
+			result.put(url, results.get(url));
+		}
+		return result;
+	}
+	
+	private static String getHost(String url) {
+		int start = url.indexOf("://");
+		if (start == -1) {
+			return "";
+		}
+		start += 3;
+		int end = start;
+		while (end < url.length() && "/?#".indexOf(url.charAt(end)) == -1) {
+			end++;
+		}
+		return url.substring(start, end).toLowerCase();
+	}
 	
+	/**
+	 * URLs of a single host that are waiting to be checked. Each completed
+	 * check submits the next URL, so that no more than 
+	 * <code>maxConnectionsPerHost</code> checks per host are in progress.
+	 */
+	private class HostQueue {
+		
+		private LinkedList<String> urls = Generics.newLinkedList();
+		
+		private ConcurrentMap<String, LinkStatus> results;
+		
+		private CountDownLatch latch;
+		
+		HostQueue(ConcurrentMap<String, LinkStatus> results, CountDownLatch latch) {
+			this.results = results;
+			this.latch = latch;
+		}
+		
+		void next() {
+			final String url;
+			synchronized (this) {
+				url = urls.poll();
+			}
+			if (url == null) {
+				return;
+			}
 			try {
-				int statusCode = client.executeMethod(method);
-				if (log.isDebugEnabled()) {
-					if (log.isDebugEnabled()) {
-						log.debug("Check: " + link + " [" + statusCode + "]");
+				getExecutor().execute(new Runnable() {
+					public void run() {
+						try {
+							results.put(url, check(url));
+						}
+						catch (RuntimeException e) {
+							results.put(url, new LinkStatus(0, e.getMessage()));
+						}
+						finally {
+							latch.countDown();
+						}
+						next();
+					}
+				});
+			}
+			catch (RejectedExecutionException e) {
+				String next = url;
+				while (next != null) {
+					results.put(next, new LinkStatus(0, "Status checker has been shut down"));
+					latch.countDown();
+					synchronized (this) {
+						next = urls.poll();
 					}
 				}
-				link.setStatusCode(statusCode);
-				if (statusCode == HttpStatus.SC_OK) {
-					return true;
-				}
-				else {		
-					link.setStatusText(method.getStatusText());
-				}						
 			}
-			catch (IOException e) {
-				log.info(e.getMessage());
+		}
+	}
+	
+	/**
+	 * Checks the given URL. This method is thread-safe.
+	 */
+	public LinkStatus check(String url) {
+		LinkStatus status = cache.get(url);
+		if (status != null) {
+			if (System.currentTimeMillis() - status.getTimestamp() < cacheTtl) {
+				log.debug("Cached: {} [{}]", url, status.getStatusCode());
+				return status;
 			}
-			finally {
-				method.releaseConnection();
+			cache.remove(url);
+		}
+		status = execute(url, true);
+		if (!status.isOkay()) {
+			status = execute(url, false);
+		}
+		log.debug("Check: {} [{}]", url, status.getStatusCode());
+		if (status.isOkay()) {
+			cache.put(url, status);
+		}
+		return status;
+	}
+	
+	private LinkStatus execute(String url, boolean head) {
+		HttpMethod method;
+		try {
+			method = createMethod(url, head);
+		}
+		catch (IllegalArgumentException e) {
+			return new LinkStatus(0, e.getMessage());
+		}
+		catch (IllegalStateException e) {
+			return new LinkStatus(0, e.getMessage());
+		}
+		HttpMethodParams params = new HttpMethodParams();
+		params.setParameter(HttpMethodParams.RETRY_HANDLER, 
+				new DefaultHttpMethodRetryHandler());
+		
+		method.setParams(params);
+		method.setFollowRedirects(true);
+		try {
+			int statusCode = client.executeMethod(method);
+			String statusText = null;
+			if (statusCode != HttpStatus.SC_OK) {
+				statusText = method.getStatusText();
 			}
+			if (!head) {
+				// Don't read the body, close the connection instead 
+				method.abort();
+			}
+			return new LinkStatus(statusCode, statusText);
+		}
+		catch (IOException e) {
+			log.info(e.getMessage());
+			return new LinkStatus(0, e.getMessage());
 		}
 		catch (IllegalArgumentException e) {
+			return new LinkStatus(0, e.getMessage());
 		}
 		catch (IllegalStateException e) {
+			return new LinkStatus(0, e.getMessage());
+		}
+		finally {
+			method.releaseConnection();
 		}
-		return false;
 	}
 	
-	private static class GetWithoutBodyMethod extends HeadMethod {
-		public GetWithoutBodyMethod(String uri) {
-			super(uri);
+	private HttpMethod createMethod(String url, boolean head) {
+		try {
+			return head ? new HeadMethod(url) : new GetMethod(url);
 		}
-		public String getName() {
-			return "GET";
+		catch (IllegalArgumentException e) {
+			String escaped = FormatUtils.uriEscape(url);
+			return head ? new HeadMethod(escaped) : new GetMethod(escaped);
 		}
 	}
 	
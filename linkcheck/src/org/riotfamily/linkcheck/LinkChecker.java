@@ -13,7 +13,10 @@
 package org.riotfamily.linkcheck;
 
 import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
 
+import org.riotfamily.common.util.Generics;
 import org.riotfamily.crawler.DefaultLinkExtractor;
 import org.riotfamily.crawler.Href;
 import org.riotfamily.crawler.LinkExtractor;
@@ -38,17 +41,22 @@ public class LinkChecker implements PageHandler {
 	
 	private HashSet<String> checkedUrls;
 	
-	private HashSet<Href> hrefsToCheck;
+	/** Links that have not been crawled, keyed by their resolved URL */ 
+	private Map<String, Set<Href>> hrefsToCheck;
 	
+	public void setStatusChecker(HttpStatusChecker statusChecker) {
+		this.statusChecker = statusChecker;
+	}
+
 	public void crawlerStarted() {
 		brokenLinks = new HashSet<BrokenLink>();
 		checkedUrls = new HashSet<String>();
-		hrefsToCheck = new HashSet<Href>();
+		hrefsToCheck = Generics.newHashMap();
 	}
 	
 	public void handlePage(PageData pageData) {
 		checkedUrls.add(pageData.getUrl());
-		hrefsToCheck.remove(pageData.getHref());
+		hrefsToCheck.remove(pageData.getUrl());
 		if (pageData.getStatusCode() >= 400) {
 			BrokenLink link = new BrokenLink(pageData);
 			log.info(String.format("Broken link: %s", link));
@@ -58,8 +66,14 @@ public class LinkChecker implements PageHandler {
 			for (String link : linkExtractor.extractLinks(pageData)) {
 				if (linkFilter.accept(pageData.getUrl(), link)) {
 					Href href = new Href(pageData.getUrl(), link, pageData.getHref().getResolvedUri());
-					if (!checkedUrls.contains(href.getResolvedUri())) {
-						hrefsToCheck.add(href);
+					String url = href.getResolvedUri();
+					if (!checkedUrls.contains(url)) {
+						Set<Href> hrefs = hrefsToCheck.get(url);
+						if (hrefs == null) {
+							hrefs = Generics.newHashSet();
+							hrefsToCheck.put(url, hrefs);
+						}
+						hrefs.add(href);
 					}
 				}
 			}
@@ -69,16 +83,22 @@ public class LinkChecker implements PageHandler {
 	@Transactional
 	public void crawlerFinished() {
 		log.info("Checking links that have not been crawled ...");
-		for (Href href : hrefsToCheck) {
-			BrokenLink link = new BrokenLink(href);
-			if (!statusChecker.isOkay(link)) {
-				log.info(String.format("Broken link: %s", link));
-				brokenLinks.add(link);	
+		Map<String, LinkStatus> results = statusChecker.checkAll(
+				hrefsToCheck.keySet());
+		
+		for (Map.Entry<String, LinkStatus> result : results.entrySet()) {
+			LinkStatus status = result.getValue();
+			if (!status.isOkay()) {
+				for (Href href : hrefsToCheck.get(result.getKey())) {
+					BrokenLink link = new BrokenLink(href);
+					status.applyTo(link);
+					log.info(String.format("Broken link: %s", link));
+					brokenLinks.add(link);
+				}
 			}
 		}
 		
-		BrokenLink.deleteAll();
-		BrokenLink.saveAll(brokenLinks);
+		BrokenLink.synchronizeAll(brokenLinks);
 		
 		log.info("Finished checking all links");
 
@@ -87,22 +107,40 @@ public class LinkChecker implements PageHandler {
 		brokenLinks = null;
 	}
 	
+	@Transactional
 	public void handlePageIncremental(PageData pageData) {
-		if (pageData.getStatusCode() < 400) {
+		if (pageData.getStatusCode() >= 400) {
 			BrokenLink.deleteBrokenLinksFrom(pageData.getUrl());
+			BrokenLink link = new BrokenLink(pageData);
+			log.info(String.format("Broken link: %s", link));
+			BrokenLink.addBrokenLink(link);
+		}
+		else {
 			BrokenLink.deleteBrokenLinksTo(pageData.getUrl());
-			HashSet<BrokenLink> brokenLinks = new HashSet<BrokenLink>();
+			Set<String> urls = Generics.newLinkedHashSet();
 			for (String uri : linkExtractor.extractLinks(pageData)) {
 				if (linkFilter.accept(pageData.getUrl(), uri)) {
-					BrokenLink link = new BrokenLink(pageData.getUrl(), uri);
-					if (!statusChecker.isOkay(link)) {
-						log.info(String.format("Broken link: %s", link));
-						brokenLinks.add(link);
-					}
+					urls.add(uri);
+				}
+			}
+			HashSet<BrokenLink> brokenLinks = new HashSet<BrokenLink>();
+			Map<String, LinkStatus> results = statusChecker.checkAll(urls);
+			for (Map.Entry<String, LinkStatus> result : results.entrySet()) {
+				LinkStatus status = result.getValue();
+				if (!status.isOkay()) {
+					BrokenLink link = new BrokenLink(pageData.getUrl(), result.getKey());
+					status.applyTo(link);
+					log.info(String.format("Broken link: %s", link));
+					brokenLinks.add(link);
 				}
 			}
-			BrokenLink.saveAll(brokenLinks);
+			BrokenLink.synchronizeBrokenLinksFrom(pageData.getUrl(), brokenLinks);
 		}
-	}	
+	}
+	
+	@Transactional
+	public void handlePageRemoved(String url) {
+		BrokenLink.deleteBrokenLinksFrom(url);
+	}
 
 }
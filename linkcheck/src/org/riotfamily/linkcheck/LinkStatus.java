@@ -0,0 +1,62 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.riotfamily.linkcheck;
+
+/**
+ * Result of an HTTP status check.
+ */
+public class LinkStatus {
+
+	private int statusCode;
+	
+	private String statusText;
+	
+	private long timestamp = System.currentTimeMillis();
+
+	public LinkStatus(int statusCode, String statusText) {
+		this.statusCode = statusCode;
+		this.statusText = statusText;
+	}
+
+	/**
+	 * Returns the HTTP status code, or <code>0</code> if no response was 
+	 * received.
+	 */
+	public int getStatusCode() {
+		return statusCode;
+	}
+
+	public String getStatusText() {
+		return statusText;
+	}
+	
+	/**
+	 * Returns when the check was performed.
+	 */
+	public long getTimestamp() {
+		return timestamp;
+	}
+	
+	public boolean isOkay() {
+		return statusCode == 200;
+	}
+	
+	/**
+	 * Copies the status code and text to the given BrokenLink.
+	 */
+	public void applyTo(BrokenLink link) {
+		link.setStatusCode(statusCode);
+		link.setStatusText(statusText);
+	}
+
+}
@@ -12,12 +12,16 @@
  */
 package org.riotfamily.media.cleanup;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Set;
 
 import org.hibernate.HibernateException;
+import org.hibernate.Query;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
 import org.hibernate.Session;
 import org.hibernate.SessionFactory;
 import org.hibernate.engine.SessionFactoryImplementor;
@@ -29,12 +33,14 @@ import org.hibernate.type.Type;
 import org.riotfamily.common.scheduling.HibernateTask;
 import org.riotfamily.common.util.Generics;
 import org.riotfamily.media.model.RiotFile;
+import org.riotfamily.media.store.DefaultFileStore;
 import org.riotfamily.media.store.FileStore;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.transaction.PlatformTransactionManager;
 import org.springframework.transaction.TransactionStatus;
 import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
 import org.springframework.transaction.support.TransactionTemplate;
 
 public class HibernateCleanUpTask extends HibernateTask {
@@ -51,6 +57,8 @@ public class HibernateCleanUpTask extends HibernateTask {
 	
 	private boolean deleteUnmanagedFiles = true;
 	
+	private int batchSize = 500;
+	
 	public HibernateCleanUpTask(SessionFactory sessionFactory, FileStore fileStore, 
 			PlatformTransactionManager tx) {
 		
@@ -68,6 +76,14 @@ public class HibernateCleanUpTask extends HibernateTask {
 		this.deleteUnmanagedFiles = deleteUnmanagedFiles;
 	}
 	
+	/**
+	 * Sets the number of orphaned files that are deleted within one 
+	 * transaction. Also used as JDBC fetch size. Default is <code>500</code>.
+	 */
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+	
 	@Override
 	protected void doWithoutResult(final Session session) throws Exception {
 		log.info("Media clean-up started.");
@@ -76,6 +92,12 @@ public class HibernateCleanUpTask extends HibernateTask {
 			deleteOrphanedFiles(session);
 		}
 		
+		if (fileStore instanceof DefaultFileStore 
+				&& ((DefaultFileStore) fileStore).isContentAddressed()) {
+			
+			migrateFiles(session, (DefaultFileStore) fileStore);
+		}
+		
 		if (deleteUnmanagedFiles) {
 			deleteUnmanagedFiles(session);
 		}
@@ -83,65 +105,208 @@ public class HibernateCleanUpTask extends HibernateTask {
 		log.info("Media clean-up finished.");
 	}
 
-	@SuppressWarnings("unchecked")
+	/**
+	 * Deletes RiotFiles that are not referenced by any other entity. The ids
+	 * of all files and of all referenced files are streamed into two 
+	 * {@link SortedLongSet}s, the orphans are then deleted in batches of 
+	 * {@link #setBatchSize(int) batchSize}, using one transaction per batch.
+	 * <p>
+	 * The file ids are read <em>before</em> the references, so that files
+	 * which are created and referenced while the task is running are not
+	 * considered orphaned.
+	 * </p>
+	 */
 	private void deleteOrphanedFiles(final Session session) {
 		log.info("Looking for orphaned files ...");
-
-		List<Long> fileIds = session.createQuery(
-				"select id from " + RiotFile.class.getName()).list();
 		
-		Set<Long> referencedIds = Generics.newHashSet();
+		SortedLongSet fileIds = new SortedLongSet();
+		Progress progress = new Progress("Read [{}] RiotFile ids");
+		ScrollableResults rs = scroll(session, "select id from " 
+				+ RiotFile.class.getName());
+		try {
+			while (rs.next()) {
+				fileIds.add(rs.getLong(0));
+				progress.step();
+			}
+		}
+		finally {
+			rs.close();
+		}
+		progress.done();
+		
+		SortedLongSet referencedIds = new SortedLongSet();
 		for (String hql : fileQueries) {
 			log.info(hql);
-			referencedIds.addAll(session.createQuery(hql).list());
+			rs = scroll(session, hql);
+			try {
+				while (rs.next()) {
+					referencedIds.add(rs.getLong(0));
+				}
+			}
+			finally {
+				rs.close();
+			}
 		}
-
-		log.info("Deleting [{}] orphaned files ...", fileIds.size() - referencedIds.size());
 		
-		for (Long id : fileIds) {
+		List<Long> orphans = Generics.newArrayList();
+		for (long id : fileIds.toArray()) {
 			if (!referencedIds.contains(id)) {
-				delete(session, id);
+				orphans.add(id);
 			}
 		}
+		
+		log.info("Deleting [{}] orphaned files ...", orphans.size());
+		progress = new Progress("Deleted [{}] orphaned files");
+		for (int i = 0; i < orphans.size(); i += batchSize) {
+			List<Long> batch = orphans.subList(i, Math.min(i + batchSize, orphans.size()));
+			progress.step(delete(session, batch));
+		}
+		progress.done();
+	}
+	
+	/**
+	 * Moves files that have been stored before the FileStore was switched
+	 * to content-addressed mode into the new layout. Duplicates end up 
+	 * sharing a single file, the old copies are removed by
+	 * {@link #deleteUnmanagedFiles(Session)}. Only RiotFiles whose URI lies 
+	 * outside the content-addressed directory are read, so once all files
+	 * have been migrated, the query returns no rows.
+	 */
+	private void migrateFiles(final Session session, DefaultFileStore store) {
+		log.info("Migrating files to content-addressed storage ...");
+		ScrollableResults rs = scroll(session, "select distinct uri, md5 from " 
+				+ RiotFile.class.getName() + " where uri not like ?", 
+				store.getContentUriPrefix() + "%");
+		
+		int count = 0;
+		try {
+			while (rs.next()) {
+				if (migrateFile(session, store, rs.getString(0), rs.getString(1))) {
+					count++;
+				}
+			}
+		}
+		finally {
+			rs.close();
+		}
+		log.info("Migrated [{}] files", count);
+	}
+	
+	private boolean migrateFile(final Session session, DefaultFileStore store, 
+			final String uri, String md5) {
+		
+		if (uri == null) {
+			return false;
+		}
+		try {
+			final String newUri = store.migrate(uri, md5);
+			if (newUri == null) {
+				return false;
+			}
+			transactionTemplate.execute(new TransactionCallbackWithoutResult() {
+				protected void doInTransactionWithoutResult(TransactionStatus status) {
+					session.createQuery("update " + RiotFile.class.getName() 
+							+ " set uri = :newUri where uri = :uri")
+							.setParameter("newUri", newUri)
+							.setParameter("uri", uri)
+							.executeUpdate();
+				}
+			});
+			return true;
+		}
+		catch (IOException e) {
+			log.error("Failed to migrate " + uri, e);
+			return false;
+		}
 	}
 	
+	/**
+	 * Deletes files from the store that don't belong to any RiotFile. The 
+	 * URIs of all RiotFiles are read once and their hashes are kept in a 
+	 * {@link SortedLongSet} which is then compared against a walk of the 
+	 * store. A hash collision may cause an unmanaged file to be kept, but 
+	 * never a managed one to be deleted. Files that have been modified after 
+	 * the URIs were read are skipped, as their RiotFile may not have been 
+	 * committed yet.
+	 */
 	private void deleteUnmanagedFiles(final Session session) {
 		log.info("Deleting unmanaged files ...");
+		long start = System.currentTimeMillis();
+		
+		SortedLongSet managedUris = new SortedLongSet();
+		ScrollableResults rs = scroll(session, "select uri from " 
+				+ RiotFile.class.getName());
+		try {
+			while (rs.next()) {
+				String uri = rs.getString(0);
+				if (uri != null) {
+					managedUris.addHash(uri);
+				}
+			}
+		}
+		finally {
+			rs.close();
+		}
+		log.info("Read [{}] distinct URIs", managedUris.size());
+		
+		int deleted = 0;
+		Progress progress = new Progress("Checked [{}] stored files");
 		Iterator<String> files = fileStore.iterator();
 		while (files.hasNext()) {
 			String uri = files.next();
-			if (!fileExists(session, uri)) {
-				log.debug("Deleting unmanaged file: " + uri);
-				files.remove();
+			if (!managedUris.containsHash(uri)) {
+				File file = fileStore.retrieve(uri);
+				if (file == null || file.lastModified() < start) {
+					log.debug("Deleting unmanaged file: " + uri);
+					files.remove();
+					deleted++;
+				}
 			}
+			progress.step();
 		}
+		progress.done();
+		log.info("Deleted [{}] unmanaged files", deleted);
+	}
+	
+	private ScrollableResults scroll(Session session, String hql, 
+			Object... params) {
+		
+		Query query = session.createQuery(hql).setFetchSize(batchSize);
+		for (int i = 0; i < params.length; i++) {
+			query.setParameter(i, params[i]);
+		}
+		return query.scroll(ScrollMode.FORWARD_ONLY);
 	}
 
-	private void delete(final Session session, final Long id) {
+	/**
+	 * Deletes the RiotFiles with the given ids in a single transaction.
+	 * Returns the number of deleted files.
+	 */
+	private int delete(final Session session, final List<Long> ids) {
 		try {
-			RiotFile file = transactionTemplate.execute(new TransactionCallback<RiotFile>() {
-				public RiotFile doInTransaction(TransactionStatus status) {
-					log.debug("Deleting orphaned file: " + id);
-					RiotFile file = (RiotFile) session.load(RiotFile.class, id);
-					session.delete(file);
-					return file;
+			int count = transactionTemplate.execute(new TransactionCallback<Integer>() {
+				public Integer doInTransaction(TransactionStatus status) {
+					List<?> files = session.createQuery("from " 
+							+ RiotFile.class.getName() + " where id in (:ids)")
+							.setParameterList("ids", ids)
+							.list();
+					
+					for (Object file : files) {
+						session.delete(file);
+					}
+					return files.size();
 				}
 			});
-			session.evict(file);
+			session.clear();
+			return count;
 		}
 		catch (HibernateException e) {
-			log.error("Failed to delete RiotFile " + id, e);
+			log.error("Failed to delete RiotFiles " + ids, e);
+			session.clear();
+			return 0;
 		}
 	}
 	
-	public boolean fileExists(Session session, String uri) {
-		return session.createQuery("select id from " 
-				+ RiotFile.class.getName() 
-				+ " where uri = :uri")
-				.setParameter("uri", uri)
-				.uniqueResult() != null;
-	}
-	
 	private void init() {
 		Collection<ClassMetadata> allMeta = getSessionFactory().getAllClassMetadata().values();
 		for (ClassMetadata meta : allMeta) { 
@@ -214,4 +379,46 @@ public class HibernateCleanUpTask extends HibernateTask {
 		}
 	}
 	
+	/**
+	 * Logs the number of processed items and the throughput every 
+	 * 10,000 items.
+	 */
+	private class Progress {
+		
+		private static final int LOG_INTERVAL = 10000;
+		
+		private String message;
+		
+		private long start = System.currentTimeMillis();
+		
+		private int count;
+		
+		private int nextLog = LOG_INTERVAL;
+		
+		Progress(String message) {
+			this.message = message;
+		}
+		
+		void step() {
+			step(1);
+		}
+		
+		void step(int n) {
+			count += n;
+			if (count >= nextLog) {
+				log();
+				nextLog = count + LOG_INTERVAL;
+			}
+		}
+		
+		void done() {
+			log();
+		}
+		
+		private void log() {
+			long millis = Math.max(System.currentTimeMillis() - start, 1);
+			log.info(message + " ({} per second)", count, count * 1000L / millis);
+		}
+	}
+	
 }
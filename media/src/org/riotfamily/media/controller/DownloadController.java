@@ -13,22 +13,46 @@
 package org.riotfamily.media.controller;
 
 import java.io.File;
-import java.io.FileInputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
 import java.util.regex.Pattern;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.hibernate.HibernateException;
 import org.riotfamily.common.io.IOUtils;
+import org.riotfamily.common.util.Generics;
 import org.riotfamily.common.web.mvc.mapping.HandlerUrlUtils;
+import org.riotfamily.media.model.RiotFile;
 import org.riotfamily.media.store.FileStore;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.web.servlet.ModelAndView;
 import org.springframework.web.servlet.mvc.Controller;
 
+/**
+ * Controller that serves files from a {@link FileStore} as attachments.
+ * <p>
+ * Conditional requests (<code>If-None-Match</code>, 
+ * <code>If-Modified-Since</code>) and byte ranges (<code>Range</code>, 
+ * <code>If-Range</code>) are supported, so that clients can resume 
+ * downloads and seek within media files. The ETag is derived from the MD5 
+ * hash of the corresponding {@link RiotFile}. If no RiotFile can be found, 
+ * a weak ETag based on the file's size and modification date is used 
+ * instead.
+ * </p>
+ */
 public class DownloadController implements Controller {
 
+	private static final String MULTIPART_BOUNDARY = "RIOT_MULTIPART_BOUNDARY";
+	
+	private static final String DEFAULT_CONTENT_TYPE = "application/octet-stream";
+	
+	private static final int MAX_RANGES = 20;
+	
 	private Logger log = LoggerFactory.getLogger(DownloadController.class);
 	
 	private	FileStore fileStore;
@@ -56,22 +80,231 @@ public class DownloadController implements Controller {
 			return null;
 		}		
 		String uri = "/" + HandlerUrlUtils.getPathWithinMapping(request);
-		if (uri != null) {
-			File file = fileStore.retrieve(uri);
-			log.debug("Serving file "+uri+" with content-disposition: attachment");
-			if (file != null && file.canRead()) {
-				response.setHeader("Content-Disposition", "attachment");
-				response.setContentLength((int) file.length());
-				IOUtils.serve(new FileInputStream(file), 
-						response.getOutputStream());
-
-				return null;
+		File file = fileStore.retrieve(uri);
+		if (file == null || !file.canRead()) {
+			response.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return null;
+		}
+		log.debug("Serving file "+uri+" with content-disposition: attachment");
+		
+		long length = file.length();
+		long lastModified = file.lastModified() / 1000 * 1000;
+		String contentType = DEFAULT_CONTENT_TYPE;
+		String etag = null;
+		RiotFile riotFile = lookupRiotFile(uri);
+		if (riotFile != null && riotFile.getMd5() != null) {
+			etag = "\"" + riotFile.getMd5() + "\"";
+			if (riotFile.getContentType() != null) {
+				contentType = riotFile.getContentType();
+			}
+		}
+		else {
+			etag = "W/\"" + Long.toHexString(length) + "-" 
+					+ Long.toHexString(lastModified) + "\"";
+		}
+		
+		response.setHeader("ETag", etag);
+		response.setDateHeader("Last-Modified", lastModified);
+		response.setHeader("Accept-Ranges", "bytes");
+		
+		if (notModified(request, etag, lastModified)) {
+			response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			return null;
+		}
+		
+		response.setHeader("Content-Disposition", "attachment");
+		List<long[]> ranges = null;
+		if (ifRangeMatches(request, etag, lastModified)) {
+			ranges = parseRanges(request.getHeader("Range"), length);
+		}
+		if (ranges == null) {
+			response.setContentType(contentType);
+			response.setHeader("Content-Length", String.valueOf(length));
+			IOUtils.serve(file, 0, length, response.getOutputStream());
+		}
+		else if (ranges.isEmpty()) {
+			response.setHeader("Content-Range", "bytes */" + length);
+			response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+		}
+		else if (ranges.size() == 1) {
+			long[] range = ranges.get(0);
+			response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+			response.setContentType(contentType);
+			response.setHeader("Content-Range", contentRange(range, length));
+			response.setHeader("Content-Length", String.valueOf(range[1] - range[0] + 1));
+			IOUtils.serve(file, range[0], range[1] - range[0] + 1, 
+					response.getOutputStream());
+		}
+		else {
+			response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+			response.setContentType("multipart/byteranges; boundary=" 
+					+ MULTIPART_BOUNDARY);
+			
+			OutputStream out = response.getOutputStream();
+			for (long[] range : ranges) {
+				String partHeader = "\r\n--" + MULTIPART_BOUNDARY 
+						+ "\r\nContent-Type: " + contentType
+						+ "\r\nContent-Range: " + contentRange(range, length)
+						+ "\r\n\r\n";
+				
+				out.write(partHeader.getBytes("ISO-8859-1"));
+				if (IOUtils.serve(file, range[0], range[1] - range[0] + 1, out) < 0) {
+					return null;
+				}
 			}
+			out.write(("\r\n--" + MULTIPART_BOUNDARY + "--\r\n").getBytes("ISO-8859-1"));
+			out.flush();
 		}
-		response.sendError(HttpServletResponse.SC_NOT_FOUND);
 		return null;
 	}
 	
+	/**
+	 * Returns the RiotFile with the given URI, or <code>null</code> if it
+	 * can't be found.
+	 */
+	protected RiotFile lookupRiotFile(String uri) {
+		try {
+			return RiotFile.loadByUri(uri);
+		}
+		catch (HibernateException e) {
+			log.debug("Can't look up RiotFile for " + uri, e);
+			return null;
+		}
+	}
+	
+	private boolean notModified(HttpServletRequest request, String etag, 
+			long lastModified) {
+		
+		String ifNoneMatch = request.getHeader("If-None-Match");
+		if (ifNoneMatch != null) {
+			String strongEtag = etag.startsWith("W/") ? etag.substring(2) : etag;
+			for (String tag : ifNoneMatch.split(",")) {
+				tag = tag.trim();
+				if (tag.startsWith("W/")) {
+					tag = tag.substring(2);
+				}
+				if (tag.equals("*") || tag.equals(strongEtag)) {
+					return true;
+				}
+			}
+			return false;
+		}
+		long ifModifiedSince = getDateHeader(request, "If-Modified-Since");
+		return ifModifiedSince != -1 && ifModifiedSince >= lastModified;
+	}
+	
+	/**
+	 * Returns whether the Range header should be evaluated. This is the case
+	 * if no If-Range header is present, or if it matches the current 
+	 * (strong) ETag or modification date.
+	 */
+	private boolean ifRangeMatches(HttpServletRequest request, String etag, 
+			long lastModified) {
+		
+		String ifRange = request.getHeader("If-Range");
+		if (ifRange == null) {
+			return true;
+		}
+		if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+			return !etag.startsWith("W/") && ifRange.equals(etag);
+		}
+		return getDateHeader(request, "If-Range") == lastModified;
+	}
+	
+	/**
+	 * Parses the given Range header. Returns <code>null</code> if the header
+	 * is missing or malformed, in which case the whole file is sent. Ranges 
+	 * that can't be satisfied are skipped, so an empty list is returned if 
+	 * none of the requested ranges lies within the file. Overlapping and 
+	 * adjacent ranges are merged.
+	 */
+	private List<long[]> parseRanges(String header, long length) {
+		if (header == null || !header.startsWith("bytes=")) {
+			return null;
+		}
+		String[] specs = header.substring(6).split(",");
+		if (specs.length > MAX_RANGES) {
+			return null;
+		}
+		List<long[]> ranges = Generics.newArrayList(specs.length);
+		try {
+			for (String spec : specs) {
+				spec = spec.trim();
+				int i = spec.indexOf('-');
+				if (i == -1) {
+					return null;
+				}
+				long start;
+				long end;
+				if (i == 0) {
+					long suffix = Long.parseLong(spec.substring(1));
+					if (suffix == 0) {
+						continue;
+					}
+					start = Math.max(length - suffix, 0);
+					end = length - 1;
+				}
+				else {
+					start = Long.parseLong(spec.substring(0, i));
+					end = i == spec.length() - 1 ? length - 1 
+							: Long.parseLong(spec.substring(i + 1));
+					
+					if (end < start) {
+						return null;
+					}
+					end = Math.min(end, length - 1);
+				}
+				if (start < length) {
+					ranges.add(new long[] { start, end });
+				}
+			}
+		}
+		catch (NumberFormatException e) {
+			return null;
+		}
+		return merge(ranges);
+	}
+	
+	/**
+	 * Sorts the given ranges and merges those that overlap or are adjacent,
+	 * so that no byte is sent twice.
+	 */
+	private static List<long[]> merge(List<long[]> ranges) {
+		if (ranges.size() < 2) {
+			return ranges;
+		}
+		Collections.sort(ranges, new Comparator<long[]>() {
+			public int compare(long[] r1, long[] r2) {
+				return r1[0] < r2[0] ? -1 : (r1[0] > r2[0] ? 1 : 0);
+			}
+		});
+		List<long[]> merged = Generics.newArrayList(ranges.size());
+		long[] last = null;
+		for (long[] range : ranges) {
+			if (last != null && range[0] <= last[1] + 1) {
+				last[1] = Math.max(last[1], range[1]);
+			}
+			else {
+				last = range;
+				merged.add(range);
+			}
+		}
+		return merged;
+	}
+	
+	private static String contentRange(long[] range, long length) {
+		return "bytes " + range[0] + "-" + range[1] + "/" + length;
+	}
+	
+	private static long getDateHeader(HttpServletRequest request, String name) {
+		try {
+			return request.getDateHeader(name);
+		}
+		catch (IllegalArgumentException e) {
+			return -1;
+		}
+	}
+	
 	private boolean validReferer(HttpServletRequest request) {
 		if (refererPattern == null) {
 			return true;
@@ -0,0 +1,344 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.riotfamily.media.controller;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.hibernate.HibernateException;
+import org.riotfamily.common.io.IOUtils;
+import org.riotfamily.common.util.FormatUtils;
+import org.riotfamily.common.util.HashUtils;
+import org.riotfamily.common.web.mvc.mapping.HandlerUrlUtils;
+import org.riotfamily.common.web.support.ServletUtils;
+import org.riotfamily.media.model.RiotFile;
+import org.riotfamily.media.model.RiotImage;
+import org.riotfamily.media.processing.Thumbnailer;
+import org.riotfamily.media.store.DerivedImageCache;
+import org.riotfamily.media.store.FileStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.util.StringUtils;
+import org.springframework.web.servlet.ModelAndView;
+import org.springframework.web.servlet.mvc.Controller;
+
+/**
+ * Controller that serves resized versions of stored images. The size and
+ * format are encoded in the URL, which has the following form:
+ * <pre>
+ * &lt;width&gt;x&lt;height&gt;[-crop][.&lt;format&gt;]/&lt;signature&gt;/&lt;uri&gt;
+ * </pre>
+ * The signature prevents clients from requesting arbitrary sizes. URLs 
+ * should therefore always be created via 
+ * {@link #getUrl(String, int, int, boolean, String) getUrl()}.
+ * <p>
+ * Images are rendered on first request and stored in a 
+ * {@link DerivedImageCache}, keyed by the MD5 hash of the source file and
+ * the requested parameters. As the URL changes whenever the source does,
+ * responses are served with far-future cache headers.
+ * </p>
+ */
+public class ImageResizeController implements Controller, InitializingBean {
+
+	private static final String FORMATS = "jpg|png|gif";
+	
+	private static final Pattern SPEC_PATTERN = Pattern.compile(
+			"(\\d+)x(\\d+)(-crop)?(?:\\.(" + FORMATS + "))?");
+	
+	private static final Pattern FORMAT_PATTERN = Pattern.compile(FORMATS);
+	
+	/** Format used when the source's extension is not a supported format */
+	private static final String DEFAULT_FORMAT = "jpg";
+	
+	private Logger log = LoggerFactory.getLogger(ImageResizeController.class);
+	
+	private FileStore fileStore;
+	
+	private DerivedImageCache cache;
+	
+	private Thumbnailer thumbnailer;
+	
+	private String secret;
+	
+	private String urlPrefix = "";
+	
+	private int maxSize = 2000;
+	
+	private String cachePeriod = "1Y";
+	
+	private int sourceHashCacheSize = 10000;
+	
+	/** Source hashes keyed by URI, in access order */
+	private Map<String, SourceHash> sourceHashes = 
+			new LinkedHashMap<String, SourceHash>(256, 0.75f, true) {
+				
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String, SourceHash> eldest) {
+					return size() > sourceHashCacheSize;
+				}
+			};
+	
+	public ImageResizeController(FileStore fileStore, DerivedImageCache cache,
+			Thumbnailer thumbnailer) {
+		
+		this.fileStore = fileStore;
+		this.cache = cache;
+		this.thumbnailer = thumbnailer;
+	}
+
+	/**
+	 * Sets the secret that is used to sign the URLs. If not set, a random
+	 * secret is generated, which means that URLs become invalid when the 
+	 * application is restarted.
+	 */
+	public void setSecret(String secret) {
+		this.secret = secret;
+	}
+
+	/**
+	 * Sets the prefix that is added to URLs created by 
+	 * {@link #getUrl(String, int, int, boolean, String) getUrl()}. This is 
+	 * typically the path the controller is mapped to.
+	 */
+	public void setUrlPrefix(String urlPrefix) {
+		this.urlPrefix = FormatUtils.stripTrailingSlash(urlPrefix);
+	}
+
+	/**
+	 * Sets the maximum width and height. Default is <code>2000</code>.
+	 */
+	public void setMaxSize(int maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * Sets how long clients may cache the images. Default is 
+	 * <code>1Y</code> (one year).
+	 * @see FormatUtils#parseMillis(String)
+	 */
+	public void setCachePeriod(String cachePeriod) {
+		this.cachePeriod = cachePeriod;
+	}
+
+	/**
+	 * Sets how many source hashes are kept in memory. Default is 
+	 * <code>10000</code>.
+	 */
+	public void setSourceHashCacheSize(int sourceHashCacheSize) {
+		this.sourceHashCacheSize = sourceHashCacheSize;
+	}
+
+	public void afterPropertiesSet() throws Exception {
+		if (!StringUtils.hasText(secret)) {
+			log.warn("No secret configured, URLs will change after a restart");
+			byte[] bytes = new byte[16];
+			new SecureRandom().nextBytes(bytes);
+			secret = HashUtils.toHex(bytes);
+		}
+	}
+	
+	/**
+	 * Returns the URL of a resized version of the given image.
+	 */
+	public String getUrl(RiotImage image, int width, int height, 
+			boolean crop, String format) {
+		
+		return getUrl(image.getUri(), width, height, crop, format);
+	}
+	
+	/**
+	 * Returns the URL of a resized version of the image with the given URI.
+	 * 
+	 * @param uri URI of a file in the FileStore
+	 * @param width The maximal width
+	 * @param height The maximal height
+	 * @param crop Whether the image should be cropped to the exact size
+	 * @param format The desired format (jpg, jpeg, png or gif), or 
+	 *        <code>null</code> to keep the source format. Unsupported 
+	 *        formats are ignored.
+	 */
+	public String getUrl(String uri, int width, int height, boolean crop, 
+			String format) {
+		
+		StringBuilder spec = new StringBuilder();
+		spec.append(width).append('x').append(height);
+		if (crop) {
+			spec.append("-crop");
+		}
+		format = normalizeFormat(format);
+		if (format != null) {
+			spec.append('.').append(format);
+		}
+		return urlPrefix + "/" + spec + "/" + sign(spec.toString(), uri) + uri;
+	}
+	
+	public ModelAndView handleRequest(HttpServletRequest request,
+			HttpServletResponse response) throws Exception {
+
+		String path = HandlerUrlUtils.getPathWithinMapping(request);
+		String[] parts = path != null ? path.split("/", 3) : null;
+		if (parts == null || parts.length != 3) {
+			response.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return null;
+		}
+		Matcher m = SPEC_PATTERN.matcher(parts[0]);
+		String uri = "/" + parts[2];
+		if (!m.matches()) {
+			response.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return null;
+		}
+		if (!MessageDigest.isEqual(parts[1].getBytes(), 
+				sign(parts[0], uri).getBytes())) {
+			
+			response.sendError(HttpServletResponse.SC_FORBIDDEN);
+			return null;
+		}
+		final int width = Integer.parseInt(m.group(1));
+		final int height = Integer.parseInt(m.group(2));
+		final boolean crop = m.group(3) != null;
+		if (width < 1 || height < 1 || width > maxSize || height > maxSize) {
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+			return null;
+		}
+		final File source = fileStore.retrieve(uri);
+		if (source == null || !source.canRead()) {
+			response.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return null;
+		}
+		String format = m.group(4);
+		if (format == null) {
+			format = normalizeFormat(FormatUtils.getExtension(source.getName()));
+			if (format == null) {
+				format = DEFAULT_FORMAT;
+			}
+		}
+		String key = HashUtils.md5(getSourceHash(uri, source) 
+				+ "/" + parts[0]) + "." + format;
+		
+		String etag = "\"" + key + "\"";
+		if (etag.equals(request.getHeader("If-None-Match"))) {
+			response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			return null;
+		}
+		FileInputStream in = cache.open(key, new DerivedImageCache.Renderer() {
+			public void render(File dest) throws IOException {
+				thumbnailer.renderThumbnail(source, dest, width, height, 
+						crop, null);
+			}
+		});
+		try {
+			response.setContentType("image/" + (format.equals("jpg") ? "jpeg" : format));
+			response.setContentLength((int) in.getChannel().size());
+			response.setHeader("ETag", etag);
+			ServletUtils.setCacheHeaders(response, cachePeriod);
+			IOUtils.serve(in, response.getOutputStream());
+		}
+		finally {
+			IOUtils.closeStream(in);
+		}
+		return null;
+	}
+	
+	/**
+	 * Returns the lower-case name of the given format as used in the URL, 
+	 * or <code>null</code> if the format is not supported.
+	 */
+	private static String normalizeFormat(String format) {
+		if (format == null) {
+			return null;
+		}
+		format = format.toLowerCase();
+		if (format.equals("jpeg")) {
+			return "jpg";
+		}
+		return FORMAT_PATTERN.matcher(format).matches() ? format : null;
+	}
+	
+	/**
+	 * Returns the MD5 hash of the given source file. The hash stored in the
+	 * {@link RiotFile} is used if there is one, otherwise the file is read.
+	 * Hashes are kept in a size-bounded cache and looked up again when the 
+	 * file is modified.
+	 */
+	private String getSourceHash(String uri, File source) throws IOException {
+		SourceHash hash;
+		synchronized (sourceHashes) {
+			hash = sourceHashes.get(uri);
+		}
+		if (hash == null || hash.lastModified != source.lastModified()) {
+			long lastModified = source.lastModified();
+			String md5 = lookupMd5(uri);
+			if (md5 == null) {
+				md5 = HashUtils.md5(new FileInputStream(source));
+			}
+			hash = new SourceHash(lastModified, md5);
+			synchronized (sourceHashes) {
+				sourceHashes.put(uri, hash);
+			}
+		}
+		return hash.md5;
+	}
+	
+	private String lookupMd5(String uri) {
+		try {
+			RiotFile file = RiotFile.loadByUri(uri);
+			return file != null ? file.getMd5() : null;
+		}
+		catch (HibernateException e) {
+			log.debug("Can't look up RiotFile for " + uri, e);
+			return null;
+		}
+	}
+	
+	private String sign(String spec, String uri) {
+		try {
+			Mac mac = Mac.getInstance("HmacSHA1");
+			mac.init(new SecretKeySpec(secret.getBytes("UTF-8"), "HmacSHA1"));
+			byte[] signature = mac.doFinal((spec + uri).getBytes("UTF-8"));
+			return HashUtils.toHex(signature).substring(0, 16);
+		}
+		catch (GeneralSecurityException e) {
+			throw new IllegalStateException(e);
+		}
+		catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	private static class SourceHash {
+		
+		private long lastModified;
+		
+		private String md5;
+
+		SourceHash(long lastModified, String md5) {
+			this.lastModified = lastModified;
+			this.md5 = md5;
+		}
+	}
+	
+}
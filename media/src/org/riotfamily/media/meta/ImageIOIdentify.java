@@ -0,0 +1,80 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.riotfamily.media.meta;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Extracts meta data from JPEG, PNG and GIF images by reading their header 
+ * via ImageIO, which avoids forking an ImageMagick process. The returned 
+ * type mimics the <code>%r</code> output of ImageMagick's identify command. 
+ */
+public class ImageIOIdentify {
+
+	/**
+	 * Returns the meta data of the given image, or <code>null</code> if 
+	 * the format is not supported.
+	 */
+	public ImageMetaData identify(File file) {
+		try {
+			ImageInputStream in = ImageIO.createImageInputStream(file);
+			if (in == null) {
+				return null;
+			}
+			try {
+				Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+				if (!readers.hasNext()) {
+					return null;
+				}
+				ImageReader reader = readers.next();
+				try {
+					String format = reader.getFormatName().toUpperCase();
+					if (!format.equals("JPEG") && !format.equals("PNG") 
+							&& !format.equals("GIF")) {
+						
+						return null;
+					}
+					reader.setInput(in, true, true);
+					ImageMetaData meta = new ImageMetaData();
+					meta.setFormat(format);
+					meta.setWidth(reader.getWidth(0));
+					meta.setHeight(reader.getHeight(0));
+					ImageTypeSpecifier type = reader.getRawImageType(0);
+					boolean alpha = type != null 
+							&& type.getColorModel().hasAlpha();
+					
+					meta.setType(alpha ? "DirectClass sRGB Matte" 
+							: "DirectClass sRGB");
+					
+					return meta;
+				}
+				finally {
+					reader.dispose();
+				}
+			}
+			finally {
+				in.close();
+			}
+		}
+		catch (IOException e) {
+			return null;
+		}
+	}
+}
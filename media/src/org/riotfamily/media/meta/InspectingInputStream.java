@@ -0,0 +1,129 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.riotfamily.media.meta;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.riotfamily.common.util.HashUtils;
+
+/**
+ * InputStream that computes the MD5 hash and the size of the data that is
+ * read through it and keeps a copy of the first bytes, which can be used to 
+ * sniff the content type. This allows a file to be stored and inspected 
+ * in a single pass.
+ * 
+ * @see MediaService#getContentType(String, byte[])
+ */
+public class InspectingInputStream extends FilterInputStream {
+
+	private static final int HEADER_SIZE = 1024;
+	
+	private MessageDigest digest;
+	
+	private long size;
+	
+	private byte[] header = new byte[HEADER_SIZE];
+	
+	private String md5;
+	
+	public InspectingInputStream(InputStream in) {
+		super(in);
+		try {
+			digest = MessageDigest.getInstance(HashUtils.MD5);
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	@Override
+	public int read() throws IOException {
+		int b = super.read();
+		if (b != -1) {
+			update(new byte[] { (byte) b }, 0, 1);
+		}
+		return b;
+	}
+	
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		int count = super.read(b, off, len);
+		if (count > 0) {
+			update(b, off, count);
+		}
+		return count;
+	}
+	
+	@Override
+	public long skip(long n) throws IOException {
+		byte[] buffer = new byte[8192];
+		long skipped = 0;
+		while (skipped < n) {
+			int count = read(buffer, 0, (int) Math.min(buffer.length, n - skipped));
+			if (count == -1) {
+				break;
+			}
+			skipped += count;
+		}
+		return skipped;
+	}
+	
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+	
+	private void update(byte[] b, int off, int len) {
+		if (size < HEADER_SIZE) {
+			System.arraycopy(b, off, header, (int) size, 
+					(int) Math.min(len, HEADER_SIZE - size));
+		}
+		digest.update(b, off, len);
+		size += len;
+	}
+	
+	/**
+	 * Returns the number of bytes read so far.
+	 */
+	public long getSize() {
+		return size;
+	}
+	
+	/**
+	 * Returns the MD5 hash of the data as hex String. Must only be called 
+	 * after the stream has been read completely.
+	 */
+	public String getMd5() {
+		if (md5 == null) {
+			md5 = HashUtils.toHex(digest.digest());
+		}
+		return md5;
+	}
+	
+	/**
+	 * Returns the first bytes of the data.
+	 */
+	public byte[] getHeader() {
+		if (size >= HEADER_SIZE) {
+			return header;
+		}
+		byte[] result = new byte[(int) size];
+		System.arraycopy(header, 0, result, 0, result.length);
+		return result;
+	}
+	
+}
@@ -12,9 +12,11 @@
  */
 package org.riotfamily.media.meta;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.URLConnection;
 
 import javax.activation.FileTypeMap;
 
@@ -27,6 +29,8 @@ import org.riotfamily.media.store.FileStore;
  */
 public class MediaService {
 	
+	private static final String DEFAULT_CONTENT_TYPE = "application/octet-stream";
+	
 	private FileStore fileStore;
 	
 	private FileTypeMap fileTypeMap;
@@ -34,6 +38,8 @@ public class MediaService {
 	private FFmpeg ffmpeg;
 	
 	private ImageMagickIdentify imageMagick;
+	
+	private ImageIOIdentify imageIO = new ImageIOIdentify();
 
 	public MediaService(FileStore fileStore, FileTypeMap fileTypeMap, 
 			ImageMagickIdentify imageMagick, FFmpeg ffmpeg) {
@@ -60,7 +66,38 @@ public class MediaService {
 		return fileTypeMap.getContentType(file);
 	}
 	
+	/**
+	 * Determines the content type by looking at the file name. If the
+	 * name is not mapped to a specific type, the type is guessed by looking
+	 * at the first bytes of the data.
+	 * @see InspectingInputStream#getHeader()
+	 */
+	public String getContentType(String fileName, byte[] header) {
+		String contentType = fileTypeMap.getContentType(fileName);
+		if (DEFAULT_CONTENT_TYPE.equals(contentType) && header != null) {
+			try {
+				String guessed = URLConnection.guessContentTypeFromStream(
+						new ByteArrayInputStream(header));
+				
+				if (guessed != null) {
+					contentType = guessed;
+				}
+			}
+			catch (IOException e) {
+			}
+		}
+		return contentType;
+	}
+	
+	/**
+	 * Returns the meta data of the given image. JPEG, PNG and GIF images are
+	 * inspected in-process, all other formats are identified by ImageMagick.
+	 */
 	public ImageMetaData identifyImage(File file) throws UnknownFormatException {
+		ImageMetaData meta = imageIO.identify(file);
+		if (meta != null) {
+			return meta;
+		}
 		return imageMagick.identify(file);
 	}
 	
@@ -14,8 +14,8 @@ package org.riotfamily.media.model;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Date;
@@ -33,19 +33,19 @@ import javax.persistence.JoinTable;
 import javax.persistence.OneToMany;
 import javax.persistence.Table;
 import javax.persistence.Transient;
-import javax.persistence.UniqueConstraint;
 
 import org.hibernate.annotations.Cache;
 import org.hibernate.annotations.CacheConcurrencyStrategy;
+import org.hibernate.annotations.Index;
 import org.riotfamily.common.hibernate.ActiveRecordBeanSupport;
 import org.riotfamily.common.util.FormatUtils;
 import org.riotfamily.common.util.Generics;
 import org.riotfamily.common.util.HashUtils;
 import org.riotfamily.core.security.AccessController;
 import org.riotfamily.core.security.auth.RiotUser;
+import org.riotfamily.media.meta.InspectingInputStream;
 import org.riotfamily.media.meta.MediaService;
 import org.springframework.util.Assert;
-import org.springframework.util.FileCopyUtils;
 import org.springframework.web.multipart.MultipartFile;
 
 
@@ -54,11 +54,7 @@ import org.springframework.web.multipart.MultipartFile;
  * @since 7.0
  */
 @Entity
-@Table(name="riot_files",
-	uniqueConstraints={
-		@UniqueConstraint(columnNames={"uri"})			
-	}
-)
+@Table(name="riot_files")
 @Inheritance(strategy=InheritanceType.SINGLE_TABLE)
 @DiscriminatorValue("file")
 @Cache(usage=CacheConcurrencyStrategy.NONSTRICT_READ_WRITE, region="media")
@@ -146,40 +142,45 @@ public class RiotFile extends ActiveRecordBeanSupport {
 	
 	@Transient
 	public void setMultipartFile(MultipartFile multipartFile) throws IOException {
-		fileName = multipartFile.getOriginalFilename();
-		size = multipartFile.getSize();
-		contentType = multipartFile.getContentType();
-		initCreationInfo();
-		uri = mediaService.store(multipartFile.getInputStream(), fileName, bucket);
-		md5 = HashUtils.md5(multipartFile.getInputStream());
-		inspect(getFile());
+		store(multipartFile.getInputStream(), 
+				multipartFile.getOriginalFilename(),
+				multipartFile.getContentType());
 	}
 	
 	@Transient
 	public void setFile(File file) throws IOException {
-		fileName = file.getName();
-		size = file.length();
-		contentType = mediaService.getContentType(file);
-		initCreationInfo();
-		uri = mediaService.store(new FileInputStream(file), fileName, bucket);
-		md5 = HashUtils.md5(new FileInputStream(file));
-		inspect(file);
+		store(new FileInputStream(file), file.getName(), null);
 	}
 	
 	@Transient
 	public void setInputStream(InputStream in, String fileName) throws IOException {
-		File f = createEmptyFile(fileName);
-		FileCopyUtils.copy(in, new FileOutputStream(f));
-		contentType = mediaService.getContentType(f);		
-		updateMetaData();
+		store(in, fileName, null);
 	}
 	
 	@Transient
 	public void setBytes(byte[] bytes, String fileName) throws IOException {
-		File f = createEmptyFile(fileName);
-		FileCopyUtils.copy(bytes, f);
-		contentType = mediaService.getContentType(f);		
-		updateMetaData();
+		store(new ByteArrayInputStream(bytes), fileName, null);
+	}
+	
+	/**
+	 * Stores the data and computes the size, MD5 hash and (unless 
+	 * specified) the content type while the data is written, so that the 
+	 * input is only read once.
+	 */
+	private void store(InputStream in, String fileName, String contentType) 
+			throws IOException {
+		
+		this.fileName = fileName;
+		initCreationInfo();
+		InspectingInputStream is = new InspectingInputStream(in);
+		uri = mediaService.store(is, fileName, bucket);
+		size = is.getSize();
+		md5 = is.getMd5();
+		if (contentType == null) {
+			contentType = mediaService.getContentType(fileName, is.getHeader());
+		}
+		this.contentType = contentType;
+		inspect(getFile());
 	}
 	
 	public File createEmptyFile(String name) throws IOException {
@@ -210,6 +211,7 @@ public class RiotFile extends ActiveRecordBeanSupport {
 	protected void inspect(File file) throws IOException {
 	}
 	
+	@Index(name="riot_files_uri")
 	public String getUri() {
 		return this.uri;
 	}
@@ -223,8 +225,25 @@ public class RiotFile extends ActiveRecordBeanSupport {
 		return mediaService.retrieve(uri);
 	}
 	
+	/**
+	 * Deletes the file from the store, unless it is shared with other 
+	 * RiotFiles, which is the case if the FileStore is content-addressed.
+	 * As the count does not include uncommitted RiotFiles, a 
+	 * content-addressed store keeps files that have been reused recently.
+	 */
 	public void deleteFile() {
-		mediaService.delete(uri);
+		if (countOtherReferences() == 0) {
+			mediaService.delete(uri);
+		}
+	}
+	
+	private int countOtherReferences() {
+		if (getId() == null) {
+			return query(RiotFile.class, "select count(*) from {} where uri = ?", 
+					uri).intResult();
+		}
+		return query(RiotFile.class, "select count(*) from {} " 
+				+ "where uri = ? and id <> ?", uri, getId()).intResult();
 	}
 
 	@Transient
@@ -337,12 +356,16 @@ public class RiotFile extends ActiveRecordBeanSupport {
 	// Active record methods
 	// ----------------------------------------------------------------------
 	
+	public static RiotFile load(Long id) {
+		return load(RiotFile.class, id);
+	}
+	
 	public static RiotFile loadByUri(String uri) {
-		return query(RiotFile.class, "from {} where uri = ?", uri).load();
+		return query(RiotFile.class, "from {} where uri = ?", uri).limit(0, 1).load();
 	}
 	
 	public static RiotFile loadByMd5(String md5) {
-		return query(RiotFile.class, "from {} where md5 = ?", md5).load();
+		return query(RiotFile.class, "from {} where md5 = ?", md5).limit(0, 1).load();
 	}
 	
 }
@@ -18,7 +18,7 @@ import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-import org.riotfamily.common.io.IOUtils;
+import org.riotfamily.common.io.ProcessExecutor;
 import org.riotfamily.media.meta.VideoMetaData;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -49,22 +49,35 @@ public class FFmpeg implements InitializingBean {
 
 	private String version;
 	
+	private ProcessExecutor processExecutor;
+	
 	public void setCommand(String command) {
 		this.command = command;
 	}
 	
+	/**
+	 * Sets the ProcessExecutor that is used to run the binary. If not set,
+	 * a private executor with default limits is used.
+	 */
+	public void setProcessExecutor(ProcessExecutor processExecutor) {
+		this.processExecutor = processExecutor;
+	}
+	
 	private String getDefaultCommand() {
 		String os = System.getProperty("os.name");
 		return os.startsWith("Windows") ? "ffmpeg.exe" : "ffmpeg";
 	}
 	
 	public void afterPropertiesSet() {
+		if (processExecutor == null) {
+			processExecutor = new ProcessExecutor("FFmpeg");
+		}
 		try {
 			if (command == null) {
 				command = getDefaultCommand();
 			}
 			log.info("Looking for FFmpeg binary: " + command);
-			version = IOUtils.exec(command, "-version");
+			version = processExecutor.exec(command, "-version");
 			log.info(version);
 		}
 		catch (IOException e) {
@@ -84,11 +97,11 @@ public class FFmpeg implements InitializingBean {
 		Assert.state(isAvailable(), "FFmpeg binary '" 
 				+ command + "' not found in path.");
 		
-		return IOUtils.exec(command, args);
+		return processExecutor.exec(command, args);
 	}
 	
 	public VideoMetaData identify(File file) throws IOException {
-		String out = IOUtils.exec(command, "-i", file.getAbsolutePath());
+		String out = processExecutor.exec(command, "-i", file.getAbsolutePath());
 		VideoMetaData meta = new VideoMetaData(); 
 		Matcher m = DURATION_PATTERN.matcher(out);
 		if (m.find()) {
@@ -18,7 +18,7 @@ import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-import org.riotfamily.common.io.IOUtils;
+import org.riotfamily.common.io.ProcessExecutor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.InitializingBean;
@@ -48,6 +48,8 @@ public class ImageMagick implements InitializingBean {
 	
 	private int microVersion;
 	
+	private ProcessExecutor processExecutor;
+	
 	public ImageMagick() {
 		this("convert");
 	}
@@ -64,6 +66,14 @@ public class ImageMagick implements InitializingBean {
 		this.command = command;
 	}
 	
+	/**
+	 * Sets the ProcessExecutor that is used to run the binary. If not set,
+	 * a private executor with default limits is used.
+	 */
+	public void setProcessExecutor(ProcessExecutor processExecutor) {
+		this.processExecutor = processExecutor;
+	}
+	
 	protected boolean isWindows() {
 		String os = System.getProperty("os.name");
 		return os.startsWith("Windows");
@@ -91,12 +101,15 @@ public class ImageMagick implements InitializingBean {
 	}
 	
 	public void afterPropertiesSet() {
+		if (processExecutor == null) {
+			processExecutor = new ProcessExecutor("ImageMagick");
+		}
 		try {
 			if (command == null) {
 				command = getDefaultCommand();
 			}
 			log.info("Looking for ImageMagick binary '{}'", command);
-			String version = IOUtils.exec(command, "-version");
+			String version = processExecutor.exec(command, "-version");
 			log.info(version);
 			
 			Matcher matcher = majorMinorMicroPattern.matcher(version);
@@ -147,14 +160,14 @@ public class ImageMagick implements InitializingBean {
 		Assert.state(isAvailable(), "ImageMagick binary '" 
 				+ command + "' not found in path.");
 		
-		return IOUtils.exec(command, args);
+		return processExecutor.exec(command, args);
 	}
 	
 	public String invoke(List<String> args) throws IOException {
 		Assert.state(isAvailable(), "ImageMagick binary '" 
 				+ command + "' not found in path.");
 		
-		return IOUtils.exec(command, args);
+		return processExecutor.exec(command, args);
 	}	
 	
 }
@@ -0,0 +1,439 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.riotfamily.media.processing;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.Transparency;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.SoftReference;
+import java.util.Iterator;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+
+import org.riotfamily.common.util.FormatUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Thumbnailer that renders thumbnails in-process using ImageIO and Java2D.
+ * It produces the same results as the {@link ImageMagickThumbnailer}:
+ * <ul>
+ *   <li>Images are scaled down to fit the given size</li>
+ *   <li>If <code>fixedSize</code> is set and a backgroundColor is 
+ *       specified, the scaled image is centered on a canvas of the given
+ *       size</li>
+ *   <li>If <code>fixedSize</code> is set without a backgroundColor, the
+ *       image is scaled to cover the given size and cropped from the 
+ *       center</li>
+ *   <li>A width or height of <code>0</code> leaves the respective 
+ *       dimension unconstrained, like ImageMagick's <code>0x100&gt;</code>
+ *       geometry. Cropping requires both dimensions.</li>
+ * </ul>
+ * <p>
+ * Large images are decoded with source subsampling, so that the decoded 
+ * image is not much larger than twice the requested size. The image is then 
+ * scaled down in multiple steps, halving its size each time, which gives 
+ * results comparable to an area-averaging filter at a fraction of the cost.
+ * The most recently decoded image is kept in a soft reference, so that 
+ * multiple thumbnails of the same source only decode it once. Decoding is
+ * not serialized, concurrent requests for different sources run in 
+ * parallel.
+ * </p>
+ * <p>
+ * Images that can't be read or written by ImageIO (including CMYK JPEGs)
+ * and background colors other than hex values are handed over to the
+ * fallback Thumbnailer, if one is configured.
+ * </p>
+ */
+public class Java2DThumbnailer implements Thumbnailer {
+
+	private Logger log = LoggerFactory.getLogger(Java2DThumbnailer.class);
+	
+	private Thumbnailer fallback;
+	
+	private float jpegQuality = 0.85f;
+	
+	private volatile SoftReference<DecodedImage> lastDecoded;
+	
+	public Java2DThumbnailer() {
+	}
+	
+	public Java2DThumbnailer(Thumbnailer fallback) {
+		this.fallback = fallback;
+	}
+	
+	public Java2DThumbnailer(ImageMagick imageMagick) {
+		this(new ImageMagickThumbnailer(imageMagick));
+	}
+
+	/**
+	 * Sets the quality of JPEG thumbnails (0..1). Default is <code>0.85</code>.
+	 */
+	public void setJpegQuality(float jpegQuality) {
+		this.jpegQuality = jpegQuality;
+	}
+	
+	public void renderThumbnail(File source, File dest, int width, int height,
+			boolean fixedSize, String backgroundColor) throws IOException {
+		
+		Color background = null;
+		if (backgroundColor != null) {
+			background = parseColor(backgroundColor);
+		}
+		String format = FormatUtils.getExtension(dest.getName()).toLowerCase();
+		if ((backgroundColor != null && background == null)
+				|| !ImageIO.getImageWritersBySuffix(format).hasNext()) {
+			
+			renderWithFallback(source, dest, width, height, fixedSize, 
+					backgroundColor, null);
+			
+			return;
+		}
+		try {
+			boolean crop = fixedSize && background == null 
+					&& width > 0 && height > 0;
+			
+			BufferedImage image = decode(source, width, height, crop);
+			if (image == null) {
+				renderWithFallback(source, dest, width, height, fixedSize, 
+						backgroundColor, null);
+				
+				return;
+			}
+			BufferedImage thumbnail;
+			if (crop) {
+				thumbnail = crop(image, width, height);
+			}
+			else {
+				thumbnail = fit(image, width, height);
+				if (fixedSize && background != null) {
+					thumbnail = pad(thumbnail, width, height, background);
+				}
+			}
+			write(thumbnail, dest, format, background);
+		}
+		catch (IOException e) {
+			renderWithFallback(source, dest, width, height, fixedSize, 
+					backgroundColor, e);
+		}
+	}
+	
+	private void renderWithFallback(File source, File dest, int width, 
+			int height, boolean fixedSize, String backgroundColor, 
+			IOException e) throws IOException {
+		
+		if (fallback == null) {
+			if (e != null) {
+				throw e;
+			}
+			throw new IOException("Unsupported image: " + source.getName());
+		}
+		log.debug("Using fallback to render {}", source.getName());
+		fallback.renderThumbnail(source, dest, width, height, fixedSize, 
+				backgroundColor);
+	}
+	
+	// ----------------------------------------------------------------------
+	// Decoding
+	// ----------------------------------------------------------------------
+	
+	/**
+	 * Decodes the source image. If the image is larger than twice the 
+	 * required size, only every n-th pixel is read. Returns 
+	 * <code>null</code> if there is no ImageReader for the format.
+	 */
+	private BufferedImage decode(File source, int width, 
+			int height, boolean cover) throws IOException {
+		
+		SoftReference<DecodedImage> ref = lastDecoded;
+		DecodedImage decoded = ref != null ? ref.get() : null;
+		if (decoded != null && decoded.isSuitable(source, width, height, cover)) {
+			return decoded.image;
+		}
+		ImageInputStream in = ImageIO.createImageInputStream(source);
+		if (in == null) {
+			return null;
+		}
+		try {
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+			if (!readers.hasNext()) {
+				return null;
+			}
+			ImageReader reader = readers.next();
+			try {
+				reader.setInput(in, true, true);
+				int sourceWidth = reader.getWidth(0);
+				int sourceHeight = reader.getHeight(0);
+				double scale = getScale(sourceWidth, sourceHeight, 
+						width, height, cover);
+				
+				int subsampling = Math.max(1, (int) (0.5 / scale));
+				ImageReadParam param = reader.getDefaultReadParam();
+				param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+				BufferedImage image = reader.read(0, param);
+				decoded = new DecodedImage(source, image, sourceWidth, 
+						sourceHeight, subsampling);
+				
+				lastDecoded = new SoftReference<DecodedImage>(decoded);
+				return image;
+			}
+			finally {
+				reader.dispose();
+			}
+		}
+		finally {
+			in.close();
+		}
+	}
+	
+	/**
+	 * Returns the factor by which an image has to be scaled in order to 
+	 * fit into (or to cover) the given box. A width or height of 
+	 * <code>0</code> is treated as unconstrained.
+	 */
+	static double getScale(int sourceWidth, int sourceHeight, 
+			int width, int height, boolean cover) {
+		
+		if (width <= 0) {
+			return height <= 0 ? 1 : (double) height / sourceHeight;
+		}
+		if (height <= 0) {
+			return (double) width / sourceWidth;
+		}
+		double sx = (double) width / sourceWidth;
+		double sy = (double) height / sourceHeight;
+		return cover ? Math.max(sx, sy) : Math.min(sx, sy);
+	}
+	
+	// ----------------------------------------------------------------------
+	// Scaling
+	// ----------------------------------------------------------------------
+	
+	/**
+	 * Scales the image down to fit into the given box. Images that are 
+	 * already small enough are returned unmodified.
+	 */
+	private BufferedImage fit(BufferedImage image, int width, int height) {
+		double scale = getScale(image.getWidth(), image.getHeight(), 
+				width, height, false);
+		
+		if (scale >= 1) {
+			return image;
+		}
+		return scale(image, 
+				Math.max(1, (int) Math.round(image.getWidth() * scale)), 
+				Math.max(1, (int) Math.round(image.getHeight() * scale)));
+	}
+	
+	/**
+	 * Scales the image to cover the given box and crops it from the center.
+	 */
+	private BufferedImage crop(BufferedImage image, int width, int height) {
+		double scale = getScale(image.getWidth(), image.getHeight(), 
+				width, height, true);
+		
+		int w = Math.max(width, (int) Math.round(image.getWidth() * scale));
+		int h = Math.max(height, (int) Math.round(image.getHeight() * scale));
+		BufferedImage scaled = scale(image, w, h);
+		return scaled.getSubimage((w - width) / 2, (h - height) / 2, 
+				width, height);
+	}
+	
+	/**
+	 * Centers the image on a canvas of the given size. Unconstrained 
+	 * dimensions are not padded.
+	 */
+	private BufferedImage pad(BufferedImage image, int width, int height,
+			Color background) {
+		
+		width = Math.max(width, image.getWidth());
+		height = Math.max(height, image.getHeight());
+		BufferedImage canvas = new BufferedImage(width, height, 
+				getType(image));
+		
+		Graphics2D g = canvas.createGraphics();
+		g.setColor(background);
+		g.fillRect(0, 0, width, height);
+		g.drawImage(image, (width - image.getWidth()) / 2, 
+				(height - image.getHeight()) / 2, null);
+		
+		g.dispose();
+		return canvas;
+	}
+	
+	/**
+	 * Scales the image to the given size. When scaling down, the size 
+	 * is halved in each step until the target size is reached.
+	 */
+	private BufferedImage scale(BufferedImage image, int width, int height) {
+		int w = image.getWidth();
+		int h = image.getHeight();
+		BufferedImage result = image;
+		do {
+			if (w > width) {
+				w = Math.max(w / 2, width);
+			}
+			else {
+				w = width;
+			}
+			if (h > height) {
+				h = Math.max(h / 2, height);
+			}
+			else {
+				h = height;
+			}
+			BufferedImage step = new BufferedImage(w, h, getType(image));
+			Graphics2D g = step.createGraphics();
+			g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, 
+					RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+			
+			g.setRenderingHint(RenderingHints.KEY_RENDERING, 
+					RenderingHints.VALUE_RENDER_QUALITY);
+			
+			g.drawImage(result, 0, 0, w, h, null);
+			g.dispose();
+			result = step;
+		}
+		while (w != width || h != height);
+		return result;
+	}
+	
+	private static int getType(BufferedImage image) {
+		return image.getTransparency() == Transparency.OPAQUE 
+				? BufferedImage.TYPE_INT_RGB 
+				: BufferedImage.TYPE_INT_ARGB;
+	}
+	
+	// ----------------------------------------------------------------------
+	// Encoding
+	// ----------------------------------------------------------------------
+	
+	private void write(BufferedImage image, File dest, String format, 
+			Color background) throws IOException {
+		
+		ImageWriter writer = ImageIO.getImageWritersBySuffix(format).next();
+		ImageWriteParam param = writer.getDefaultWriteParam();
+		if (format.equals("jpg") || format.equals("jpeg")) {
+			image = removeAlpha(image, background);
+			param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+			param.setCompressionQuality(jpegQuality);
+		}
+		dest.delete();
+		ImageOutputStream out = ImageIO.createImageOutputStream(dest);
+		try {
+			writer.setOutput(out);
+			writer.write(null, new IIOImage(image, null, null), param);
+		}
+		finally {
+			writer.dispose();
+			out.close();
+		}
+	}
+	
+	private BufferedImage removeAlpha(BufferedImage image, Color background) {
+		if (image.getTransparency() == Transparency.OPAQUE 
+				&& image.getType() == BufferedImage.TYPE_INT_RGB) {
+			
+			return image;
+		}
+		BufferedImage rgb = new BufferedImage(image.getWidth(), 
+				image.getHeight(), BufferedImage.TYPE_INT_RGB);
+		
+		Graphics2D g = rgb.createGraphics();
+		g.setColor(background != null ? background : Color.WHITE);
+		g.fillRect(0, 0, image.getWidth(), image.getHeight());
+		g.drawImage(image, 0, 0, null);
+		g.dispose();
+		return rgb;
+	}
+	
+	/**
+	 * Parses colors in the form <code>#rgb</code> or <code>#rrggbb</code>.
+	 * Returns <code>null</code> for all other values.
+	 */
+	static Color parseColor(String s) {
+		if (s.startsWith("#")) {
+			String hex = s.substring(1);
+			if (hex.length() == 3) {
+				hex = new StringBuilder()
+						.append(hex.charAt(0)).append(hex.charAt(0))
+						.append(hex.charAt(1)).append(hex.charAt(1))
+						.append(hex.charAt(2)).append(hex.charAt(2))
+						.toString();
+			}
+			if (hex.length() == 6) {
+				try {
+					return new Color(Integer.parseInt(hex, 16));
+				}
+				catch (NumberFormatException e) {
+				}
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * A decoded source image.
+	 */
+	private static class DecodedImage {
+		
+		private String path;
+		
+		private long lastModified;
+		
+		private BufferedImage image;
+		
+		private int sourceWidth;
+		
+		private int sourceHeight;
+		
+		private int subsampling;
+
+		DecodedImage(File source, BufferedImage image, int sourceWidth, 
+				int sourceHeight, int subsampling) {
+			
+			this.path = source.getAbsolutePath();
+			this.lastModified = source.lastModified();
+			this.image = image;
+			this.sourceWidth = sourceWidth;
+			this.sourceHeight = sourceHeight;
+			this.subsampling = subsampling;
+		}
+		
+		/**
+		 * Returns whether the image has been decoded from the given source 
+		 * with enough detail for the requested size.
+		 */
+		boolean isSuitable(File source, int width, int height, boolean cover) {
+			if (!path.equals(source.getAbsolutePath()) 
+					|| lastModified != source.lastModified()) {
+				
+				return false;
+			}
+			double scale = getScale(sourceWidth, sourceHeight, width, height, cover);
+			return subsampling <= Math.max(1, (int) (0.5 / scale));
+		}
+	}
+	
+}
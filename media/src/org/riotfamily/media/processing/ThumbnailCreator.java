@@ -65,7 +65,7 @@ public class ThumbnailCreator {
 		this.height = height;
 	}
 		
-	protected RiotFile createVariant(RiotFile original) throws IOException {
+	public RiotFile createVariant(RiotFile original) throws IOException {
 		RiotImage thumbnail = new RiotImage();
 		String thumbName = original.getFileName();
 		if (format != null) {
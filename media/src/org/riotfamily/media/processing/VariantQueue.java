@@ -0,0 +1,291 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.riotfamily.media.processing;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.riotfamily.cachius.CacheService;
+import org.riotfamily.common.util.Generics;
+import org.riotfamily.common.web.cache.tags.CacheTagUtils;
+import org.riotfamily.media.model.RiotFile;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Queue that creates file variants (like thumbnails) in the background.
+ * <p>
+ * Jobs are processed by a fixed number of worker threads, which also limits
+ * the number of external processes (like ImageMagick) that run at the same
+ * time. Variants that are requested by a page via 
+ * {@link #getVariant(RiotFile, String, ThumbnailCreator) getVariant()} take
+ * precedence over variants that are created ahead of time via 
+ * {@link #submit(RiotFile, String, ThumbnailCreator) submit()}. Failed jobs
+ * are retried up to {@link #setMaxAttempts(int) maxAttempts} times.
+ * </p>
+ * <p>
+ * If a job is submitted within a transaction, it is queued after the 
+ * transaction has been committed, so that the worker can load the original.
+ * </p>
+ * <p>
+ * Pages that request a variant which is not available yet are tagged with
+ * the original file. If a {@link #setCacheService(CacheService) CacheService}
+ * is set, these pages are invalidated as soon as the variant has been 
+ * created.
+ * </p>
+ */
+public class VariantQueue implements DisposableBean {
+
+	private static final int PRIORITY_PAGE = 0;
+	
+	private static final int PRIORITY_DEFAULT = 1;
+	
+	private static final int PRIORITY_RETRY = 2;
+	
+	private Logger log = LoggerFactory.getLogger(VariantQueue.class);
+	
+	private TransactionTemplate transactionTemplate;
+	
+	private int maxAttempts = 3;
+	
+	private ThreadPoolExecutor executor;
+	
+	private ConcurrentMap<String, Job> pendingJobs = Generics.newConcurrentHashMap();
+	
+	private AtomicLong sequence = new AtomicLong();
+	
+	private VariantQueueStatistics statistics;
+	
+	private CacheService cacheService;
+	
+	public VariantQueue(PlatformTransactionManager transactionManager) {
+		this(transactionManager, 2);
+	}
+	
+	/**
+	 * @param transactionManager TransactionManager used by the workers
+	 * @param poolSize The number of worker threads
+	 */
+	public VariantQueue(PlatformTransactionManager transactionManager, 
+			int poolSize) {
+		
+		this.transactionTemplate = new TransactionTemplate(transactionManager);
+		this.transactionTemplate.setPropagationBehavior(
+				TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+		
+		this.executor = new ThreadPoolExecutor(poolSize, poolSize, 
+				60, TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>(),
+				new CustomizableThreadFactory("VariantQueue-"));
+		
+		this.statistics = new VariantQueueStatistics(executor);
+	}
+
+	/**
+	 * Sets how often a job is attempted before it is discarded. 
+	 * Default is <code>3</code>.
+	 */
+	public void setMaxAttempts(int maxAttempts) {
+		this.maxAttempts = maxAttempts;
+	}
+	
+	/**
+	 * Sets the CacheService that is used to invalidate pages which have 
+	 * been rendered while a variant was still pending.
+	 */
+	public void setCacheService(CacheService cacheService) {
+		this.cacheService = cacheService;
+	}
+	
+	public VariantQueueStatistics getStatistics() {
+		return statistics;
+	}
+
+	public void destroy() throws Exception {
+		executor.shutdownNow();
+	}
+	
+	/**
+	 * Queues the creation of the named variant.
+	 */
+	public void submit(RiotFile original, String name, ThumbnailCreator creator) {
+		submit(original, name, creator, PRIORITY_DEFAULT);
+	}
+	
+	/**
+	 * Returns the named variant. If the variant has not been created yet,
+	 * a job with a high priority is queued and <code>null</code> is 
+	 * returned, so that the caller can render a placeholder instead of the 
+	 * (possibly huge) original. The current cache item is tagged with the
+	 * original, so that it is invalidated once the variant is available.
+	 */
+	public RiotFile getVariant(RiotFile original, String name, 
+			ThumbnailCreator creator) {
+		
+		RiotFile variant = original.get(name);
+		if (variant != null) {
+			return variant;
+		}
+		if (original.getId() != null) {
+			CacheTagUtils.tag(RiotFile.class, original.getId());
+		}
+		submit(original, name, creator, PRIORITY_PAGE);
+		return null;
+	}
+	
+	/**
+	 * Returns whether a job for the named variant is queued or running.
+	 */
+	public boolean isPending(RiotFile original, String name) {
+		return original.getId() != null 
+				&& pendingJobs.containsKey(getKey(original.getId(), name));
+	}
+	
+	private void submit(final RiotFile original, final String name, 
+			final ThumbnailCreator creator, final int priority) {
+		
+		if (TransactionSynchronizationManager.isSynchronizationActive()) {
+			TransactionSynchronizationManager.registerSynchronization(
+					new TransactionSynchronizationAdapter() {
+				
+				@Override
+				public void afterCommit() {
+					queue(original.getId(), name, creator, priority);
+				}
+			});
+		}
+		else {
+			queue(original.getId(), name, creator, priority);
+		}
+	}
+	
+	private void queue(Long fileId, String name, ThumbnailCreator creator, 
+			int priority) {
+		
+		if (fileId == null) {
+			log.warn("Can't create variant '{}' of an unsaved file", name);
+			return;
+		}
+		String key = getKey(fileId, name);
+		Job job = new Job(key, fileId, name, creator, priority);
+		Job existing = pendingJobs.putIfAbsent(key, job);
+		if (existing == null) {
+			executor.execute(job);
+		}
+		else if (existing.priority > priority && executor.remove(existing)) {
+			// Move the waiting job to the front of the queue
+			existing.priority = priority;
+			executor.execute(existing);
+		}
+	}
+	
+	private static String getKey(Long fileId, String name) {
+		return fileId + ":" + name;
+	}
+	
+	private class Job implements Runnable, Comparable<Job> {
+
+		private String key;
+		
+		private Long fileId;
+		
+		private String name;
+		
+		private ThumbnailCreator creator;
+		
+		private volatile int priority;
+		
+		private long seq = sequence.incrementAndGet();
+		
+		private int attempts;
+		
+		public Job(String key, Long fileId, String name, 
+				ThumbnailCreator creator, int priority) {
+			
+			this.key = key;
+			this.fileId = fileId;
+			this.name = name;
+			this.creator = creator;
+			this.priority = priority;
+		}
+
+		public int compareTo(Job other) {
+			if (priority != other.priority) {
+				return priority < other.priority ? -1 : 1;
+			}
+			return seq < other.seq ? -1 : (seq == other.seq ? 0 : 1);
+		}
+		
+		public void run() {
+			long start = System.currentTimeMillis();
+			attempts++;
+			try {
+				transactionTemplate.execute(new TransactionCallbackWithoutResult() {
+					@Override
+					protected void doInTransactionWithoutResult(TransactionStatus status) {
+						createVariant();
+					}
+				});
+				pendingJobs.remove(key);
+				if (cacheService != null) {
+					cacheService.invalidateTaggedItems(
+							CacheTagUtils.getTag(RiotFile.class, fileId));
+				}
+				statistics.jobCompleted(key, System.currentTimeMillis() - start);
+			}
+			catch (RuntimeException e) {
+				if (attempts < maxAttempts && !executor.isShutdown()) {
+					log.warn("Failed to create variant {}, will retry: {}", 
+							key, e.getMessage());
+					
+					statistics.jobRetried();
+					priority = PRIORITY_RETRY;
+					seq = sequence.incrementAndGet();
+					executor.execute(this);
+				}
+				else {
+					log.error("Failed to create variant " + key, e);
+					pendingJobs.remove(key);
+					statistics.jobFailed();
+				}
+			}
+		}
+		
+		private void createVariant() {
+			RiotFile original = RiotFile.load(fileId);
+			if (original == null || original.get(name) != null) {
+				return;
+			}
+			try {
+				original.addVariant(name, creator.createVariant(original));
+			}
+			catch (IOException e) {
+				throw new IllegalStateException(e.getMessage(), e);
+			}
+		}
+		
+	}
+	
+}
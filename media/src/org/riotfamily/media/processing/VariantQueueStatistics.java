@@ -0,0 +1,122 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.riotfamily.media.processing;
+
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Collects statistics about the jobs processed by a {@link VariantQueue}.
+ */
+public class VariantQueueStatistics {
+
+	private ThreadPoolExecutor executor;
+	
+	private AtomicLong completedJobs = new AtomicLong();
+	
+	private AtomicLong failedJobs = new AtomicLong();
+	
+	private AtomicLong retries = new AtomicLong();
+	
+	private AtomicLong totalJobTime = new AtomicLong();
+	
+	private AtomicReference<SlowestJob> slowestJob = 
+			new AtomicReference<SlowestJob>();
+	
+	VariantQueueStatistics(ThreadPoolExecutor executor) {
+		this.executor = executor;
+	}
+
+	void jobCompleted(String job, long time) {
+		completedJobs.incrementAndGet();
+		totalJobTime.addAndGet(time);
+		SlowestJob slowest = slowestJob.get();
+		while (slowest == null || time > slowest.time) {
+			if (slowestJob.compareAndSet(slowest, new SlowestJob(job, time))) {
+				break;
+			}
+			slowest = slowestJob.get();
+		}
+	}
+	
+	void jobFailed() {
+		failedJobs.incrementAndGet();
+	}
+	
+	void jobRetried() {
+		retries.incrementAndGet();
+	}
+	
+	public void reset() {
+		completedJobs.set(0);
+		failedJobs.set(0);
+		retries.set(0);
+		totalJobTime.set(0);
+		slowestJob.set(null);
+	}
+	
+	/**
+	 * Returns the number of jobs waiting for a worker.
+	 */
+	public int getQueueSize() {
+		return executor.getQueue().size();
+	}
+	
+	/**
+	 * Returns the number of jobs that are currently processed.
+	 */
+	public int getActiveJobs() {
+		return executor.getActiveCount();
+	}
+	
+	public long getCompletedJobs() {
+		return completedJobs.longValue();
+	}
+	
+	public long getFailedJobs() {
+		return failedJobs.longValue();
+	}
+	
+	public long getRetries() {
+		return retries.longValue();
+	}
+	
+	public long getAverageJobTime() {
+		long count = completedJobs.longValue();
+		return count > 0 ? totalJobTime.longValue() / count : 0;
+	}
+	
+	public long getMaxJobTime() {
+		SlowestJob slowest = slowestJob.get();
+		return slowest != null ? slowest.time : 0;
+	}
+	
+	public String getSlowestJob() {
+		SlowestJob slowest = slowestJob.get();
+		return slowest != null ? slowest.job : null;
+	}
+	
+	private static class SlowestJob {
+		
+		private String job;
+		
+		private long time;
+
+		SlowestJob(String job, long time) {
+			this.job = job;
+			this.time = time;
+		}
+	}
+	
+}
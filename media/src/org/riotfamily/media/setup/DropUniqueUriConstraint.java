@@ -0,0 +1,59 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.riotfamily.media.setup;
+
+import java.util.List;
+
+import org.riotfamily.revolt.Dialect;
+import org.riotfamily.revolt.Refactoring;
+import org.riotfamily.revolt.Script;
+import org.riotfamily.revolt.dialect.MySqlDialect;
+import org.springframework.jdbc.core.simple.SimpleJdbcTemplate;
+
+/**
+ * Refactoring that drops the unique constraint on <code>riot_files.uri</code>.
+ * The constraint was created by Hibernate, so its name depends on the 
+ * database and is looked up in the <code>information_schema</code>.
+ * Content-addressed FileStores share one URI between all RiotFiles with 
+ * the same content, which the constraint would reject.
+ */
+public class DropUniqueUriConstraint implements Refactoring {
+
+	private static final String TABLE = "riot_files";
+	
+	public Script getScript(Dialect dialect, SimpleJdbcTemplate template) {
+		List<String> names = template.getJdbcOperations().queryForList(
+				"select tc.constraint_name "
+				+ "from information_schema.table_constraints tc "
+				+ "join information_schema.key_column_usage kcu "
+				+ "on kcu.constraint_name = tc.constraint_name "
+				+ "and kcu.table_name = tc.table_name "
+				+ "where lower(tc.table_name) = ? "
+				+ "and tc.constraint_type = 'UNIQUE' "
+				+ "and lower(kcu.column_name) = 'uri'", 
+				new Object[] { TABLE }, String.class);
+		
+		Script script = new Script();
+		for (String name : names) {
+			if (dialect instanceof MySqlDialect) {
+				// MySQL implements unique constraints as indexes
+				script.append(dialect.dropIndex(TABLE, name));
+			}
+			else {
+				script.append(dialect.dropConstraint(TABLE, name));
+			}
+		}
+		return script;
+	}
+
+}
@@ -13,15 +13,22 @@
 package org.riotfamily.media.store;
 
 import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.servlet.ServletContext;
 
 import org.riotfamily.common.io.RecursiveFileIterator;
 import org.riotfamily.common.util.FormatUtils;
+import org.riotfamily.common.util.HashUtils;
 import org.riotfamily.common.util.RandomStringGenerator;
 import org.riotfamily.common.util.RandomStringGenerator.Chars;
 import org.slf4j.Logger;
@@ -34,11 +41,30 @@ import org.springframework.web.context.ServletContextAware;
 
 /**
  * Default FileStore implementation.
+ * <p>
+ * By default each file is stored in a new directory with a random name.
+ * If {@link #setContentAddressed(boolean) contentAddressed} is set to 
+ * <code>true</code>, files are stored in a directory named after the MD5 
+ * hash of their content instead. The file itself is named after the hash
+ * and the lower-case extension of the original name, so that the URI does
+ * not reveal the name chosen by another uploader. If the same content is 
+ * stored again (with the same extension), the URI of the existing file is 
+ * returned, so that multiple RiotFiles share the same file. Existing files 
+ * can be moved into the content-addressed layout via 
+ * {@link #migrate(String, String)}.
+ * </p>
  * @author Felix Gnass [fgnass at neteye dot de]
  */
 public class DefaultFileStore implements FileStore, ServletContextAware, 
 		InitializingBean {
 
+	/**
+	 * Period during which a shared file is not deleted after it has been
+	 * handed out to a new RiotFile, as the RiotFile's transaction may not 
+	 * have been committed yet.
+	 */
+	private static final long REUSE_GRACE_PERIOD = 60 * 60 * 1000;
+	
 	private Logger log = LoggerFactory.getLogger(DefaultFileStore.class);
 	
 	private String uriPrefix;
@@ -47,9 +73,13 @@ public class DefaultFileStore implements FileStore, ServletContextAware,
 	
 	private File baseDir;
 
-	private File storageDir;
+	private volatile StorageDir storageDir;
+	
+	private boolean contentAddressed = false;
+	
+	private File contentDir;
 	
-	private int storageDirIndex = 0;
+	private File tempDir;
 	
 	private int maxFilesPerDir = 500;
 	
@@ -94,6 +124,24 @@ public class DefaultFileStore implements FileStore, ServletContextAware,
 		this.maxFilesPerDir = maxFilesPerDir;
 	}
 	
+	/**
+	 * Sets whether files should be stored by their content hash, so that
+	 * identical files are only stored once. Default is <code>false</code>.
+	 * <p>
+	 * As several RiotFiles may then refer to the same URI, the unique 
+	 * constraint on <code>riot_files.uri</code> is dropped by the 
+	 * <code>riot-media</code> Revolt history. Existing files are moved into
+	 * the new layout by the media clean-up task.
+	 * </p>
+	 */
+	public void setContentAddressed(boolean contentAddressed) {
+		this.contentAddressed = contentAddressed;
+	}
+	
+	public boolean isContentAddressed() {
+		return contentAddressed;
+	}
+
 	/**
 	 * Creates the baseDir after all properties have been set.
 	 */
@@ -112,7 +160,12 @@ public class DefaultFileStore implements FileStore, ServletContextAware,
 		log.info("Files will be stored in " 
 				+ baseDir.getCanonicalPath());
 		
-		getStorageDir();
+		if (contentAddressed) {
+			contentDir = createDir(new File(baseDir, "md5"));
+			tempDir = createDir(new File(baseDir, "tmp"));
+		}
+		
+		storageDir = findLatestStorageDir();
 	}
 	
 	/**
@@ -132,29 +185,49 @@ public class DefaultFileStore implements FileStore, ServletContextAware,
 	}
 	
 	/**
-	 * Returns whether the next storage directory should be used.
+	 * Looks for the storage directory with the highest index and counts the
+	 * entries it contains. Lower directories are considered full, so this
+	 * is the only directory that has to be listed.
 	 */
-	private boolean shouldUseNewStorageDir() {
-		return storageDir == null || !storageDir.exists() 
-				|| storageDir.list().length >= maxFilesPerDir;
+	private StorageDir findLatestStorageDir() throws IOException {
+		int index = 0;
+		String[] names = baseDir.list();
+		if (names != null) {
+			for (String name : names) {
+				if (name.length() < 10 && name.matches("\\d+")) {
+					index = Math.max(index, Integer.parseInt(name));
+				}
+			}
+		}
+		File dir = createDir(new File(baseDir, String.valueOf(index)));
+		String[] entries = dir.list();
+		int used = entries != null ? entries.length : 0;
+		log.debug("Continuing with storage directory {} ({} entries)", index, used);
+		return new StorageDir(index, dir, used);
 	}
 
 	/**
-	 * Returns the directory where the files should be stored. The default
-	 * implementation limits the number of files per directory and creates a
-	 * new directory when the number of files exceeds the 
-	 * {@link #setMaxFilesPerDir(int) maxFilesPerDir} value.
+	 * Returns the directory where the files should be stored and reserves
+	 * a slot in it. The default implementation limits the number of files 
+	 * per directory and creates a new directory when the number of files 
+	 * exceeds the {@link #setMaxFilesPerDir(int) maxFilesPerDir} value.
+	 * The number of used slots is tracked in memory, so the directory is 
+	 * only touched when a new one has to be created.
 	 */
 	protected File getStorageDir() throws IOException {
-		if (shouldUseNewStorageDir()) {
+		while (true) {
+			StorageDir current = storageDir;
+			if (current.reserve()) {
+				return current.dir;
+			}
 			synchronized (this) {
-				while (shouldUseNewStorageDir()) {
-					String name = String.valueOf(storageDirIndex++);
-					storageDir = createDir(new File(baseDir, name));
-				}	
+				if (storageDir == current) {
+					int index = current.index + 1;
+					File dir = createDir(new File(baseDir, String.valueOf(index)));
+					storageDir = new StorageDir(index, dir, 0);
+				}
 			}
 		}
-		return storageDir;
 	}
 	
 	/**
@@ -163,23 +236,25 @@ public class DefaultFileStore implements FileStore, ServletContextAware,
 	 */
 	protected File getUniqueDir() throws IOException {
 		File parent = getStorageDir();
-		for (int i = 0; i < maxFilesPerDir; i++) {
+		for (int i = 0; i < 10; i++) {
 			File dir = new File(parent, dirNameGenerator.generate());
-			if (!dir.exists()) {
-				if (!dir.mkdirs()) {
-					throw new IOException("Can't create directory " + dir.getPath()
-							+ " as user " + System.getProperty("user.name"));
-				}
+			if (dir.mkdir()) {
 				return dir;
 			}
+			if (!parent.exists()) {
+				createDir(parent);
+			}
 		}
-		//This should never happen ...
-		throw new RuntimeException("Failed to create a unique directory name.");
+		throw new IOException("Can't create a directory in " + parent.getPath()
+				+ " as user " + System.getProperty("user.name"));
 	}
 	
 	public String store(InputStream in, String fileName, String bucket)
 			throws IOException {
 		
+		if (contentAddressed && in != null) {
+			return storeContent(in, fileName);
+		}
 		File dest = new File(getUniqueDir(), FormatUtils.toFilename(fileName));
 		if (in != null) {
 			FileCopyUtils.copy(in, new FileOutputStream(dest));
@@ -191,6 +266,116 @@ public class DefaultFileStore implements FileStore, ServletContextAware,
 		return getUri(dest); 
 	}
 	
+	/**
+	 * Writes the data into a temporary file while computing its hash and
+	 * moves it into the content directory, unless a file with the same 
+	 * content already exists. The temporary file is created in a directory
+	 * that is excluded from the {@link #iterator()}.
+	 */
+	private String storeContent(InputStream in, String fileName) 
+			throws IOException {
+		
+		MessageDigest digest = createDigest();
+		File temp = File.createTempFile("upload", null, tempDir);
+		try {
+			FileCopyUtils.copy(new DigestInputStream(in, digest), 
+					new FileOutputStream(temp));
+			
+			return getUri(moveToContentDir(temp, 
+					HashUtils.toHex(digest.digest()), fileName));
+		}
+		finally {
+			temp.delete();
+		}
+	}
+	
+	/**
+	 * Moves the given file into the content directory for the specified 
+	 * hash. If the content is already stored, the given file is left 
+	 * untouched and the existing one is returned. The modification time of
+	 * the existing file is updated, so that neither {@link #delete(String)}
+	 * nor a clean-up task removes it before the new reference is committed.
+	 */
+	private synchronized File moveToContentDir(File file, String md5, 
+			String fileName) throws IOException {
+		
+		File dest = getContentFile(md5, fileName);
+		if (dest.exists()) {
+			log.debug("Content already stored at: " + dest.getAbsolutePath());
+			dest.setLastModified(System.currentTimeMillis());
+			return dest;
+		}
+		createDir(dest.getParentFile());
+		if (!file.renameTo(dest)) {
+			FileCopyUtils.copy(file, dest);
+		}
+		log.debug("stored at: " + dest.getAbsolutePath());
+		return dest;
+	}
+	
+	private File getContentFile(String md5, String fileName) {
+		File dir = new File(new File(contentDir, md5.substring(0, 2)), md5);
+		String ext = FormatUtils.toFilename(FormatUtils.getExtension(fileName));
+		if (StringUtils.hasLength(ext)) {
+			return new File(dir, md5 + "." + ext);
+		}
+		return new File(dir, md5);
+	}
+	
+	/**
+	 * Copies the file denoted by the given URI into the content-addressed
+	 * layout and returns the new URI. The original file is left in place,
+	 * it can be deleted once no RiotFile refers to it anymore.
+	 * 
+	 * @param uri URI of a previously stored file
+	 * @param md5 The MD5 hash of the file, or <code>null</code> if it 
+	 *        should be computed 
+	 * @return The new URI, or <code>null</code> if the file does not exist
+	 *         or is already stored by its content hash
+	 */
+	public String migrate(String uri, String md5) throws IOException {
+		Assert.state(contentAddressed, "The store is not content-addressed");
+		File file = retrieve(uri);
+		if (file == null || !file.isFile() || isContentFile(file)) {
+			return null;
+		}
+		if (md5 == null) {
+			md5 = HashUtils.md5(new FileInputStream(file));
+		}
+		File existing = getContentFile(md5, file.getName());
+		if (existing.exists()) {
+			return getUri(existing);
+		}
+		File temp = File.createTempFile("migrate", null, tempDir);
+		try {
+			FileCopyUtils.copy(file, temp);
+			return getUri(moveToContentDir(temp, md5, file.getName()));
+		}
+		finally {
+			temp.delete();
+		}
+	}
+	
+	/**
+	 * Returns the prefix shared by the URIs of all content-addressed files.
+	 */
+	public String getContentUriPrefix() {
+		return getUri(contentDir) + "/";
+	}
+	
+	private boolean isContentFile(File file) {
+		return file.getPath().startsWith(contentDir.getPath() + File.separator);
+	}
+	
+	private MessageDigest createDigest() {
+		try {
+			return MessageDigest.getInstance(HashUtils.MD5);
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
 	public String getUri(File file) {
 		String path = file.getPath();
 		if (path.startsWith(storagePath)) {
@@ -231,10 +416,31 @@ public class DefaultFileStore implements FileStore, ServletContextAware,
 	}
 
 	/**
-	 * Deletes the file denoted by the given URI from the store.
+	 * Deletes the file denoted by the given URI from the store. Shared files
+	 * of a content-addressed store are kept if they have been handed out 
+	 * recently, as the caller's reference count can't include uncommitted
+	 * RiotFiles. The check is performed while holding the lock that is also 
+	 * used when an existing file is reused. 
 	 */
 	public void delete(String uri) {
 		File file = retrieve(uri);
+		if (contentAddressed && isContentFile(file)) {
+			synchronized (this) {
+				if (file.lastModified() > System.currentTimeMillis() 
+						- REUSE_GRACE_PERIOD) {
+					
+					log.debug("Keeping recently shared file: " + uri);
+					return;
+				}
+				deleteFile(file);
+			}
+		}
+		else {
+			deleteFile(file);
+		}
+	}
+	
+	private void deleteFile(File file) {
 		file.delete();
 		File dir = file.getParentFile();
 		if (dir.isDirectory() && dir.list().length == 0 &&
@@ -250,7 +456,12 @@ public class DefaultFileStore implements FileStore, ServletContextAware,
 	
 	private class FileUriIterator implements Iterator<String> {
 		
-		private RecursiveFileIterator it = new RecursiveFileIterator(baseDir);
+		private RecursiveFileIterator it = new RecursiveFileIterator(baseDir, 
+				new FileFilter() {
+					public boolean accept(File file) {
+						return !file.equals(tempDir);
+					}
+				});
 		
 		public boolean hasNext() {
 			return it.hasNext();
@@ -265,4 +476,23 @@ public class DefaultFileStore implements FileStore, ServletContextAware,
 		}
 	}
 	
+	private class StorageDir {
+		
+		private int index;
+		
+		private File dir;
+		
+		private AtomicInteger used;
+		
+		StorageDir(int index, File dir, int used) {
+			this.index = index;
+			this.dir = dir;
+			this.used = new AtomicInteger(used);
+		}
+		
+		boolean reserve() {
+			return used.incrementAndGet() <= maxFilesPerDir;
+		}
+	}
+	
 }
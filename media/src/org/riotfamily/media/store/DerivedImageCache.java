@@ -0,0 +1,249 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.riotfamily.media.store;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import javax.servlet.ServletContext;
+
+import org.riotfamily.common.util.Generics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.web.context.ServletContextAware;
+import org.springframework.web.util.WebUtils;
+
+/**
+ * Size-bounded disk cache for images that are derived from stored files.
+ * When the total size exceeds {@link #setMaxSize(long) maxSize}, the least 
+ * recently used files are deleted. Concurrent requests for the same 
+ * missing entry are coalesced, so that each file is only created once.
+ * <p>
+ * As files may be evicted by other threads at any time, callers that serve
+ * the content should use {@link #open(String, Renderer) open()} rather 
+ * than {@link #get(String, Renderer) get()}.
+ * </p>
+ */
+public class DerivedImageCache implements ServletContextAware, 
+		InitializingBean {
+
+	private Logger log = LoggerFactory.getLogger(DerivedImageCache.class);
+	
+	private File cacheDir;
+	
+	private long maxSize = 500L * 1024 * 1024;
+	
+	private long size;
+	
+	/** File sizes keyed by file name, in access order */
+	private LinkedHashMap<String, Long> entries = 
+			new LinkedHashMap<String, Long>(256, 0.75f, true);
+	
+	private ConcurrentMap<String, FutureTask<File>> pending = 
+			Generics.newConcurrentHashMap();
+	
+	private ServletContext servletContext;
+	
+	public void setServletContext(ServletContext servletContext) {
+		this.servletContext = servletContext;
+	}
+
+	/**
+	 * Sets the directory where the files are stored. Defaults to a 
+	 * directory inside the servlet container's temp dir.
+	 */
+	public void setCacheDir(File cacheDir) {
+		this.cacheDir = cacheDir;
+	}
+	
+	/**
+	 * Sets the maximum number of bytes. Default is 500 MB.
+	 */
+	public void setMaxSize(long maxSize) {
+		this.maxSize = maxSize;
+	}
+	
+	/**
+	 * Creates the cache directory and registers the files that are already
+	 * present, oldest first.
+	 */
+	public void afterPropertiesSet() throws Exception {
+		if (cacheDir == null) {
+			File tempDir = WebUtils.getTempDir(servletContext);
+			cacheDir = new File(tempDir, "riot-derived-images");
+		}
+		if (!cacheDir.isDirectory() && !cacheDir.mkdirs()) {
+			throw new IOException("Can't create directory " + cacheDir);
+		}
+		File[] files = cacheDir.listFiles();
+		Arrays.sort(files, new Comparator<File>() {
+			public int compare(File f1, File f2) {
+				long d = f1.lastModified() - f2.lastModified();
+				return d < 0 ? -1 : (d > 0 ? 1 : 0);
+			}
+		});
+		synchronized (this) {
+			for (File file : files) {
+				if (file.isFile() && !file.getName().startsWith(".")) {
+					entries.put(file.getName(), file.length());
+					size += file.length();
+				}
+				else if (file.isFile()) {
+					file.delete();
+				}
+			}
+			evict(null);
+		}
+		log.info("Derived images are cached in {}", cacheDir);
+	}
+	
+	/**
+	 * Callback that renders a derived image. 
+	 */
+	public interface Renderer {
+		
+		public void render(File dest) throws IOException;
+	}
+	
+	/**
+	 * Returns the cached file for the given key. If the file doesn't exist,
+	 * it is created by the given Renderer. If another thread is already 
+	 * rendering the same key, the method waits for its result.
+	 * 
+	 * @param key The key, which is also used as file name
+	 * @param renderer Renderer that creates the file
+	 */
+	public File get(final String key, final Renderer renderer) 
+			throws IOException {
+		
+		File file = lookup(key);
+		if (file != null) {
+			return file;
+		}
+		FutureTask<File> task = new FutureTask<File>(new Callable<File>() {
+			public File call() throws Exception {
+				return create(key, renderer);
+			}
+		});
+		FutureTask<File> existing = pending.putIfAbsent(key, task);
+		if (existing != null) {
+			task = existing;
+		}
+		else {
+			task.run();
+		}
+		try {
+			return task.get();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for " + key);
+		}
+		catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IllegalStateException(e.getCause());
+		}
+		finally {
+			pending.remove(key, task);
+		}
+	}
+	
+	/**
+	 * Like {@link #get(String, Renderer) get()}, but returns an open stream.
+	 * Once opened, the content remains readable even if the file is evicted
+	 * by another thread. If the file is evicted before it could be opened, 
+	 * it is rendered again.
+	 */
+	public FileInputStream open(String key, Renderer renderer) 
+			throws IOException {
+		
+		try {
+			return new FileInputStream(get(key, renderer));
+		}
+		catch (FileNotFoundException e) {
+			log.debug("{} was evicted before it could be opened", key);
+			return new FileInputStream(get(key, renderer));
+		}
+	}
+	
+	private synchronized File lookup(String key) {
+		Long length = entries.get(key);
+		if (length == null) {
+			return null;
+		}
+		File file = new File(cacheDir, key);
+		if (!file.exists()) {
+			entries.remove(key);
+			size -= length;
+			return null;
+		}
+		return file;
+	}
+	
+	private File create(String key, Renderer renderer) throws IOException {
+		File file = lookup(key);
+		if (file != null) {
+			return file;
+		}
+		file = new File(cacheDir, key);
+		File temp = new File(cacheDir, "." + key);
+		try {
+			renderer.render(temp);
+			if (!temp.renameTo(file) && !(file.delete() && temp.renameTo(file))) {
+				throw new IOException("Failed to rename " + temp + " to " + file);
+			}
+		}
+		finally {
+			temp.delete();
+		}
+		synchronized (this) {
+			entries.put(key, file.length());
+			size += file.length();
+			evict(key);
+		}
+		return file;
+	}
+	
+	/**
+	 * Deletes the least recently used files until the total size is below
+	 * the limit. The file with the given key is kept, even if it exceeds
+	 * the limit on its own, so that the caller can still open it.
+	 */
+	private void evict(String keep) {
+		Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator();
+		while (size > maxSize && it.hasNext()) {
+			Map.Entry<String, Long> entry = it.next();
+			if (entry.getKey().equals(keep)) {
+				continue;
+			}
+			size -= entry.getValue();
+			new File(cacheDir, entry.getKey()).delete();
+			it.remove();
+		}
+	}
+	
+}
@@ -0,0 +1,98 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.riotfamily.media.cleanup;
+
+import static junit.framework.Assert.*;
+
+import org.junit.Test;
+
+public class SortedLongSetTests {
+
+	@Test
+	public void emptySet() {
+		SortedLongSet set = new SortedLongSet();
+		assertEquals(0, set.size());
+		assertFalse(set.contains(0));
+		assertEquals(0, set.toArray().length);
+	}
+	
+	@Test
+	public void unsortedValues() {
+		SortedLongSet set = new SortedLongSet();
+		set.add(42);
+		set.add(-7);
+		set.add(Long.MAX_VALUE);
+		set.add(0);
+		assertTrue(set.contains(42));
+		assertTrue(set.contains(-7));
+		assertTrue(set.contains(Long.MAX_VALUE));
+		assertTrue(set.contains(0));
+		assertFalse(set.contains(1));
+		assertFalse(set.contains(Long.MIN_VALUE));
+	}
+	
+	@Test
+	public void duplicatesAreRemoved() {
+		SortedLongSet set = new SortedLongSet();
+		for (int i = 0; i < 3; i++) {
+			set.add(5);
+			set.add(1);
+			set.add(3);
+		}
+		assertEquals(3, set.size());
+		long[] values = set.toArray();
+		assertEquals(1, values[0]);
+		assertEquals(3, values[1]);
+		assertEquals(5, values[2]);
+	}
+	
+	@Test
+	public void addAfterLookup() {
+		SortedLongSet set = new SortedLongSet();
+		set.add(10);
+		set.add(20);
+		assertFalse(set.contains(15));
+		set.add(15);
+		set.add(10);
+		assertTrue(set.contains(15));
+		assertTrue(set.contains(10));
+		assertEquals(3, set.size());
+	}
+	
+	@Test
+	public void growsBeyondInitialCapacity() {
+		SortedLongSet set = new SortedLongSet();
+		for (int i = 10000; i > 0; i--) {
+			set.add(i * 2);
+		}
+		assertEquals(10000, set.size());
+		for (int i = 1; i <= 10000; i++) {
+			assertTrue(set.contains(i * 2));
+			assertFalse(set.contains(i * 2 + 1));
+		}
+	}
+	
+	@Test
+	public void hashes() {
+		SortedLongSet set = new SortedLongSet();
+		set.addHash("/media/0/123/a.jpg");
+		set.addHash("/media/0/123/a.jpg");
+		set.addHash("/media/0/456/b.jpg");
+		assertEquals(2, set.size());
+		assertTrue(set.containsHash("/media/0/123/a.jpg"));
+		assertTrue(set.containsHash("/media/0/456/b.jpg"));
+		assertFalse(set.containsHash("/media/0/123/b.jpg"));
+		assertFalse(set.containsHash(""));
+	}
+	
+}
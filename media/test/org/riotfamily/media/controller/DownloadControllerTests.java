@@ -0,0 +1,250 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.riotfamily.media.controller;
+
+import static junit.framework.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.riotfamily.media.model.RiotFile;
+import org.riotfamily.media.store.FileStore;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.web.servlet.HandlerMapping;
+
+public class DownloadControllerTests {
+
+	private static final String ETAG = "\"0123456789abcdef0123456789abcdef\"";
+	
+	private File file;
+	
+	private RiotFile riotFile;
+	
+	private DownloadController controller;
+	
+	@Before
+	public void createFile() throws IOException {
+		file = File.createTempFile("download", ".bin");
+		byte[] data = new byte[100];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) i;
+		}
+		FileOutputStream out = new FileOutputStream(file);
+		out.write(data);
+		out.close();
+		riotFile = new RiotFile();
+		riotFile.setMd5(ETAG.substring(1, ETAG.length() - 1));
+		riotFile.setContentType("application/x-test");
+		controller = new DownloadController(new SingleFileStore()) {
+			@Override
+			protected RiotFile lookupRiotFile(String uri) {
+				return riotFile;
+			}
+		};
+	}
+	
+	@After
+	public void deleteFile() {
+		file.delete();
+	}
+	
+	@Test
+	public void fullContent() throws Exception {
+		MockHttpServletResponse response = handle(request());
+		assertEquals(HttpServletResponse.SC_OK, response.getStatus());
+		assertEquals(ETAG, response.getHeader("ETag"));
+		assertEquals("application/x-test", response.getContentType());
+		assertEquals("100", response.getHeader("Content-Length"));
+		assertEquals(100, response.getContentAsByteArray().length);
+	}
+	
+	@Test
+	public void weakEtagWithoutRiotFile() throws Exception {
+		riotFile = null;
+		MockHttpServletResponse response = handle(request());
+		assertTrue(((String) response.getHeader("ETag")).startsWith("W/\""));
+		assertEquals("application/octet-stream", response.getContentType());
+	}
+	
+	@Test
+	public void ifNoneMatch() throws Exception {
+		MockHttpServletRequest request = request();
+		request.addHeader("If-None-Match", "\"other\", " + ETAG);
+		MockHttpServletResponse response = handle(request);
+		assertEquals(HttpServletResponse.SC_NOT_MODIFIED, response.getStatus());
+		assertEquals(0, response.getContentAsByteArray().length);
+	}
+	
+	@Test
+	public void ifNoneMatchMismatch() throws Exception {
+		MockHttpServletRequest request = request();
+		request.addHeader("If-None-Match", "\"other\"");
+		request.addHeader("If-Modified-Since", new Date(file.lastModified()));
+		assertEquals(HttpServletResponse.SC_OK, handle(request).getStatus());
+	}
+	
+	@Test
+	public void ifModifiedSince() throws Exception {
+		MockHttpServletRequest request = request();
+		request.addHeader("If-Modified-Since", new Date(file.lastModified()));
+		assertEquals(HttpServletResponse.SC_NOT_MODIFIED, handle(request).getStatus());
+	}
+	
+	@Test
+	public void singleRange() throws Exception {
+		MockHttpServletResponse response = handle(range("bytes=10-19"));
+		assertEquals(HttpServletResponse.SC_PARTIAL_CONTENT, response.getStatus());
+		assertEquals("bytes 10-19/100", response.getHeader("Content-Range"));
+		assertEquals("10", response.getHeader("Content-Length"));
+		assertContent(10, 10, response.getContentAsByteArray());
+	}
+	
+	@Test
+	public void suffixAndOpenRanges() throws Exception {
+		assertEquals("bytes 90-99/100", 
+				handle(range("bytes=-10")).getHeader("Content-Range"));
+		
+		assertEquals("bytes 95-99/100", 
+				handle(range("bytes=95-")).getHeader("Content-Range"));
+		
+		assertEquals("bytes 50-99/100", 
+				handle(range("bytes=50-1000")).getHeader("Content-Range"));
+	}
+	
+	@Test
+	public void overlappingRangesAreMerged() throws Exception {
+		MockHttpServletResponse response = handle(range("bytes=20-29,0-9,5-14,15-19"));
+		assertEquals(HttpServletResponse.SC_PARTIAL_CONTENT, response.getStatus());
+		assertEquals("bytes 0-29/100", response.getHeader("Content-Range"));
+		assertContent(0, 30, response.getContentAsByteArray());
+	}
+	
+	@Test
+	public void duplicateRangesAreMerged() throws Exception {
+		MockHttpServletResponse response = handle(range("bytes=0-9,0-9"));
+		assertEquals("bytes 0-9/100", response.getHeader("Content-Range"));
+	}
+	
+	@Test
+	public void multipleRanges() throws Exception {
+		MockHttpServletResponse response = handle(range("bytes=50-59,0-9"));
+		assertEquals(HttpServletResponse.SC_PARTIAL_CONTENT, response.getStatus());
+		assertTrue(response.getContentType().startsWith("multipart/byteranges"));
+		String body = response.getContentAsString();
+		int first = body.indexOf("Content-Range: bytes 0-9/100");
+		int second = body.indexOf("Content-Range: bytes 50-59/100");
+		assertTrue(first != -1);
+		assertTrue(second > first);
+	}
+	
+	@Test
+	public void unsatisfiableRange() throws Exception {
+		MockHttpServletResponse response = handle(range("bytes=100-200"));
+		assertEquals(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE, 
+				response.getStatus());
+		
+		assertEquals("bytes */100", response.getHeader("Content-Range"));
+	}
+	
+	@Test
+	public void malformedRangeIsIgnored() throws Exception {
+		assertEquals(HttpServletResponse.SC_OK, 
+				handle(range("bytes=20-10")).getStatus());
+		
+		assertEquals(HttpServletResponse.SC_OK, 
+				handle(range("items=0-10")).getStatus());
+	}
+	
+	@Test
+	public void ifRange() throws Exception {
+		MockHttpServletRequest request = range("bytes=0-9");
+		request.addHeader("If-Range", ETAG);
+		assertEquals(HttpServletResponse.SC_PARTIAL_CONTENT, 
+				handle(request).getStatus());
+		
+		request = range("bytes=0-9");
+		request.addHeader("If-Range", "\"other\"");
+		MockHttpServletResponse response = handle(request);
+		assertEquals(HttpServletResponse.SC_OK, response.getStatus());
+		assertEquals(100, response.getContentAsByteArray().length);
+	}
+	
+	@Test
+	public void ifRangeWithWeakEtag() throws Exception {
+		riotFile = null;
+		String etag = (String) handle(request()).getHeader("ETag");
+		MockHttpServletRequest request = range("bytes=0-9");
+		request.addHeader("If-Range", etag);
+		assertEquals(HttpServletResponse.SC_OK, handle(request).getStatus());
+	}
+	
+	private MockHttpServletRequest request() {
+		MockHttpServletRequest request = new MockHttpServletRequest("GET", 
+				"/download/file.bin");
+		
+		request.setAttribute(HandlerMapping.PATH_WITHIN_HANDLER_MAPPING_ATTRIBUTE, 
+				"file.bin");
+		
+		return request;
+	}
+	
+	private MockHttpServletRequest range(String range) {
+		MockHttpServletRequest request = request();
+		request.addHeader("Range", range);
+		return request;
+	}
+	
+	private MockHttpServletResponse handle(MockHttpServletRequest request) 
+			throws Exception {
+		
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		controller.handleRequest(request, response);
+		return response;
+	}
+	
+	private static void assertContent(int start, int length, byte[] content) {
+		assertEquals(length, content.length);
+		for (int i = 0; i < length; i++) {
+			assertEquals((byte) (start + i), content[i]);
+		}
+	}
+	
+	private class SingleFileStore implements FileStore {
+
+		public String store(InputStream in, String fileName, String bucket) {
+			throw new UnsupportedOperationException();
+		}
+
+		public File retrieve(String uri) {
+			return uri.equals("/file.bin") ? file : null;
+		}
+
+		public void delete(String uri) {
+		}
+
+		public Iterator<String> iterator() {
+			return Collections.singleton("/file.bin").iterator();
+		}
+	}
+}
@@ -0,0 +1,126 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.riotfamily.media.processing;
+
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Compares the throughput and heap usage of the {@link Java2DThumbnailer}
+ * with the {@link ImageMagickThumbnailer}. Not a unit test, run it manually:
+ * <pre>
+ * java org.riotfamily.media.processing.Java2DThumbnailerBenchmark [iterations]
+ * </pre>
+ * Each iteration renders the sizes of a typical image gallery from a 
+ * 12 megapixel JPEG. The ImageMagick path is skipped if no binary is found.
+ * Note that the memory used by the forked <code>convert</code> processes is
+ * not included in the heap figures.
+ */
+public class Java2DThumbnailerBenchmark {
+
+	private static final int[][] SIZES = {
+		{ 1024, 768, 0 }, { 400, 300, 0 }, { 120, 120, 1 }, { 60, 60, 1 }
+	};
+	
+	public static void main(String[] args) throws IOException {
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+		File source = createSource(4000, 3000);
+		try {
+			run("Java2D", new Java2DThumbnailer(), source, iterations);
+			ImageMagick imageMagick = new ImageMagick();
+			imageMagick.afterPropertiesSet();
+			if (imageMagick.isAvailable()) {
+				run("ImageMagick", new ImageMagickThumbnailer(imageMagick), 
+						source, iterations);
+			}
+			else {
+				System.out.println("ImageMagick not available, skipped");
+			}
+		}
+		finally {
+			source.delete();
+		}
+	}
+	
+	private static File createSource(int width, int height) throws IOException {
+		BufferedImage image = new BufferedImage(width, height, 
+				BufferedImage.TYPE_INT_RGB);
+		
+		Graphics2D g = image.createGraphics();
+		g.setPaint(new GradientPaint(0, 0, Color.ORANGE, width, height, Color.BLUE));
+		g.fillRect(0, 0, width, height);
+		g.dispose();
+		File file = File.createTempFile("benchmark", ".jpg");
+		ImageIO.write(image, "jpg", file);
+		return file;
+	}
+	
+	private static void run(String name, Thumbnailer thumbnailer, File source, 
+			int iterations) throws IOException {
+		
+		File dest = File.createTempFile("thumbnail", ".jpg");
+		try {
+			// Warm up
+			render(thumbnailer, source, dest);
+			System.gc();
+			resetPeakUsage();
+			long start = System.nanoTime();
+			for (int i = 0; i < iterations; i++) {
+				render(thumbnailer, source, dest);
+			}
+			long millis = (System.nanoTime() - start) / 1000000;
+			int thumbnails = iterations * SIZES.length;
+			System.out.println(String.format(
+					"%s: %d thumbnails in %d ms (%.1f/s), peak heap %d MB",
+					name, thumbnails, millis, thumbnails * 1000.0 / millis, 
+					getPeakUsage() / 1024 / 1024));
+		}
+		finally {
+			dest.delete();
+		}
+	}
+	
+	private static void render(Thumbnailer thumbnailer, File source, File dest) 
+			throws IOException {
+		
+		for (int[] size : SIZES) {
+			thumbnailer.renderThumbnail(source, dest, size[0], size[1], 
+					size[2] == 1, null);
+		}
+	}
+	
+	private static void resetPeakUsage() {
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			pool.resetPeakUsage();
+		}
+	}
+	
+	private static long getPeakUsage() {
+		long peak = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) {
+				peak += pool.getPeakUsage().getUsed();
+			}
+		}
+		return peak;
+	}
+}
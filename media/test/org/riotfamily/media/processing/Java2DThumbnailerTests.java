@@ -0,0 +1,105 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.riotfamily.media.processing;
+
+import static junit.framework.Assert.*;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+
+import javax.imageio.ImageIO;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class Java2DThumbnailerTests {
+
+	private Java2DThumbnailer thumbnailer = new Java2DThumbnailer();
+	
+	private File source;
+	
+	private File dest;
+	
+	@Before
+	public void createSource() throws IOException {
+		source = File.createTempFile("source", ".png");
+		dest = File.createTempFile("thumbnail", ".png");
+		ImageIO.write(new BufferedImage(400, 300, BufferedImage.TYPE_INT_RGB), 
+				"png", source);
+	}
+	
+	@After
+	public void deleteFiles() {
+		source.delete();
+		dest.delete();
+	}
+	
+	@Test
+	public void zeroIsUnconstrained() {
+		assertEquals(0.5, Java2DThumbnailer.getScale(400, 300, 0, 150, false));
+		assertEquals(0.5, Java2DThumbnailer.getScale(400, 300, 200, 0, false));
+		assertEquals(0.5, Java2DThumbnailer.getScale(400, 300, 0, 150, true));
+		assertEquals(1.0, Java2DThumbnailer.getScale(400, 300, 0, 0, false));
+	}
+	
+	@Test
+	public void fit() throws IOException {
+		assertSize(200, 150, 200, 200, false, null);
+		assertSize(400, 300, 800, 600, false, null);
+	}
+	
+	@Test
+	public void fitUnconstrained() throws IOException {
+		assertSize(200, 150, 0, 150, false, null);
+		assertSize(100, 75, 100, 0, false, null);
+		assertSize(400, 300, 0, 0, false, null);
+	}
+	
+	@Test
+	public void crop() throws IOException {
+		assertSize(100, 100, 100, 100, true, null);
+		assertSize(50, 200, 50, 200, true, null);
+	}
+	
+	@Test
+	public void cropUnconstrained() throws IOException {
+		assertSize(200, 150, 0, 150, true, null);
+	}
+	
+	@Test
+	public void pad() throws IOException {
+		assertSize(100, 100, 100, 100, true, "#fff");
+		assertSize(100, 75, 100, 0, true, "#fff");
+	}
+	
+	@Test
+	public void parseColor() {
+		assertEquals(0xffffff, Java2DThumbnailer.parseColor("#fff").getRGB() & 0xffffff);
+		assertEquals(0x102030, Java2DThumbnailer.parseColor("#102030").getRGB() & 0xffffff);
+		assertNull(Java2DThumbnailer.parseColor("white"));
+	}
+	
+	private void assertSize(int expectedWidth, int expectedHeight, 
+			int width, int height, boolean fixedSize, String backgroundColor) 
+			throws IOException {
+		
+		thumbnailer.renderThumbnail(source, dest, width, height, fixedSize, 
+				backgroundColor);
+		
+		BufferedImage image = ImageIO.read(dest);
+		assertEquals(expectedWidth, image.getWidth());
+		assertEquals(expectedHeight, image.getHeight());
+	}
+}
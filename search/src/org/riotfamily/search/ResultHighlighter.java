@@ -15,8 +15,10 @@ package org.riotfamily.search;
 import java.io.IOException;
 import java.io.StringReader;
 
+import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.SimpleAnalyzer;
 import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.highlight.Encoder;
@@ -28,9 +30,12 @@ import org.apache.lucene.search.highlight.Scorer;
 import org.apache.lucene.search.highlight.SimpleFragmenter;
 import org.apache.lucene.search.highlight.SimpleHTMLEncoder;
 import org.apache.lucene.search.highlight.SimpleHTMLFormatter;
+import org.apache.lucene.search.highlight.TokenSources;
 
 public class ResultHighlighter {
 
+	private static final Analyzer analyzer = new SimpleAnalyzer();
+
 	private int fragmentSize = 75;
 	
 	private int maxFragments = 3;
@@ -109,22 +114,43 @@ public class ResultHighlighter {
 		}
 		Highlighter highlighter = new Highlighter(formatter, encoder, scorer);
 		highlighter.setTextFragmenter(fragmenter);
-		return new HighlightingContext(highlighter);
+		return new HighlightingContext(highlighter, indexSearcher.getIndexReader());
 	}
 	
 	public class HighlightingContext {
 		
 		private Highlighter highlighter;
 		
-		private HighlightingContext(Highlighter highlighter) {
+		private IndexReader reader;
+		
+		private HighlightingContext(Highlighter highlighter, IndexReader reader) {
 			this.highlighter = highlighter;
+			this.reader = reader;
 		}
 
 		public String getFragments(String content) {
-			
-			TokenStream ts = new SimpleAnalyzer().tokenStream(null, 
-					new StringReader(content));
-			
+			return getFragments(analyzer.tokenStream(null, 
+					new StringReader(content)), content);
+		}
+		
+		/**
+		 * Returns the highlighted fragments of the given field. If the field
+		 * has been indexed with term vectors including positions and offsets,
+		 * the tokens are read from the index. Otherwise the content is 
+		 * re-analyzed.
+		 */
+		public String getFragments(int docId, String field, String content) {
+			TokenStream ts;
+			try {
+				ts = TokenSources.getAnyTokenStream(reader, docId, field, analyzer);
+			}
+			catch (IOException e) {
+				return getFragments(content);
+			}
+			return getFragments(ts, content);
+		}
+		
+		private String getFragments(TokenStream ts, String content) {
 			String fragments = null;
 			try {
 				fragments = highlighter.getBestFragments(ts,
@@ -15,35 +15,33 @@ package org.riotfamily.search;
 import java.io.File;
 import java.io.IOException;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import org.apache.lucene.analysis.Analyzer;
-import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.search.BooleanClause.Occur;
 import org.apache.lucene.search.BooleanQuery;
-import org.apache.lucene.search.CachingWrapperFilter;
 import org.apache.lucene.search.Filter;
-import org.apache.lucene.search.Hits;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
-import org.apache.lucene.search.QueryWrapperFilter;
 import org.apache.lucene.search.TermQuery;
-import org.apache.lucene.store.Directory;
-import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.search.TopDocs;
 import org.riotfamily.common.ui.Pager;
 import org.riotfamily.common.util.ResourceUtils;
 import org.riotfamily.search.ResultHighlighter.HighlightingContext;
 import org.riotfamily.search.analysis.AnalyzerFactory;
 import org.riotfamily.search.analysis.DefaultAnalyzerFactory;
 import org.riotfamily.search.index.DocumentBuilder;
+import org.riotfamily.search.index.SearcherManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.core.io.Resource;
+import org.springframework.util.ObjectUtils;
 import org.springframework.util.StringUtils;
 import org.springframework.web.bind.ServletRequestUtils;
 import org.springframework.web.servlet.ModelAndView;
@@ -59,7 +57,7 @@ public class SearchController implements Controller, InitializingBean {
 
 	private static final String PAGER_MODEL_KEY = "pager";
 
-	private Directory indexDir;
+	private SearcherManager searcherManager;
 
 	private AnalyzerFactory analyzerFactory;
 
@@ -74,6 +72,24 @@ public class SearchController implements Controller, InitializingBean {
 	private int defaultPageSize = 10;
 
 	private int pagerPadding = 5;
+	
+	private int maxPageSize = 100;
+	
+	private int maxPage = 1000;
+	
+	private int resultCacheSize = 100;
+	
+	@SuppressWarnings("serial")
+	private Map<ResultKey, SearchResult> resultCache = 
+			new LinkedHashMap<ResultKey, SearchResult>(16, 0.75f, true) {
+		
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<ResultKey, SearchResult> eldest) {
+			return size() > resultCacheSize;
+		}
+	};
+	
+	private long cachedGeneration;
 
 	private String viewName = ResourceUtils.getPath(
 			SearchController.class, "SearchView.ftl");
@@ -98,6 +114,32 @@ public class SearchController implements Controller, InitializingBean {
 		this.pagerPadding = pagerPadding;
 	}
 
+	/**
+	 * Sets the maximum number of results per page. Default is 
+	 * <code>100</code>.
+	 */
+	public void setMaxPageSize(int maxPageSize) {
+		this.maxPageSize = maxPageSize;
+	}
+
+	/**
+	 * Sets the highest page number that can be requested. Higher values
+	 * are reduced to this limit, as Lucene allocates a buffer for all hits
+	 * up to the requested page. Default is <code>1000</code>.
+	 */
+	public void setMaxPage(int maxPage) {
+		this.maxPage = maxPage;
+	}
+
+	/**
+	 * Sets the number of results pages that are cached. The cache is 
+	 * cleared whenever the index changes. Set to <code>0</code> to disable
+	 * caching. Default is <code>100</code>.
+	 */
+	public void setResultCacheSize(int resultCacheSize) {
+		this.resultCacheSize = resultCacheSize;
+	}
+
 	public void setResultHighlighter(ResultHighlighter resultHighlighter) {
 		this.resultHighlighter = resultHighlighter;
 	}
@@ -106,10 +148,21 @@ public class SearchController implements Controller, InitializingBean {
 		this.viewName = viewName;
 	}
 	
+	/**
+	 * Sets the location of the index. Use this method if no shared 
+	 * {@link #setSearcherManager(SearcherManager) SearcherManager} is set.
+	 */
 	public void setIndexDir(Resource resource) throws IOException {
 		File f = resource.getFile();
-		f.mkdirs();
-		indexDir = FSDirectory.getDirectory(f);
+		searcherManager = new SearcherManager();
+		searcherManager.setIndexDir(f);
+	}
+
+	/**
+	 * Sets the SearcherManager that provides the IndexSearcher. 
+	 */
+	public void setSearcherManager(SearcherManager searcherManager) {
+		this.searcherManager = searcherManager;
 	}
 
 	public void setAnalyzerFactory(AnalyzerFactory analyzerFactory) {
@@ -120,8 +173,8 @@ public class SearchController implements Controller, InitializingBean {
 		if (analyzerFactory == null) {
 			analyzerFactory = new DefaultAnalyzerFactory();
 		}
-		if (indexDir == null) {
-			log.error("Index Directory is null.");
+		if (searcherManager == null) {
+			log.error("Neither a SearcherManager nor an index directory is set.");
 		}
 	}
 	
@@ -133,36 +186,100 @@ public class SearchController implements Controller, InitializingBean {
 		int page = ServletRequestUtils.getIntParameter(request, pageParam, 1);
 		int pageSize = ServletRequestUtils.getIntParameter(
 				request, pageSizeParam, defaultPageSize);
+		
+		page = Math.max(Math.min(page, maxPage), 1);
+		pageSize = Math.max(Math.min(pageSize, maxPageSize), 1);
 
-		int offset = (page - 1) * pageSize;
+		long offset = (long) (page - 1) * pageSize;
 
 		SearchResult result = new SearchResult();
 		result.setOriginalQuery(queryString);
 		result.setPage(page);
 		result.setPageSize(pageSize);
 
-		if (indexDir == null || !IndexReader.indexExists(indexDir)) {
+		IndexSearcher indexSearcher = null;
+		long generation = 0;
+		if (searcherManager != null) {
+			// Read the generation first, so that results are never cached 
+			// under a newer generation than the one they were found in
+			generation = searcherManager.getGeneration();
+			indexSearcher = searcherManager.acquire();
+		}
+		if (indexSearcher == null) {
 			return onEmptyIndex(result, request);
 		}
-			
-		Query query = createQuery(queryString, request);
-		if (query != null) {
-			IndexSearcher indexSearcher = new IndexSearcher(indexDir);
-			Filter filter = createFilter(request);
-			Hits hits = indexSearcher.search(query, filter);
-			if (hits.length() == 0) {
-				return onEmptyResult(result, request);
+		try {
+			Query query = createQuery(queryString, request);
+			if (query != null) {
+				long start = System.currentTimeMillis();
+				Filter filter = createFilter(request);
+				
+				// Never collect more hits than there are documents. If the 
+				// page lies beyond the end, only the total count is needed.
+				int maxDoc = indexSearcher.maxDoc();
+				int from = (int) Math.min(offset, maxDoc);
+				int numHits = from < maxDoc 
+						? (int) Math.min(offset + pageSize, maxDoc) : 1;
+				
+				ResultKey key = new ResultKey(queryString, query, filter, 
+						from, pageSize);
+				
+				SearchResult cachedResult = getCachedResult(generation, key);
+				if (cachedResult != null) {
+					log.debug("Serving '{}' from cache", queryString);
+					return onResultView(cachedResult, request);
+				}
+				
+				TopDocs topDocs = indexSearcher.search(query, filter, numHits);
+				if (topDocs.totalHits == 0) {
+					return onEmptyResult(result, request);
+				}
+				HighlightingContext highlightingContext =
+						resultHighlighter.createContext(indexSearcher, query);
+	
+				result.setTopDocs(topDocs, indexSearcher, from, pageSize, 
+						highlightingContext);
+				
+				result.setSearchDuration(System.currentTimeMillis() - start);
+				log.debug("Searched for '{}' in {} ms", queryString, 
+						result.getSearchDuration());
+				
+				cacheResult(generation, key, result);
+				return onResultView(result, request);
+			}
+			else {
+				return onEmptyQuery(result, request);
 			}
-			HighlightingContext highlightingContext =
-					resultHighlighter.createContext(indexSearcher, query);
-
-			result.setHits(hits, offset, pageSize, highlightingContext);
-			indexSearcher.close();
-			
-			return onResultView(result, request);
 		}
-		else {
-			return onEmptyQuery(result, request);
+		finally {
+			searcherManager.release(indexSearcher);
+		}
+	}
+	
+	private SearchResult getCachedResult(long generation, ResultKey key) {
+		if (resultCacheSize <= 0) {
+			return null;
+		}
+		synchronized (resultCache) {
+			if (generation != cachedGeneration) {
+				return null;
+			}
+			return resultCache.get(key);
+		}
+	}
+	
+	private void cacheResult(long generation, ResultKey key, SearchResult result) {
+		if (resultCacheSize <= 0) {
+			return;
+		}
+		synchronized (resultCache) {
+			if (generation > cachedGeneration) {
+				resultCache.clear();
+				cachedGeneration = generation;
+			}
+			if (generation == cachedGeneration) {
+				resultCache.put(key, result);
+			}
 		}
 	}
 
@@ -204,13 +321,13 @@ public class SearchController implements Controller, InitializingBean {
 		return null;
 	}
 	
+	/**
+	 * Returns a Filter for the query returned by 
+	 * {@link #createFilterQuery(HttpServletRequest)}. Filters are cached by 
+	 * the SearcherManager, so that equal filter queries share their bits.
+	 */
 	protected Filter createFilter(HttpServletRequest request) {
-		Query filterQuery = createFilterQuery(request);
-		
-		if (filterQuery == null) {
-			return null;
-		}
-		return new CachingWrapperFilter(new QueryWrapperFilter(filterQuery));
+		return searcherManager.getFilter(createFilterQuery(request));
 	}
 
 	protected Query createFilterQuery(HttpServletRequest request) {
@@ -229,4 +346,48 @@ public class SearchController implements Controller, InitializingBean {
 		return query;
 	}
 
+	private static class ResultKey {
+		
+		private String queryString;
+		
+		private Query query;
+		
+		private Filter filter;
+		
+		private int offset;
+		
+		private int pageSize;
+
+		public ResultKey(String queryString, Query query, Filter filter, 
+				int offset, int pageSize) {
+			
+			this.queryString = queryString;
+			this.query = query;
+			this.filter = filter;
+			this.offset = offset;
+			this.pageSize = pageSize;
+		}
+		
+		@Override
+		public int hashCode() {
+			return query.hashCode() + 31 * offset + pageSize;
+		}
+		
+		@Override
+		public boolean equals(Object obj) {
+			if (obj == this) {
+				return true;
+			}
+			if (obj instanceof ResultKey) {
+				ResultKey other = (ResultKey) obj;
+				return offset == other.offset 
+						&& pageSize == other.pageSize
+						&& query.equals(other.query)
+						&& queryString.equals(other.queryString)
+						&& ObjectUtils.nullSafeEquals(filter, other.filter);
+			}
+			return false;
+		}
+	}
+
 }
@@ -18,6 +18,9 @@ import java.util.List;
 
 import org.apache.lucene.document.Document;
 import org.apache.lucene.search.Hits;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Searcher;
+import org.apache.lucene.search.TopDocs;
 import org.riotfamily.search.ResultHighlighter.HighlightingContext;
 import org.riotfamily.search.index.DocumentBuilder;
 import org.springframework.util.StringUtils;
@@ -48,9 +51,32 @@ public class SearchResult {
 		items = new ArrayList<Item>(end - offset);
 		for (int i = offset; i < end; i++) {
 			Document doc = hits.doc(i);
-			items.add(new Item(doc, hits.score(i)));
+			items.add(new Item(doc, hits.score(i), -1));
 		}
 	}
+	
+	/**
+	 * Sets the result items from the given TopDocs, which must contain 
+	 * at least <code>offset + maxResults</code> documents, unless fewer 
+	 * documents matched.
+	 */
+	public void setTopDocs(TopDocs topDocs, Searcher searcher, int offset, 
+			int maxResults, HighlightingContext highlightingContext) 
+			throws IOException {
+		
+		this.highlightingContext = highlightingContext;
+		totalHitCount = topDocs.totalHits;
+		ScoreDoc[] scoreDocs = topDocs.scoreDocs;
+		int end = Math.min(offset + maxResults, scoreDocs.length);
+		items = new ArrayList<Item>(Math.max(end - offset, 0));
+		for (int i = offset; i < end; i++) {
+			ScoreDoc scoreDoc = scoreDocs[i];
+			Document doc = searcher.doc(scoreDoc.doc);
+			items.add(new Item(doc, scoreDoc.score, scoreDoc.doc));
+		}
+		// Don't keep a reference to the reader, the result may be cached
+		this.highlightingContext = null;
+	}
 
 	public String getOriginalQuery() {
 		return this.originalQuery;
@@ -84,12 +110,18 @@ public class SearchResult {
 		
 		private float score;
 		
-		Item(Document doc, float score) {
+		Item(Document doc, float score, int docId) {
 			this.doc = doc;
 			this.score = score;
 			String content = doc.get(DocumentBuilder.CONTENT);
 			if (StringUtils.hasText(content)) {
-				this.description = highlightingContext.getFragments(content);
+				if (docId != -1) {
+					this.description = highlightingContext.getFragments(
+							docId, DocumentBuilder.CONTENT, content);
+				}
+				else {
+					this.description = highlightingContext.getFragments(content);
+				}
 			}
 		}
 
@@ -14,6 +14,9 @@ package org.riotfamily.search.index;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import javax.servlet.ServletContext;
 
@@ -30,17 +33,28 @@ import org.riotfamily.search.analysis.AnalyzerFactory;
 import org.riotfamily.search.analysis.DefaultAnalyzerFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.core.io.Resource;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 import org.springframework.util.Assert;
 import org.springframework.web.context.ServletContextAware;
 import org.springframework.web.util.WebUtils;
 
 /**
  * PageHandler that creates Lucene documents and adds them to the search  index.
+ * <p>
+ * Incremental updates are performed by a long-lived IndexWriter that 
+ * replaces documents by their URL. Changes are committed in the background
+ * after {@link #setCommitDelay(long) commitDelay} milliseconds, so that 
+ * subsequent updates are committed together. After each commit the 
+ * {@link SearcherManager} is asked to reopen its searcher. A full crawl 
+ * builds a new index in a temporary location, which replaces the current 
+ * index when the crawler has finished.
+ * </p>
  */
 public class Indexer implements PageHandler,
-		ServletContextAware, InitializingBean {
+		ServletContextAware, InitializingBean, DisposableBean {
 
 	private Logger log = LoggerFactory.getLogger(Indexer.class);
 
@@ -58,6 +72,16 @@ public class Indexer implements PageHandler,
 
 	private IndexWriter tempWriter;
 	
+	private SearcherManager searcherManager;
+	
+	private long commitDelay = 1000;
+	
+	private IndexWriter writer;
+	
+	private boolean commitScheduled;
+	
+	private ScheduledExecutorService commitExecutor;
+	
 	/**
 	 * Sets the location where the index should be stored. The given resource
 	 * must point into the file system, i.e. resource.getFile() must return a
@@ -77,6 +101,22 @@ public class Indexer implements PageHandler,
 		indexDir = FSDirectory.getDirectory(dir);
 	}
 
+	/**
+	 * Sets a SearcherManager that is notified when the index has been 
+	 * modified.
+	 */
+	public void setSearcherManager(SearcherManager searcherManager) {
+		this.searcherManager = searcherManager;
+	}
+
+	/**
+	 * Sets the number of milliseconds after which incremental changes are 
+	 * committed. Default is <code>1000</code>.
+	 */
+	public void setCommitDelay(long commitDelay) {
+		this.commitDelay = commitDelay;
+	}
+
 	public void setDocumentBuilder(DocumentBuilder documentBuilder) {
 		this.documentBuilder = documentBuilder;
 	}
@@ -111,6 +151,72 @@ public class Indexer implements PageHandler,
 		File d = new File(tempDir, "temp-search-index");
 		d.mkdir();
 		tempIndexDir = FSDirectory.getDirectory(d);
+		commitExecutor = Executors.newSingleThreadScheduledExecutor(
+				new CustomizableThreadFactory("IndexCommitter-"));
+	}
+	
+	public void destroy() throws Exception {
+		commitExecutor.shutdownNow();
+		synchronized (this) {
+			closeWriter();
+		}
+	}
+	
+	/**
+	 * Returns the long-lived writer, which is created on demand.
+	 * Callers must synchronize on the Indexer. 
+	 */
+	private IndexWriter getWriter() throws IOException {
+		if (writer == null) {
+			writer = createWriter(!IndexReader.indexExists(indexDir));
+		}
+		return writer;
+	}
+	
+	private IndexWriter createWriter(boolean create) throws IOException {
+		IndexWriter writer = new IndexWriter(indexDir, 
+				analyzerFactory.getAnalyzer(null), create, 
+				IndexWriter.MaxFieldLength.LIMITED);
+		
+		writer.setUseCompoundFile(compound);
+		return writer;
+	}
+	
+	private void closeWriter() throws IOException {
+		if (writer != null) {
+			try {
+				writer.close();
+			}
+			finally {
+				writer = null;
+			}
+		}
+	}
+	
+	private synchronized void scheduleCommit() {
+		if (!commitScheduled) {
+			commitScheduled = true;
+			commitExecutor.schedule(new Runnable() {
+				public void run() {
+					commit();
+				}
+			}, commitDelay, TimeUnit.MILLISECONDS);
+		}
+	}
+	
+	private void commit() {
+		try {
+			synchronized (this) {
+				commitScheduled = false;
+				if (writer != null) {
+					writer.commit();
+				}
+			}
+			indexChanged();
+		}
+		catch (IOException e) {
+			log.error("Error committing index changes", e);
+		}
 	}
 
 	private Analyzer getAnalyzer(Document document) {
@@ -151,32 +257,55 @@ public class Indexer implements PageHandler,
 	public void handlePageIncremental(PageData pageData) {
 		try {
 			log.info("Updating index for " + pageData.getUrl());
-			boolean indexExists = IndexReader.indexExists(indexDir);
-			if (indexExists) {
-				IndexReader reader = IndexReader.open(indexDir);
-				reader.deleteDocuments(new Term(DocumentBuilder.URL, pageData.getUrl()));
-				reader.close();
-			}
+			Term urlTerm = new Term(DocumentBuilder.URL, pageData.getUrl());
 			Document doc = documentBuilder.buildDocument(pageData);
-			if (doc != null) {
-				IndexWriter indexWriter = new IndexWriter(indexDir, 
-						getAnalyzer(doc), !indexExists);
-				
-				indexWriter.addDocument(doc);
-				indexWriter.close();
+			synchronized (this) {
+				if (doc != null) {
+					getWriter().updateDocument(urlTerm, doc, getAnalyzer(doc));
+				}
+				else {
+					getWriter().deleteDocuments(urlTerm);
+				}
 			}
+			scheduleCommit();
 		}
 		catch (IOException e) {
 			log.error("Error indexing page", e);
 		}
 	}
 
+	public void handlePageRemoved(String url) {
+		try {
+			log.info("Removing " + url + " from the index");
+			synchronized (this) {
+				getWriter().deleteDocuments(new Term(DocumentBuilder.URL, url));
+			}
+			scheduleCommit();
+		}
+		catch (IOException e) {
+			log.error("Error removing page from index", e);
+		}
+	}
+
+	private void indexChanged() throws IOException {
+		if (searcherManager != null) {
+			searcherManager.maybeReopen();
+		}
+	}
+
 	public void crawlerFinished() {
+		if (tempWriter == null) {
+			return;
+		}
 		try {
 			tempWriter.close();
-			IndexWriter indexWriter = new IndexWriter(indexDir, null, true);
-			indexWriter.addIndexes(new Directory[] { tempIndexDir });
-			indexWriter.close();
+			synchronized (this) {
+				closeWriter();
+				writer = createWriter(true);
+				writer.addIndexes(new Directory[] { tempIndexDir });
+				writer.commit();
+			}
+			indexChanged();
 		}
 		catch (IOException e) {
 			log.error("Error", e);
@@ -0,0 +1,222 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.riotfamily.search.index;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.CachingWrapperFilter;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.QueryWrapperFilter;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.riotfamily.common.util.Generics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.core.io.Resource;
+
+/**
+ * Holds a shared IndexSearcher that is used by all concurrent searches. 
+ * The underlying IndexReader is reference counted, so that it can be 
+ * replaced by a reopened one without affecting searches that are still 
+ * running. Callers must {@link #release(IndexSearcher) release} each 
+ * searcher they {@link #acquire() acquired}.
+ * <p>
+ * The searcher is reopened when {@link #maybeReopen()} is invoked (the 
+ * {@link Indexer} does this after each update) or when 
+ * {@link #setCheckInterval(long) checkInterval} milliseconds have passed 
+ * since the last check. Cached filters are applied to a new reader before 
+ * it is put into service.
+ * </p>
+ */
+public class SearcherManager implements DisposableBean {
+
+	private Logger log = LoggerFactory.getLogger(SearcherManager.class);
+	
+	private Directory indexDir;
+	
+	private long checkInterval = 5000;
+	
+	private int filterCacheSize = 100;
+	
+	@SuppressWarnings("serial")
+	private Map<Query, Filter> filters = new LinkedHashMap<Query, Filter>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Query, Filter> eldest) {
+			return size() > filterCacheSize;
+		}
+	};
+	
+	private Object reopenLock = new Object();
+	
+	private IndexSearcher currentSearcher;
+	
+	private long generation;
+	
+	private volatile long lastCheck;
+	
+	/**
+	 * Sets the location of the index. The given resource must point into 
+	 * the file system, i.e. resource.getFile() must return a File object.
+	 */
+	public void setIndexLocation(Resource resource) throws IOException {
+		setIndexDir(resource.getFile());
+	}
+	
+	public void setIndexDir(File dir) throws IOException {
+		dir.mkdirs();
+		indexDir = FSDirectory.getDirectory(dir);
+	}
+	
+	/**
+	 * Sets the number of milliseconds after which {@link #acquire()} checks 
+	 * whether the index has been modified. Default is <code>5000</code>.
+	 */
+	public void setCheckInterval(long checkInterval) {
+		this.checkInterval = checkInterval;
+	}
+	
+	/**
+	 * Sets the maximum number of cached filters. Default is <code>100</code>.
+	 */
+	public void setFilterCacheSize(int filterCacheSize) {
+		this.filterCacheSize = filterCacheSize;
+	}
+	
+	public Directory getIndexDir() {
+		return indexDir;
+	}
+	
+	/**
+	 * Returns a number that is incremented each time the searcher is 
+	 * replaced.
+	 */
+	public synchronized long getGeneration() {
+		return generation;
+	}
+	
+	/**
+	 * Returns the current searcher, or <code>null</code> if no index exists.
+	 */
+	public IndexSearcher acquire() throws IOException {
+		if (System.currentTimeMillis() - lastCheck > checkInterval) {
+			maybeReopen();
+		}
+		synchronized (this) {
+			if (currentSearcher != null) {
+				currentSearcher.getIndexReader().incRef();
+			}
+			return currentSearcher;
+		}
+	}
+	
+	/**
+	 * Releases a searcher that was obtained via {@link #acquire()}.
+	 */
+	public void release(IndexSearcher searcher) throws IOException {
+		if (searcher != null) {
+			searcher.getIndexReader().decRef();
+		}
+	}
+	
+	/**
+	 * Replaces the current searcher if the index has been modified.
+	 */
+	public void maybeReopen() throws IOException {
+		lastCheck = System.currentTimeMillis();
+		if (indexDir == null) {
+			return;
+		}
+		// Only one thread reopens the reader, searches may continue 
+		// using the current one in the meantime
+		synchronized (reopenLock) {
+			IndexReader newReader;
+			if (currentSearcher == null) {
+				if (!IndexReader.indexExists(indexDir)) {
+					return;
+				}
+				newReader = IndexReader.open(indexDir, true);
+			}
+			else {
+				IndexReader reader = currentSearcher.getIndexReader();
+				newReader = reader.reopen();
+				if (newReader == reader) {
+					return;
+				}
+			}
+			warm(newReader);
+			swapSearcher(new IndexSearcher(newReader));
+		}
+	}
+	
+	private synchronized void swapSearcher(IndexSearcher searcher) throws IOException {
+		IndexSearcher oldSearcher = currentSearcher;
+		currentSearcher = searcher;
+		generation++;
+		log.debug("Opened searcher generation {}", generation);
+		if (oldSearcher != null) {
+			oldSearcher.getIndexReader().decRef();
+		}
+	}
+	
+	private void warm(IndexReader reader) {
+		for (Filter filter : getCachedFilters()) {
+			try {
+				filter.getDocIdSet(reader);
+			}
+			catch (IOException e) {
+				log.warn("Failed to warm filter " + filter, e);
+			}
+		}
+	}
+	
+	/**
+	 * Returns a cached filter for the given query. Filters are cached per
+	 * reader, so that the filter's bits are only computed once per 
+	 * searcher generation.
+	 */
+	public Filter getFilter(Query filterQuery) {
+		if (filterQuery == null) {
+			return null;
+		}
+		synchronized (filters) {
+			Filter filter = filters.get(filterQuery);
+			if (filter == null) {
+				filter = new CachingWrapperFilter(new QueryWrapperFilter(filterQuery));
+				filters.put(filterQuery, filter);
+			}
+			return filter;
+		}
+	}
+	
+	private List<Filter> getCachedFilters() {
+		synchronized (filters) {
+			return Generics.newArrayList(filters.values());
+		}
+	}
+
+	public synchronized void destroy() throws Exception {
+		if (currentSearcher != null) {
+			currentSearcher.getIndexReader().decRef();
+			currentSearcher = null;
+		}
+	}
+	
+}
@@ -12,9 +12,7 @@
  */
 package org.riotfamily.search.index.html;
 
-import org.htmlparser.NodeFilter;
-import org.htmlparser.Tag;
-import org.htmlparser.util.NodeList;
+import org.riotfamily.crawler.HtmlSummary;
 import org.riotfamily.crawler.PageData;
 
 /**
@@ -27,21 +25,15 @@ import org.riotfamily.crawler.PageData;
  */
 public class DefaultLanguageExtractor implements FieldExtractor {
 
-	private static final String LANG_ATTRIBUTE = "lang";
-	
 	private static final String LANG_HEADER = "content-language";
 
 	public String getFieldValue(PageData pageData) {
 		String lang = pageData.getHeader(LANG_HEADER);
 		if (lang == null) {
-			lang = HtmlParserUtils.getHttpEquiv(pageData.getNodes(), LANG_HEADER);
+			HtmlSummary summary = pageData.getSummary();
+			lang = summary.getHttpEquiv(LANG_HEADER);
 			if (lang == null) {
-				NodeFilter filter = new AttributeNodeFilter(LANG_ATTRIBUTE);
-				NodeList nodes = pageData.getNodes().extractAllNodesThatMatch(filter, true);
-				if (nodes.size() > 0) {
-					Tag tag = (Tag) nodes.elementAt(0);
-					lang = tag.getAttribute(LANG_ATTRIBUTE);
-				}
+				lang = summary.getLanguage();
 			}
 		}
 		return lang;
@@ -23,6 +23,7 @@ import org.htmlparser.tags.BodyTag;
 import org.htmlparser.tags.HeadingTag;
 import org.htmlparser.util.NodeList;
 import org.riotfamily.common.util.Generics;
+import org.riotfamily.crawler.HtmlSummary;
 import org.riotfamily.crawler.PageData;
 import org.riotfamily.search.index.DocumentBuilder;
 import org.springframework.beans.factory.InitializingBean;
@@ -100,14 +101,18 @@ public class HtmlDocumentBuilder implements DocumentBuilder, InitializingBean {
 	}
 	
 	public Document buildDocument(PageData pageData) {
-		NodeList nodes = pageData.getNodes();
-		if (nodes == null) {
+		if (!pageData.isOk()) {
 			return null;
 		}
-		String robots = HtmlParserUtils.getMeta(nodes, "robots");
+		HtmlSummary summary = pageData.getSummary();
+		String robots = summary.getMeta("robots");
 		if (robots != null && robots.toLowerCase().indexOf("noindex") != -1) {
 			return null;
 		}
+		NodeList nodes = pageData.getNodes();
+		if (nodes == null) {
+			return null;
+		}
 		
 		Document doc = new Document();
 		doc.add(new Field(URL, pageData.getUrl(), 
@@ -130,8 +135,8 @@ public class HtmlDocumentBuilder implements DocumentBuilder, InitializingBean {
 			}
 		}
 		
-		addKeywords(doc, HtmlParserUtils.getMeta(nodes, "keywords"));
-		addKeywords(doc, HtmlParserUtils.getMeta(nodes, "description"));
+		addKeywords(doc, summary.getMeta("keywords"));
+		addKeywords(doc, summary.getMeta("description"));
 		
 		NodeList nodesToIndex = nodes.extractAllNodesThatMatch(contentFilter, true);
 
@@ -140,7 +145,8 @@ public class HtmlDocumentBuilder implements DocumentBuilder, InitializingBean {
 		String content = HtmlParserUtils.toText(nodesToIndex);
 		if (StringUtils.hasText(content)) {
 			doc.add(new Field(CONTENT, content, 
-					Field.Store.YES, Field.Index.TOKENIZED));
+					Field.Store.YES, Field.Index.TOKENIZED,
+					Field.TermVector.WITH_POSITIONS_OFFSETS));
 		}
 		
 		if (customFieldExtractors != null) {
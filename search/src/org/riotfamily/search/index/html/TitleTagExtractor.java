@@ -12,19 +12,45 @@
  */
 package org.riotfamily.search.index.html;
 
+import org.htmlparser.NodeFilter;
 import org.htmlparser.filters.NodeClassFilter;
 import org.htmlparser.tags.TitleTag;
+import org.riotfamily.crawler.PageData;
 
 /**
  * {@link FieldExtractor} that extracts the content of the document's 
- * <code>TITLE</code> tag.
+ * <code>TITLE</code> tag. The title is taken from the page's 
+ * {@link org.riotfamily.crawler.HtmlSummary HtmlSummary}, unless a different 
+ * node filter is set.
  * 
  * @author Felix Gnass [fgnass at neteye dot de]
  */
 public class TitleTagExtractor extends CssSelectorTextExtractor {
 	
+	private boolean customFilter;
+	
 	public TitleTagExtractor() {
-		setNodeFilter(new NodeClassFilter(TitleTag.class));
+		super.setNodeFilter(new NodeClassFilter(TitleTag.class));
+	}
+	
+	@Override
+	public void setNodeFilter(NodeFilter nodeFilter) {
+		super.setNodeFilter(nodeFilter);
+		customFilter = true;
+	}
+	
+	@Override
+	public void setCssSelector(String cssSelector) {
+		super.setCssSelector(cssSelector);
+		customFilter = true;
+	}
+	
+	@Override
+	public String getFieldValue(PageData pageData) {
+		if (customFilter) {
+			return super.getFieldValue(pageData);
+		}
+		return pageData.getSummary().getTitle();
 	}
 
 }
@@ -12,32 +12,21 @@
  */
 package org.riotfamily.crawler;
 
-import org.htmlparser.util.ParserException;
 import org.riotfamily.components.event.ContentChangedEvent;
 import org.springframework.context.ApplicationEvent;
 
+/**
+ * Crawler that re-processes pages as soon as a {@link ContentChangedEvent}
+ * is published.
+ */
 public class ContentCrawler extends Crawler {
 
 	@Override
 	public void onApplicationEvent(ApplicationEvent event) {
 		if (event instanceof ContentChangedEvent) {
 			ContentChangedEvent ce = (ContentChangedEvent) event;
-			log.info("Content changed: " + ce.getUrl());
-			if (running) {
-				hrefs.addAbsolute(ce.getUrl(), null);
-			}
-			PageData pageData = pageLoader.loadPage(new Href(null, ce.getUrl(), null));
-	        if (pageData.isOk()) {
-	        	try {
-		        	pageData.parse();
-	        	}
-	        	catch (ParserException e) {
-	        		log.error("Error parsing page", e);
-	        	}
-	        }
-	        for (PageHandler handler : pageHandlers) {
-	        	handler.handlePage(pageData);
-	        }
+			log.debug("Content changed: " + ce.getUrl());
+			pageChanged(ce.getUrl());
 		}
 	}
 	
@@ -0,0 +1,45 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.riotfamily.statistics.dao;
+
+import java.beans.PropertyDescriptor;
+
+import org.riotfamily.common.util.FormatUtils;
+import org.riotfamily.statistics.domain.Statistics;
+import org.springframework.beans.BeanWrapper;
+import org.springframework.beans.BeanWrapperImpl;
+
+/**
+ * Dao that lists the readable properties of an arbitrary bean. This allows
+ * other modules to expose their statistics without depending on this module.
+ */
+public class BeanStatisticsDao extends AbstractSimpleStatsDao {
+
+	private Object bean;
+	
+	public BeanStatisticsDao(Object bean) {
+		this.bean = bean;
+	}
+	
+	@Override
+	protected void populateStats(Statistics stats) throws Exception {
+		BeanWrapper wrapper = new BeanWrapperImpl(bean);
+		for (PropertyDescriptor pd : wrapper.getPropertyDescriptors()) {
+			if (pd.getReadMethod() != null && !pd.getName().equals("class")) {
+				stats.add(FormatUtils.camelToTitleCase(pd.getName()), 
+						wrapper.getPropertyValue(pd.getName()));
+			}
+		}
+	}
+	
+}